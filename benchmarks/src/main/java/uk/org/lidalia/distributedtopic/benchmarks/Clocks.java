@@ -0,0 +1,24 @@
+package uk.org.lidalia.distributedtopic.benchmarks;
+
+import uk.org.lidalia.distributedtopic.NodeId;
+import uk.org.lidalia.distributedtopic.SingleNodeVectorClock;
+
+final class Clocks {
+
+    private Clocks() {
+        throw new UnsupportedOperationException("Not instantiable.");
+    }
+
+    /**
+     * @return a clock for the given node that knows of nodes 1 to nodes
+     */
+    static SingleNodeVectorClock clockFor(int node, int nodes) {
+        SingleNodeVectorClock clock = new SingleNodeVectorClock(new NodeId(node));
+        for (int other = 1; other <= nodes; other++) {
+            if (other != node) {
+                clock = clock.add(new NodeId(other));
+            }
+        }
+        return clock;
+    }
+}
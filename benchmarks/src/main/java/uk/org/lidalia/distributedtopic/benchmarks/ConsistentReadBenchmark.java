@@ -0,0 +1,109 @@
+package uk.org.lidalia.distributedtopic.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableList;
+
+import uk.org.lidalia.distributedtopic.Message;
+import uk.org.lidalia.distributedtopic.SingleNodeVectorClock;
+import uk.org.lidalia.distributedtopic.TopicNode;
+
+import static uk.org.lidalia.distributedtopic.benchmarks.Clocks.clockFor;
+
+/**
+ * Reads from a node holding a history of messages from every other node in the cluster, all of it consistent: the
+ * whole history, and roughly the last {@value #TAIL} messages of it after a clock, as a polling reader would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsistentReadBenchmark {
+
+    private static final int TAIL = 100;
+    private static final int BATCH = 1000;
+
+    @Param({ "3", "10" })
+    public int nodes;
+
+    @Param({ "1000", "10000", "100000" })
+    public int history;
+
+    private TopicNode<Object> node;
+    private SingleNodeVectorClock tailStart;
+
+    @Setup
+    public void setUp() {
+        node = new TopicNode<>(1);
+        final SingleNodeVectorClock[] clocks = new SingleNodeVectorClock[nodes + 1];
+        for (int other = 2; other <= nodes; other++) {
+            node.syncWith(new DiscardingPeer(other));
+            clocks[other] = clockFor(other, nodes);
+        }
+        List<Message<Object>> batch = new ArrayList<>(BATCH);
+        for (int i = 0; i < history; i++) {
+            final int origin = 2 + i % (nodes - 1);
+            clocks[origin] = clocks[origin].next();
+            final Message<Object> message = new Message<Object>(i, clocks[origin]);
+            batch.add(message);
+            if (i == history - TAIL - 1) {
+                tailStart = message.getVectorClock();
+            }
+            if (batch.size() == BATCH) {
+                node.sync(batch);
+                batch = new ArrayList<>(BATCH);
+            }
+        }
+        node.sync(batch);
+        acknowledgeEverything(clocks);
+        if (node.consistentMessages().size() != history) {
+            throw new IllegalStateException("Expected " + history + " consistent messages, got " + node.consistentMessages().size());
+        }
+    }
+
+    /**
+     * Has every other node send one more message showing it has seen the latest from all the rest, which moves the
+     * lowest common clock past the whole history.
+     */
+    private void acknowledgeEverything(SingleNodeVectorClock[] clocks) {
+        final SingleNodeVectorClock[] acknowledged = new SingleNodeVectorClock[clocks.length];
+        for (int origin = 2; origin <= nodes; origin++) {
+            acknowledged[origin] = clocks[origin];
+            for (int other = 2; other <= nodes; other++) {
+                if (other != origin) {
+                    acknowledged[origin] = acknowledged[origin].update(clocks[other]);
+                }
+            }
+            acknowledged[origin] = acknowledged[origin].next();
+        }
+        for (int origin = 2; origin <= nodes; origin++) {
+            node.sync(new Message<>("acknowledgement", acknowledged[origin]));
+        }
+    }
+
+    @Benchmark
+    public ImmutableList<Message<Object>> consistentMessages() {
+        return node.consistentMessages();
+    }
+
+    @Benchmark
+    public ImmutableList<Message<Object>> consistentMessagesSince() {
+        return node.consistentMessagesSince(tailStart);
+    }
+}
@@ -0,0 +1,38 @@
+package uk.org.lidalia.distributedtopic.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+
+import uk.org.lidalia.distributedtopic.Message;
+import uk.org.lidalia.distributedtopic.NodeId;
+import uk.org.lidalia.distributedtopic.Peer;
+import uk.org.lidalia.distributedtopic.SingleNodeVectorClock;
+
+/**
+ * A peer that takes deliveries and does nothing with them, so that a benchmark measures the sending node alone.
+ */
+class DiscardingPeer implements Peer {
+
+    private final NodeId id;
+
+    DiscardingPeer(int id) {
+        this.id = new NodeId(id);
+    }
+
+    @Override
+    public NodeId getId() {
+        return id;
+    }
+
+    @Override
+    public void deliver(ImmutableList<Message<?>> messages) {
+    }
+
+    @Override
+    public void requestMissing(SingleNodeVectorClock received) {
+    }
+
+    @Override
+    public int queued() {
+        return 0;
+    }
+}
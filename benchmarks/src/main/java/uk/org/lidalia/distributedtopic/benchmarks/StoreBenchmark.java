@@ -0,0 +1,64 @@
+package uk.org.lidalia.distributedtopic.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.lidalia.distributedtopic.TopicNode;
+
+/**
+ * Stores from several producer threads at once into one node with a peer for every other node in the cluster. The
+ * peers discard what they are sent, so this measures the store path and the hand-off to the synchroniser, not the
+ * network. The node is replaced every iteration because it keeps everything stored.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StoreBenchmark {
+
+    @Param({ "3", "10", "30" })
+    public int nodes;
+
+    private TopicNode<String> node;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        node = new TopicNode<>(1);
+        for (int other = 2; other <= nodes; other++) {
+            node.syncWith(new DiscardingPeer(other));
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void uncontended() {
+        node.store("value");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void fourProducers() {
+        node.store("value");
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void producerPerCore() {
+        node.store("value");
+    }
+}
@@ -0,0 +1,82 @@
+package uk.org.lidalia.distributedtopic.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.org.lidalia.distributedtopic.NodeId;
+import uk.org.lidalia.distributedtopic.SingleNodeVectorClock;
+import uk.org.lidalia.distributedtopic.VectorClock;
+
+import static uk.org.lidalia.distributedtopic.benchmarks.Clocks.clockFor;
+
+/**
+ * The clock operations every store, sync and read goes through, for clusters of different sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VectorClockBenchmark {
+
+    @Param({ "3", "10", "30", "100" })
+    public int nodes;
+
+    private SingleNodeVectorClock before;
+    private SingleNodeVectorClock after;
+    private SingleNodeVectorClock concurrent;
+    private VectorClock vectorClock;
+    private SingleNodeVectorClock remote;
+
+    @Setup
+    public void setUp() {
+        final SingleNodeVectorClock node1 = clockFor(1, nodes);
+        final SingleNodeVectorClock node2 = clockFor(2, nodes);
+        before = node1.next();
+        after = before.next().update(node2.next());
+        concurrent = node2.next().next();
+
+        vectorClock = new VectorClock(new NodeId(1));
+        for (int other = 2; other <= nodes; other++) {
+            vectorClock = vectorClock.update(clockFor(other, nodes).next());
+        }
+        remote = clockFor(2, nodes).next().next();
+    }
+
+    @Benchmark
+    public int compareToCausallyOrdered() {
+        return before.compareTo(after);
+    }
+
+    @Benchmark
+    public int compareToConcurrent() {
+        return before.compareTo(concurrent);
+    }
+
+    @Benchmark
+    public VectorClock update() {
+        return vectorClock.update(remote);
+    }
+
+    @Benchmark
+    public SingleNodeVectorClock updateThenLowestCommonClock() {
+        return vectorClock.update(remote).getLowestCommonClock();
+    }
+
+    @Benchmark
+    public VectorClock next() {
+        return vectorClock.next();
+    }
+}
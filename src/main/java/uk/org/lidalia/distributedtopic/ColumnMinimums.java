@@ -0,0 +1,81 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.Collection;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The per-node minimum sequence across every clock held in a {@link VectorClock}, maintained incrementally as
+ * individual clocks are replaced so that only the columns a replacement could have lowered or raised are revisited.
+ * A clock from which a node has departed counts as holding the node's final sequence.
+ */
+final class ColumnMinimums {
+
+    private final NodeIndex index;
+    private final int[] minimums;
+
+    static ColumnMinimums of(Collection<SingleNodeVectorClock> clocks) {
+        NodeIndex index = null;
+        for (SingleNodeVectorClock clock : clocks) {
+            index = union(index, clock.getIndex());
+        }
+        int[] minimums = new int[index.size()];
+        for (int column = 0; column < minimums.length; column++) {
+            minimums[column] = minimumOf(clocks, index, column);
+        }
+        return new ColumnMinimums(index, minimums);
+    }
+
+    private ColumnMinimums(NodeIndex index, int[] minimums) {
+        this.index = checkNotNull(index);
+        this.minimums = checkNotNull(minimums);
+    }
+
+    /**
+     * @param previous the clock being replaced, or null if the clock is for a node not previously present
+     * @param updated the replacement clock
+     * @param clocks every clock after the replacement, used to recompute a column whose minimum may have risen
+     */
+    ColumnMinimums replace(SingleNodeVectorClock previous, SingleNodeVectorClock updated, Collection<SingleNodeVectorClock> clocks) {
+        if (union(index, updated.getIndex()) != index) {
+            return of(clocks);
+        }
+        int[] updatedMinimums = null;
+        for (int column = 0; column < minimums.length; column++) {
+            int current = updatedMinimums == null ? minimums[column] : updatedMinimums[column];
+            int updatedSequence = updated.sequenceAt(index, column);
+            int newMinimum = current;
+            if (updatedSequence < current) {
+                newMinimum = updatedSequence;
+            } else if (previous != null && updatedSequence > current && previous.sequenceAt(index, column) == current) {
+                newMinimum = minimumOf(clocks, index, column);
+            }
+            if (newMinimum != current) {
+                if (updatedMinimums == null) {
+                    updatedMinimums = minimums.clone();
+                }
+                updatedMinimums[column] = newMinimum;
+            }
+        }
+        return updatedMinimums == null ? this : new ColumnMinimums(index, updatedMinimums);
+    }
+
+    /**
+     * @return the minimums as a clock for the same node, and taking its timestamp from the same source, as localClock
+     */
+    SingleNodeVectorClock toClock(SingleNodeVectorClock localClock) {
+        return new SingleNodeVectorClock(localClock.getNodeId(), index, minimums, localClock.getClock());
+    }
+
+    private static int minimumOf(Collection<SingleNodeVectorClock> clocks, NodeIndex index, int column) {
+        int minimum = Integer.MAX_VALUE;
+        for (SingleNodeVectorClock clock : clocks) {
+            minimum = Math.min(minimum, clock.sequenceAt(index, column));
+        }
+        return minimum;
+    }
+
+    private static NodeIndex union(NodeIndex index, NodeIndex other) {
+        return index == null ? other : index.union(other);
+    }
+}
@@ -0,0 +1,36 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count that many threads can add to at once without contending on one memory location: each thread adds to one
+ * of several padded cells, chosen by its id, and reading the count sums them. Adding never allocates.
+ */
+public final class Counter {
+
+    private static final int STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) * 2;
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long amount) {
+        cells.getAndAdd((int) (Thread.currentThread().getId() & (STRIPES - 1)) * PADDING, amount);
+    }
+
+    public long count() {
+        long count = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            count += cells.get(stripe * PADDING);
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(count());
+    }
+}
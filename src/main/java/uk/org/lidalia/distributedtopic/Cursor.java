@@ -0,0 +1,51 @@
+package uk.org.lidalia.distributedtopic;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Iterables.getLast;
+import static com.google.common.collect.Iterables.limit;
+
+/**
+ * A consumer's position in a {@link TopicNode}. Each {@link #poll()} returns only the messages that have become
+ * consistent since the previous poll, so the cost of a poll is proportional to the new messages rather than to the
+ * history retained by the node.
+ */
+public class Cursor<T> {
+
+    private final TopicNode<T> node;
+    private Optional<SingleNodeVectorClock> position = Optional.absent();
+
+    Cursor(TopicNode<T> node) {
+        this.node = checkNotNull(node);
+    }
+
+    public synchronized ImmutableList<Message<T>> poll() {
+        return poll(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return at most the given number of the messages that have become consistent since the previous poll
+     */
+    public synchronized ImmutableList<Message<T>> poll(int max) {
+        checkArgument(max > 0, "max must be positive, was %s", max);
+        final ImmutableList<Message<T>> stable = ImmutableList.copyOf(limit(node.stableMessagesAfter(position), max));
+        if (!stable.isEmpty()) {
+            position = Optional.of(getLast(stable).getVectorClock());
+        }
+        return stable;
+    }
+
+    public synchronized Optional<SingleNodeVectorClock> position() {
+        return position;
+    }
+
+    /**
+     * Stops this cursor holding back compaction of the messages it has not yet read.
+     */
+    public void close() {
+        node.close(this);
+    }
+}
@@ -0,0 +1,109 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.ImmutableList;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A subscription that reads through a {@link Cursor}, so that a subscriber that is not asking for messages costs
+ * nothing but its position: the messages it has yet to be sent stay in the node, held back from compaction, rather
+ * than being buffered for it. The node signals every subscription when the lowest common clock moves; each signal
+ * sends as many newly consistent messages as have been asked for, on the subscription's executor. Nothing is sent
+ * until the subscription is {@link #start() started}, once the subscriber's {@code onSubscribe} has returned, so a
+ * subscriber asking for messages from {@code onSubscribe} is never sent one before that returns.
+ */
+final class CursorSubscription<T> implements Subscription, Runnable {
+
+    private static final int MAX_BATCH = 256;
+
+    private final TopicNode<T> node;
+    private final Cursor<T> cursor;
+    private final Subscriber<T> subscriber;
+    private final Executor executor;
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger signals = new AtomicInteger(1);
+    private volatile boolean cancelled = false;
+
+    CursorSubscription(TopicNode<T> node, Cursor<T> cursor, Subscriber<T> subscriber, Executor executor) {
+        this.node = checkNotNull(node);
+        this.cursor = checkNotNull(cursor);
+        this.subscriber = checkNotNull(subscriber);
+        this.executor = checkNotNull(executor);
+    }
+
+    @Override
+    public void request(long count) {
+        checkArgument(count > 0, "count must be positive, was %s", count);
+        long current;
+        long updated;
+        do {
+            current = requested.get();
+            updated = current + count < current ? Long.MAX_VALUE : current + count;
+        } while (!requested.compareAndSet(current, updated));
+        signal();
+    }
+
+    @Override
+    public void cancel() {
+        cancelled = true;
+        cursor.close();
+        node.unsubscribe(this);
+    }
+
+    /**
+     * Sends whatever was asked for before now. Until this is called the subscription holds a signal of its own, so
+     * every earlier signal is folded into this first pass.
+     */
+    void start() {
+        executor.execute(this);
+    }
+
+    /**
+     * Arranges for whatever has been asked for to be sent. Signals arriving while messages are being sent are folded
+     * into one more pass rather than each scheduling its own.
+     */
+    void signal() {
+        if (!cancelled && signals.getAndIncrement() == 0) {
+            executor.execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        int missed = 1;
+        do {
+            send();
+            missed = signals.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void send() {
+        long demand;
+        while (!cancelled && (demand = requested.get()) > 0) {
+            final ImmutableList<Message<T>> next = cursor.poll((int) Math.min(demand, MAX_BATCH));
+            if (next.isEmpty()) {
+                return;
+            }
+            for (Message<T> message : next) {
+                if (cancelled) {
+                    return;
+                }
+                try {
+                    subscriber.onNext(message);
+                } catch (Throwable t) {
+                    cancel();
+                    subscriber.onError(t);
+                    return;
+                }
+            }
+            if (demand != Long.MAX_VALUE) {
+                requested.addAndGet(-next.size());
+            }
+        }
+    }
+}
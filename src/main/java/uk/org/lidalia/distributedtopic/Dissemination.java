@@ -0,0 +1,22 @@
+package uk.org.lidalia.distributedtopic;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+
+/**
+ * Decides which peers a node passes each message on to, whether the node stored the message itself or is relaying it
+ * from elsewhere.
+ */
+public interface Dissemination {
+
+    /**
+     * A {@link Synchroniser} asks once for each origin whenever its peers change and sends every message from that
+     * origin to the same nodes until they change again, so the answer must depend only on the arguments.
+     *
+     * @param self the node doing the sending
+     * @param origin the node that stored the message
+     * @param members every node known to the sender, including itself
+     * @return the nodes to send the message to
+     */
+    ImmutableList<NodeId> targets(NodeId self, NodeId origin, ImmutableSortedSet<NodeId> members);
+}
@@ -0,0 +1,61 @@
+package uk.org.lidalia.distributedtopic;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+public final class Disseminations {
+
+    private Disseminations() {
+        throw new UnsupportedOperationException("Not instantiable.");
+    }
+
+    /**
+     * @return every message sent by the node that stored it straight to every other node, and never relayed
+     */
+    public static Dissemination fullMesh() {
+        return new Dissemination() {
+            @Override
+            public ImmutableList<NodeId> targets(NodeId self, NodeId origin, ImmutableSortedSet<NodeId> members) {
+                if (!self.equals(origin)) {
+                    return ImmutableList.of();
+                }
+                final ImmutableList.Builder<NodeId> targets = ImmutableList.builder();
+                for (NodeId member : members) {
+                    if (!member.equals(self)) {
+                        targets.add(member);
+                    }
+                }
+                return targets.build();
+            }
+        };
+    }
+
+    /**
+     * Gossips each message down a tree rooted at its origin, so that no node sends a message to more than fanOut
+     * others however large the cluster. The tree is laid over the members in id order, starting from the origin, so
+     * every node that agrees on the membership builds the same one; each node therefore receives a given origin's
+     * messages from only one parent, over one link, in the order the origin stored them, which the vector clock relies
+     * on. A message reaches every node after about log(members) / log(fanOut) hops.
+     */
+    public static Dissemination tree(final int fanOut) {
+        checkArgument(fanOut > 0, "fanOut must be positive, was %s", fanOut);
+        return new Dissemination() {
+            @Override
+            public ImmutableList<NodeId> targets(NodeId self, NodeId origin, ImmutableSortedSet<NodeId> members) {
+                final ImmutableList<NodeId> ordered = members.contains(self) && members.contains(origin)
+                        ? members.asList()
+                        : ImmutableSortedSet.<NodeId>naturalOrder().addAll(members).add(self).add(origin).build().asList();
+                final int size = ordered.size();
+                final int originIndex = ordered.indexOf(origin);
+                final int position = (ordered.indexOf(self) - originIndex + size) % size;
+                final ImmutableList.Builder<NodeId> targets = ImmutableList.builder();
+                for (int child = position * fanOut + 1; child <= position * fanOut + fanOut && child < size; child++) {
+                    targets.add(ordered.get((originIndex + child) % size));
+                }
+                return targets.build();
+            }
+        };
+    }
+}
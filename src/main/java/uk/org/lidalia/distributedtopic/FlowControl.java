@@ -0,0 +1,91 @@
+package uk.org.lidalia.distributedtopic;
+
+import com.google.common.base.Optional;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Limits how far a {@link TopicNode}'s producers may get ahead of its peers. The window is the number of the node's
+ * own messages that its slowest peer has yet to acknowledge, which a peer does whenever a clock it sends shows it has
+ * received them; so a full window bounds how many of its own messages the node must hold until it is consistent.
+ * What {@link TopicNode#store} does when the window is full is decided by the {@link Overflow}.
+ * <p>
+ * The window is one count for the node, not one per peer, and it only holds back the node's own producers. The queue
+ * to each peer also carries messages relayed from other nodes, and the transports do not bound it, so a peer that
+ * falls behind while other nodes keep producing can still leave an unbounded queue behind it on this node.
+ */
+public class FlowControl {
+
+    /**
+     * What a store does when the window is full.
+     */
+    public enum Overflow {
+
+        /**
+         * Waits until the window has room.
+         */
+        BLOCK,
+
+        /**
+         * Throws a {@link java.util.concurrent.RejectedExecutionException}.
+         */
+        REJECT,
+
+        /**
+         * Drops the message without storing it.
+         */
+        DISCARD
+    }
+
+    private static final FlowControl UNBOUNDED = new FlowControl(Optional.<Integer>absent(), Overflow.BLOCK);
+
+    private final Optional<Integer> window;
+    private final Overflow overflow;
+
+    /**
+     * @return flow control that lets producers store as fast as they like
+     */
+    public static FlowControl unbounded() {
+        return UNBOUNDED;
+    }
+
+    /**
+     * @return flow control that blocks a store while any peer has yet to acknowledge the given number of messages
+     */
+    public static FlowControl window(int maxUnacknowledged) {
+        checkArgument(maxUnacknowledged > 0, "maxUnacknowledged must be positive, was %s", maxUnacknowledged);
+        return new FlowControl(Optional.of(maxUnacknowledged), Overflow.BLOCK);
+    }
+
+    private FlowControl(Optional<Integer> window, Overflow overflow) {
+        this.window = checkNotNull(window);
+        this.overflow = checkNotNull(overflow);
+    }
+
+    /**
+     * @return this flow control, doing as given when the window is full
+     */
+    public FlowControl onOverflow(Overflow overflow) {
+        return new FlowControl(window, overflow);
+    }
+
+    public Optional<Integer> getWindow() {
+        return window;
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    boolean bounded() {
+        return window.isPresent();
+    }
+
+    /**
+     * @param unacknowledged how many of the node's own messages its slowest peer has yet to acknowledge
+     */
+    boolean hasRoom(int unacknowledged) {
+        return !window.isPresent() || unacknowledged < window.get();
+    }
+}
@@ -0,0 +1,9 @@
+package uk.org.lidalia.distributedtopic;
+
+/**
+ * A value read only when the metric is reported, so that keeping it costs nothing.
+ */
+public interface Gauge {
+
+    long value();
+}
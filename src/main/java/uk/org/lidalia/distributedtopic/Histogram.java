@@ -0,0 +1,90 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Records the distribution of non-negative values, such as latencies in milliseconds, in the manner of HdrHistogram:
+ * values are counted in buckets that split each power of two into eight, so any value is reported to within 12.5%
+ * however large it is, in a fixed 4KB of counts. Recording never allocates or locks.
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final Counter count = new Counter();
+    private final Counter total = new Counter();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value the value to record; a negative value, such as a latency made negative by clock skew, counts as 0
+     */
+    public void record(long value) {
+        final long recorded = Math.max(0, value);
+        counts.getAndIncrement(bucketOf(recorded));
+        count.increment();
+        total.add(recorded);
+        long currentMax;
+        while (recorded > (currentMax = max.get()) && !max.compareAndSet(currentMax, recorded)) {
+            // retry until the maximum is at least this value
+        }
+    }
+
+    public long count() {
+        return count.count();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        final long count = count();
+        return count == 0 ? 0 : (double) total.count() / count;
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the highest value that could have been counted in the bucket holding the given percentile, or 0 if
+     *         nothing has been recorded
+     */
+    public long percentile(double percentile) {
+        checkArgument(percentile >= 0 && percentile <= 100, "percentile must be from 0 to 100, was %s", percentile);
+        long remaining = (long) Math.ceil(count() * percentile / 100);
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            remaining -= counts.get(bucket);
+            if (remaining <= 0 && counts.get(bucket) > 0) {
+                return Math.min(highestIn(bucket), max());
+            }
+        }
+        return max();
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long highestIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lowest + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "{count=" + count() + ", mean=" + mean() + ", p50=" + percentile(50) + ", p99=" + percentile(99) + ", max=" + max() + "}";
+    }
+}
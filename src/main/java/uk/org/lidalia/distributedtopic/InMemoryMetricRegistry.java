@@ -0,0 +1,78 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Keeps metrics in memory, to be read through this registry.
+ */
+public class InMemoryMetricRegistry implements MetricRegistry {
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+    @Override
+    public Counter counter(String name) {
+        final Counter existing = counters.get(checkNotNull(name));
+        if (existing != null) {
+            return existing;
+        }
+        final Counter created = new Counter();
+        final Counter raced = counters.putIfAbsent(name, created);
+        if (raced != null) {
+            return raced;
+        }
+        registered(name, created);
+        return created;
+    }
+
+    @Override
+    public Histogram histogram(String name) {
+        final Histogram existing = histograms.get(checkNotNull(name));
+        if (existing != null) {
+            return existing;
+        }
+        final Histogram created = new Histogram();
+        final Histogram raced = histograms.putIfAbsent(name, created);
+        if (raced != null) {
+            return raced;
+        }
+        registered(name, created);
+        return created;
+    }
+
+    @Override
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(checkNotNull(name), checkNotNull(gauge));
+        registered(name, gauge);
+    }
+
+    /**
+     * Called once for each new counter or histogram, and for each gauge, so that a subclass can publish it.
+     */
+    protected void registered(String name, Counter counter) {
+    }
+
+    protected void registered(String name, Histogram histogram) {
+    }
+
+    protected void registered(String name, Gauge gauge) {
+    }
+
+    public ImmutableMap<String, Counter> counters() {
+        return ImmutableMap.copyOf(counters);
+    }
+
+    public ImmutableMap<String, Histogram> histograms() {
+        return ImmutableMap.copyOf(histograms);
+    }
+
+    public ImmutableMap<String, Gauge> gauges() {
+        return ImmutableMap.copyOf(gauges);
+    }
+}
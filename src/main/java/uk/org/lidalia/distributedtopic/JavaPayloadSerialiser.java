@@ -0,0 +1,71 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Throwables.propagate;
+
+/**
+ * Serialises payloads with Java serialisation, so any {@link java.io.Serializable} payload can be stored. All instances
+ * are equal, whatever type they are declared to read.
+ */
+public class JavaPayloadSerialiser<T> implements PayloadSerialiser<T> {
+
+    @Override
+    public void serialise(T payload, final ByteBuffer out) {
+        try (ObjectOutputStream objects = new ObjectOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                out.put((byte) b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+                out.put(bytes, offset, length);
+            }
+        })) {
+            objects.writeObject(payload);
+        } catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T deserialise(final ByteBuffer bytes) {
+        try (ObjectInputStream objects = new ObjectInputStream(new InputStream() {
+            @Override
+            public int read() {
+                return bytes.hasRemaining() ? bytes.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                if (!bytes.hasRemaining()) {
+                    return -1;
+                }
+                final int read = Math.min(length, bytes.remaining());
+                bytes.get(buffer, offset, read);
+                return read;
+            }
+        })) {
+            return (T) objects.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw propagate(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o != null && getClass() == o.getClass();
+    }
+
+    @Override
+    public int hashCode() {
+        return getClass().hashCode();
+    }
+}
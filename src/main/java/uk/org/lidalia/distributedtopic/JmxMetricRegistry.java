@@ -0,0 +1,162 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.base.Throwables.propagate;
+
+/**
+ * Publishes each metric as an MXBean on the platform MBean server, named
+ * {@code uk.org.lidalia.distributedtopic:<scope>,name=<metric>}. The MBeans hold on to whatever their metrics read,
+ * such as the node a gauge reports on, so a registry should be {@link #close() closed} once that is finished with; a
+ * {@link TopicNode} closes its registry when it is closed. Each scope should name one thing in the process: publishing
+ * a name that another registry has published and not yet closed fails rather than taking it over.
+ */
+public class JmxMetricRegistry extends InMemoryMetricRegistry implements Closeable {
+
+    private static final String DOMAIN = "uk.org.lidalia.distributedtopic";
+
+    private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    private final String scope;
+    private final Set<ObjectName> published = Collections.newSetFromMap(new ConcurrentHashMap<ObjectName, Boolean>());
+
+    /**
+     * @return a registry for the metrics of the given node, scoped {@code type=TopicNode,node=<id>}
+     */
+    public static JmxMetricRegistry forNode(NodeId nodeId) {
+        return new JmxMetricRegistry("type=TopicNode,node=" + nodeId.getId());
+    }
+
+    /**
+     * @return a registry for the metrics of the given node's topic on a {@link TopicHost}, scoped
+     *         {@code type=TopicNode,node=<id>,topic=<name>}
+     */
+    public static JmxMetricRegistry forTopic(NodeId nodeId, String topic) {
+        return new JmxMetricRegistry("type=TopicNode,node=" + nodeId.getId() + ",topic=" + ObjectName.quote(topic));
+    }
+
+    /**
+     * @param scope the key properties naming whatever the metrics belong to, such as {@code type=TopicNode,node=1}
+     */
+    public JmxMetricRegistry(String scope) {
+        this.scope = checkNotNull(scope);
+    }
+
+    @Override
+    protected void registered(String name, final Counter counter) {
+        publish(name, new StandardMBean(new CounterMXBean() {
+            @Override
+            public long getCount() {
+                return counter.count();
+            }
+        }, CounterMXBean.class, true));
+    }
+
+    @Override
+    protected void registered(String name, final Histogram histogram) {
+        publish(name, new StandardMBean(new HistogramMXBean() {
+            @Override
+            public long getCount() {
+                return histogram.count();
+            }
+
+            @Override
+            public double getMean() {
+                return histogram.mean();
+            }
+
+            @Override
+            public long getMax() {
+                return histogram.max();
+            }
+
+            @Override
+            public long get50thPercentile() {
+                return histogram.percentile(50);
+            }
+
+            @Override
+            public long get95thPercentile() {
+                return histogram.percentile(95);
+            }
+
+            @Override
+            public long get99thPercentile() {
+                return histogram.percentile(99);
+            }
+        }, HistogramMXBean.class, true));
+    }
+
+    @Override
+    protected void registered(String name, final Gauge gauge) {
+        publish(name, new StandardMBean(new GaugeMXBean() {
+            @Override
+            public long getValue() {
+                return gauge.value();
+            }
+        }, GaugeMXBean.class, true));
+    }
+
+    /**
+     * @throws IllegalStateException if another registry has published the same name
+     */
+    private void publish(String name, StandardMBean mBean) {
+        try {
+            final ObjectName objectName = new ObjectName(DOMAIN + ":" + scope + ",name=" + ObjectName.quote(name));
+            if (published.contains(objectName)) {
+                server.unregisterMBean(objectName);
+            } else {
+                checkState(!server.isRegistered(objectName), "%s is already published by another registry", objectName);
+            }
+            server.registerMBean(mBean, objectName);
+            published.add(objectName);
+        } catch (JMException e) {
+            throw propagate(e);
+        }
+    }
+
+    /**
+     * Unregisters every MBean this registry has published. Its metrics can still be read through the registry.
+     */
+    @Override
+    public void close() {
+        for (ObjectName objectName : published) {
+            try {
+                server.unregisterMBean(objectName);
+            } catch (InstanceNotFoundException e) {
+                // unregistered by someone else
+            } catch (JMException e) {
+                throw propagate(e);
+            }
+            published.remove(objectName);
+        }
+    }
+
+    public interface CounterMXBean {
+        long getCount();
+    }
+
+    public interface HistogramMXBean {
+        long getCount();
+        double getMean();
+        long getMax();
+        long get50thPercentile();
+        long get95thPercentile();
+        long get99thPercentile();
+    }
+
+    public interface GaugeMXBean {
+        long getValue();
+    }
+}
@@ -0,0 +1,11 @@
+package uk.org.lidalia.distributedtopic;
+
+import org.joda.time.Duration;
+
+/**
+ * The simulated time taken for a delivery to travel across a link.
+ */
+public interface LatencyDistribution {
+
+    Duration sample();
+}
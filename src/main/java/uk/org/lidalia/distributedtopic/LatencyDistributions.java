@@ -0,0 +1,72 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.Random;
+
+import org.joda.time.Duration;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+public final class LatencyDistributions {
+
+    private static final Random random = new Random();
+
+    private LatencyDistributions() {
+        throw new UnsupportedOperationException("Not instantiable.");
+    }
+
+    public static LatencyDistribution fixed(final Duration latency) {
+        checkNotNull(latency);
+        return new LatencyDistribution() {
+            @Override
+            public Duration sample() {
+                return latency;
+            }
+        };
+    }
+
+    /**
+     * @return latencies evenly spread from min (inclusive) to max (exclusive)
+     */
+    public static LatencyDistribution uniform(final Duration min, final Duration max) {
+        return uniform(min, max, random);
+    }
+
+    /**
+     * @return latencies evenly spread from min (inclusive) to max (exclusive), drawn from the given source
+     */
+    public static LatencyDistribution uniform(final Duration min, final Duration max, final Random random) {
+        checkNotNull(random);
+        checkArgument(max.isLongerThan(min), "max %s must be longer than min %s", max, min);
+        final int range = (int) (max.getMillis() - min.getMillis());
+        return new LatencyDistribution() {
+            @Override
+            public Duration sample() {
+                return min.plus(random.nextInt(range));
+            }
+        };
+    }
+
+    /**
+     * @return normally distributed latencies, never less than zero
+     */
+    public static LatencyDistribution normal(final Duration mean, final Duration standardDeviation) {
+        return normal(mean, standardDeviation, random);
+    }
+
+    /**
+     * @return normally distributed latencies, never less than zero, drawn from the given source
+     */
+    public static LatencyDistribution normal(final Duration mean, final Duration standardDeviation, final Random random) {
+        checkNotNull(random);
+        checkNotNull(mean);
+        checkNotNull(standardDeviation);
+        return new LatencyDistribution() {
+            @Override
+            public Duration sample() {
+                long millis = mean.getMillis() + Math.round(random.nextGaussian() * standardDeviation.getMillis());
+                return Duration.millis(Math.max(0, millis));
+            }
+        };
+    }
+}
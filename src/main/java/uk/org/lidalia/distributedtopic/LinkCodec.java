@@ -0,0 +1,44 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.nio.ByteBuffer;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Encodes or decodes the messages travelling one way along one link, each against the clock of the message before
+ * it. The node index is only sent when the set of nodes changes, and sequences are sent as differences from the
+ * previous clock. Messages must be decoded in the order they were encoded, by a separate instance at the far end.
+ * A heartbeat is taken as having the timestamp of the clock before it, as it is decoded with, so that both ends
+ * encode and decode the next timestamp against the same one.
+ */
+public class LinkCodec<T> {
+
+    private final MessageCodec<T> codec;
+    private SingleNodeVectorClock previous = null;
+
+    LinkCodec(MessageCodec<T> codec) {
+        this.codec = checkNotNull(codec);
+    }
+
+    public synchronized void encode(Message<?> message, ByteBuffer out) {
+        codec.encode(message, out, previous);
+        previous = MessageCodec.asDecoded(message, previous);
+    }
+
+    /**
+     * @return the clock the next message will be encoded against, to {@link #rewindTo} if encoding has to be retried
+     */
+    synchronized SingleNodeVectorClock mark() {
+        return previous;
+    }
+
+    synchronized void rewindTo(SingleNodeVectorClock mark) {
+        previous = mark;
+    }
+
+    public synchronized Message<T> decode(ByteBuffer in) {
+        final Message<T> message = codec.decode(in, previous);
+        previous = message.getVectorClock();
+        return message;
+    }
+}
@@ -1,28 +1,144 @@
 package uk.org.lidalia.distributedtopic;
 
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Optional;
+
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
-public class Message implements Comparable<Message> {
+/**
+ * A payload together with the clock of the node that stored it. A message that arrived encoded, over a transport or
+ * from a {@link MessageStore}, keeps its payload as the bytes it arrived in and only decodes them the first time
+ * {@link #get()} is called, so a message that is only relayed or stored is never decoded; its bytes are written out
+ * again as they are by any {@link MessageCodec} whose serialiser is equal to the one that wrote them.
+ * <p>
+ * A message, and a heartbeat, also carries the sequence of the message its node stored before it, so that a node
+ * receiving it can tell whether it holds every message from that node up to it. Sequences are not contiguous, since a
+ * node's sequence also moves when it receives or sends a heartbeat.
+ */
+public class Message<T> implements Comparable<Message<?>> {
 
-    private final Object value;
+    private static final Object heartbeat = new Object() {
+        @Override
+        public String toString() {
+            return "HEARTBEAT";
+        }
+    };
+
+    /**
+     * The payload, the heartbeat marker, or null until an encoded payload has been decoded.
+     */
+    private volatile Object value;
+    private final ByteBuffer encoded;
+    private final PayloadSerialiser<? extends T> serialiser;
     private final SingleNodeVectorClock vectorClock;
+    private final int previous;
+
+    /**
+     * A message made this way claims no previous message, so it is taken as following on from whatever was received
+     * from its node before it.
+     */
+    public Message(T value, SingleNodeVectorClock vectorClock) {
+        this(value, vectorClock, 0);
+    }
+
+    /**
+     * @param previous the sequence of the message the clock's node stored before this one, or 0 if there was none
+     */
+    Message(T value, SingleNodeVectorClock vectorClock, int previous) {
+        this(checkNotNull(value), null, null, vectorClock, previous);
+    }
 
-    public Message(Object value, SingleNodeVectorClock vectorClock) {
-        this.value = checkNotNull(value);
+    private Message(Object value, ByteBuffer encoded, PayloadSerialiser<? extends T> serialiser, SingleNodeVectorClock vectorClock,
+                    int previous) {
+        this.value = value;
+        this.encoded = encoded;
+        this.serialiser = serialiser;
         this.vectorClock = checkNotNull(vectorClock);
+        checkArgument(previous == 0 || previous > 0 && previous < vectorClock.sequenceForDefiningNode(),
+                "Previous message %s is not before %s", previous, vectorClock);
+        this.previous = previous;
     }
 
-    public Object get() {
-        return value;
+    /**
+     * @param encoded exactly the bytes of the payload, which the message keeps without copying
+     * @return a message whose payload is decoded by the given serialiser when it is first asked for
+     */
+    static <T> Message<T> encoded(ByteBuffer encoded, PayloadSerialiser<? extends T> serialiser, SingleNodeVectorClock vectorClock,
+                                  int previous) {
+        return new Message<>(null, checkNotNull(encoded).asReadOnlyBuffer(), checkNotNull(serialiser), vectorClock, previous);
+    }
+
+    /**
+     * @return a message carrying nothing but its clock, which tells peers what its node has received without being
+     *         kept by any of them
+     */
+    static <T> Message<T> heartbeat(SingleNodeVectorClock vectorClock) {
+        return heartbeat(vectorClock, 0);
+    }
+
+    /**
+     * @param previous the sequence of the last message the clock's node stored before the heartbeat, or 0 if none
+     */
+    static <T> Message<T> heartbeat(SingleNodeVectorClock vectorClock, int previous) {
+        return new Message<>(heartbeat, null, null, vectorClock, previous);
+    }
+
+    /**
+     * @return a message that stands for a position in the order of messages rather than carrying anything
+     */
+    static <T> Message<T> marker(Object marker, SingleNodeVectorClock vectorClock) {
+        return new Message<>(checkNotNull(marker), null, null, vectorClock, 0);
+    }
+
+    boolean isHeartbeat() {
+        return value == heartbeat;
+    }
+
+    /**
+     * @return the payload, decoding it if this is the first time it has been asked for
+     */
+    @SuppressWarnings("unchecked")
+    public T get() {
+        Object current = value;
+        if (current == null) {
+            current = serialiser.deserialise(encoded.duplicate());
+            value = current;
+        }
+        return (T) current;
+    }
+
+    boolean isDecoded() {
+        return value != null;
+    }
+
+    /**
+     * @return the payload as it arrived, if it arrived encoded by a serialiser equal to the given one
+     */
+    Optional<ByteBuffer> encodedBy(PayloadSerialiser<?> serialiser) {
+        if (encoded != null && this.serialiser.equals(serialiser)) {
+            return Optional.of(encoded.duplicate());
+        } else {
+            return Optional.absent();
+        }
     }
 
     public SingleNodeVectorClock getVectorClock() {
         return vectorClock;
     }
 
+    /**
+     * @return the sequence of the message the clock's node stored before this one, or 0 if there was none or it is not
+     *         known
+     */
+    int getPrevious() {
+        return previous;
+    }
+
     @Override
-    public int compareTo(Message o) {
-        return vectorClock.compareTo(o.vectorClock);
+    public int compareTo(Message<?> o) {
+        return this == o ? 0 : vectorClock.compareTo(o.vectorClock);
     }
 
     @Override
@@ -30,7 +146,7 @@ public class Message implements Comparable<Message> {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
 
-        Message message = (Message) o;
+        Message<?> message = (Message<?>) o;
 
         return vectorClock.equals(message.vectorClock);
 
@@ -43,7 +159,25 @@ public class Message implements Comparable<Message> {
 
     @Override
     public String toString() {
-        return "{"+value +", "+vectorClock.getNodeId()+", "+vectorClock+'}';
+        final Object payload = isDecoded() ? value : encoded.remaining() + " encoded bytes";
+        return "{"+payload +", "+vectorClock.getNodeId()+", "+vectorClock+'}';
+    }
+
+    /**
+     * @return a rough estimate of the heap this message occupies, for reporting rather than accounting
+     */
+    int estimatedSize() {
+        return 48 + vectorClock.estimatedSize() + (isDecoded() ? estimatedSizeOf(value) : 16 + encoded.remaining());
+    }
+
+    private static int estimatedSizeOf(Object value) {
+        if (value instanceof CharSequence) {
+            return 40 + 2 * ((CharSequence) value).length();
+        } else if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        } else {
+            return 16;
+        }
     }
 
     boolean isBefore(SingleNodeVectorClock clock) {
@@ -0,0 +1,304 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSortedMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.Arrays.asList;
+import static uk.org.lidalia.distributedtopic.Varints.readVarint;
+import static uk.org.lidalia.distributedtopic.Varints.readVarlong;
+import static uk.org.lidalia.distributedtopic.Varints.unZigZag;
+import static uk.org.lidalia.distributedtopic.Varints.writeVarint;
+import static uk.org.lidalia.distributedtopic.Varints.writeVarlong;
+import static uk.org.lidalia.distributedtopic.Varints.zigZag;
+
+/**
+ * Encodes a {@link Message} and its clock as compact bytes, with the payload written by a {@link PayloadSerialiser}.
+ * <p>
+ * An encoded message is a flags byte, the position of the defining node in the clock's node index, then either the
+ * node ids and every sequence as varints, followed if any nodes have departed by their ids and final sequences, or -
+ * when encoded against a previous clock over the same node set - only what has changed since that clock. That is
+ * the zig-zagged difference from each of its sequences, which is usually one byte each, or, when few have changed,
+ * as when the previous message on a link was from the same origin, just the number changed and the position and
+ * difference of each. The timestamp the origin gave the clock comes next, in full or as the zig-zagged difference from
+ * the previous clock's, so that a decoded message carries the origin's timestamp rather than the time it was
+ * decoded. Unless the message claims no previous message from its node, the distance back to it follows, flagged as
+ * present. The payload follows, prefixed by its length. A heartbeat, flagged as such, has neither timestamp nor
+ * payload; nothing reads a heartbeat's timestamp, so it is decoded with the previous clock's, or none. Messages
+ * encoded by this class alone are self contained; use a {@link LinkCodec} to encode each message against the previous
+ * one on a link.
+ * <p>
+ * A clock decoded against a previous clock shares that clock's sequences, holding only those that differ.
+ * <p>
+ * Decoded messages keep their payloads as slices of the buffer they were decoded from, to be deserialised only if
+ * they are read, so that buffer must not be reused while they are in use. A payload still held as the bytes written by
+ * an equal serialiser is copied out again as it is.
+ */
+public class MessageCodec<T> {
+
+    private static final byte NODES = 1;
+    private static final byte DELTA = 2;
+    private static final byte HEARTBEAT = 4;
+    private static final byte DEPARTED = 8;
+    private static final byte SPARSE = 16;
+    private static final byte PREVIOUS = 32;
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    private final PayloadSerialiser<T> payloadSerialiser;
+
+    public MessageCodec(PayloadSerialiser<T> payloadSerialiser) {
+        this.payloadSerialiser = checkNotNull(payloadSerialiser);
+    }
+
+    /**
+     * @return a new buffer holding the self contained encoding of the message, ready to be read
+     */
+    public ByteBuffer encode(Message<?> message) {
+        int size = INITIAL_BUFFER_SIZE;
+        while (true) {
+            final ByteBuffer encoded = ByteBuffer.allocate(size);
+            try {
+                encode(message, encoded);
+                encoded.flip();
+                return encoded;
+            } catch (BufferOverflowException e) {
+                size *= 2;
+            }
+        }
+    }
+
+    /**
+     * Writes the self contained encoding of the message at the buffer's position.
+     *
+     * @param message a message whose payload is a {@code T}, or is still encoded by a serialiser equal to this codec's
+     */
+    public void encode(Message<?> message, ByteBuffer out) {
+        encode(message, out, null);
+    }
+
+    /**
+     * Reads one self contained message, leaving the buffer positioned after it.
+     */
+    public Message<T> decode(ByteBuffer in) {
+        return decode(in, null);
+    }
+
+    public LinkCodec<T> forLink() {
+        return new LinkCodec<>(this);
+    }
+
+    /**
+     * @param previous the clock to encode against, or null to encode the clock in full
+     */
+    @SuppressWarnings("unchecked")
+    void encode(Message<?> message, ByteBuffer out, SingleNodeVectorClock previous) {
+        final boolean heartbeat = message.isHeartbeat();
+        final SingleNodeVectorClock clock = message.getVectorClock();
+        final boolean follows = message.getPrevious() != 0;
+        encodeClock(clock, out, previous, (heartbeat ? HEARTBEAT : 0) | (follows ? PREVIOUS : 0));
+        if (follows) {
+            writeVarint(out, clock.sequenceForDefiningNode() - message.getPrevious());
+        }
+        if (heartbeat) {
+            return;
+        }
+        final int lengthPosition = out.position();
+        out.putInt(0);
+        final Optional<ByteBuffer> encoded = message.encodedBy(payloadSerialiser);
+        if (encoded.isPresent()) {
+            out.put(encoded.get());
+        } else {
+            payloadSerialiser.serialise((T) message.get(), out);
+        }
+        out.putInt(lengthPosition, out.position() - lengthPosition - 4);
+    }
+
+    /**
+     * Writes a clock on its own, self contained, to be read back with {@link #decodeClock(ByteBuffer)}.
+     */
+    void encodeClock(SingleNodeVectorClock clock, ByteBuffer out) {
+        encodeClock(clock, out, null, 0);
+    }
+
+    private void encodeClock(SingleNodeVectorClock clock, ByteBuffer out, SingleNodeVectorClock previous, int extraFlags) {
+        final NodeIndex index = clock.getIndex();
+        final boolean delta = previous != null && previous.getIndex().sameNodesAs(index);
+        final boolean departed = !delta && !index.departed().isEmpty();
+        final int changes = delta ? changesBetween(previous, clock) : 0;
+        final boolean sparse = delta && 1 + 2 * changes < index.size();
+        out.put((byte) ((delta ? DELTA : NODES) | (sparse ? SPARSE : 0) | (departed ? DEPARTED : 0) | extraFlags));
+        writeVarint(out, index.indexOf(clock.getNodeId()));
+        if (sparse) {
+            writeVarint(out, changes);
+            int previousPosition = 0;
+            for (int i = 0; i < index.size(); i++) {
+                final int difference = clock.sequenceAt(i) - previous.sequenceAt(i);
+                if (difference != 0) {
+                    writeVarint(out, i - previousPosition);
+                    writeVarint(out, zigZag(difference));
+                    previousPosition = i;
+                }
+            }
+        } else if (delta) {
+            for (int i = 0; i < index.size(); i++) {
+                writeVarint(out, zigZag(clock.sequenceAt(i) - previous.sequenceAt(i)));
+            }
+        } else {
+            writeVarint(out, index.size());
+            int previousId = 0;
+            for (int i = 0; i < index.size(); i++) {
+                final int id = index.get(i).getId();
+                writeVarint(out, zigZag(id - previousId));
+                previousId = id;
+            }
+            for (int i = 0; i < index.size(); i++) {
+                writeVarint(out, clock.sequenceAt(i));
+            }
+            if (departed) {
+                writeVarint(out, index.departed().size());
+                previousId = 0;
+                for (Map.Entry<NodeId, Integer> entry : index.departed().entrySet()) {
+                    final int id = entry.getKey().getId();
+                    writeVarint(out, zigZag(id - previousId));
+                    writeVarint(out, entry.getValue());
+                    previousId = id;
+                }
+            }
+        }
+        if ((extraFlags & HEARTBEAT) == 0) {
+            final long timestamp = clock.getTimestamp().getMillis();
+            writeVarlong(out, delta ? zigZag(timestamp - previous.getTimestamp().getMillis()) : timestamp);
+        }
+    }
+
+    /**
+     * @return the clock as it will be decoded as part of the given message, so with the timestamp it is sent with
+     */
+    static SingleNodeVectorClock asDecoded(Message<?> message, SingleNodeVectorClock previous) {
+        final SingleNodeVectorClock clock = message.getVectorClock();
+        return message.isHeartbeat() ? clock.withTimestamp(timestampOf(previous)) : clock;
+    }
+
+    private static long timestampOf(SingleNodeVectorClock previous) {
+        return previous == null ? 0 : previous.getTimestamp().getMillis();
+    }
+
+    private static int changesBetween(SingleNodeVectorClock previous, SingleNodeVectorClock clock) {
+        int changes = 0;
+        for (int i = 0; i < clock.getIndex().size(); i++) {
+            if (clock.sequenceAt(i) != previous.sequenceAt(i)) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    Message<T> decode(ByteBuffer in, SingleNodeVectorClock previous) {
+        final byte flags = in.get(in.position());
+        final SingleNodeVectorClock clock = decodeClock(in, previous);
+        final int previousMessage = (flags & PREVIOUS) != 0 ? clock.sequenceForDefiningNode() - readVarint(in) : 0;
+        if ((flags & HEARTBEAT) != 0) {
+            return Message.heartbeat(clock, previousMessage);
+        }
+        final int payloadLength = in.getInt();
+        final ByteBuffer payload = in.slice();
+        payload.limit(payloadLength);
+        in.position(in.position() + payloadLength);
+        return Message.encoded(payload, payloadSerialiser, clock, previousMessage);
+    }
+
+    /**
+     * Reads only the clock of a self contained message, leaving the buffer positioned after it, or a clock
+     * written by {@link #encodeClock(SingleNodeVectorClock, ByteBuffer)}.
+     */
+    SingleNodeVectorClock decodeClock(ByteBuffer in) {
+        return decodeClock(in, null);
+    }
+
+    private SingleNodeVectorClock decodeClock(ByteBuffer in, SingleNodeVectorClock previous) {
+        final byte flags = in.get();
+        final int position = readVarint(in);
+        if ((flags & DELTA) != 0) {
+            checkNotNull(previous, "Delta encoded clock with no previous clock");
+            return (flags & SPARSE) != 0 ? decodeSparse(in, position, previous, flags) : decodeDelta(in, position, previous, flags);
+        } else {
+            return decodeNodes(in, position, flags);
+        }
+    }
+
+    private static SingleNodeVectorClock decodeSparse(ByteBuffer in, int position, SingleNodeVectorClock previous, byte flags) {
+        final int[] positions = new int[readVarint(in)];
+        final int[] sequences = new int[positions.length];
+        int changedPosition = 0;
+        for (int i = 0; i < positions.length; i++) {
+            changedPosition += readVarint(in);
+            positions[i] = changedPosition;
+            sequences[i] = previous.sequenceAt(changedPosition) + unZigZag(readVarint(in));
+        }
+        return previous.changed(previous.getIndex().get(position), positions, sequences, SingleNodeVectorClock.systemClock,
+                timestamp(in, previous, flags));
+    }
+
+    private static SingleNodeVectorClock decodeDelta(ByteBuffer in, int position, SingleNodeVectorClock previous, byte flags) {
+        final int size = previous.getIndex().size();
+        final int[] positions = new int[size];
+        final int[] sequences = new int[size];
+        int changes = 0;
+        for (int i = 0; i < size; i++) {
+            final int difference = unZigZag(readVarint(in));
+            if (difference != 0) {
+                positions[changes] = i;
+                sequences[changes++] = previous.sequenceAt(i) + difference;
+            }
+        }
+        return previous.changed(previous.getIndex().get(position), Arrays.copyOf(positions, changes),
+                Arrays.copyOf(sequences, changes), SingleNodeVectorClock.systemClock, timestamp(in, previous, flags));
+    }
+
+    /**
+     * @param previous the clock a delta was encoded against, or null if the clock was encoded in full
+     */
+    private static long timestamp(ByteBuffer in, SingleNodeVectorClock previous, byte flags) {
+        if ((flags & HEARTBEAT) != 0) {
+            return timestampOf(previous);
+        } else if (previous == null) {
+            return readVarlong(in);
+        } else {
+            return previous.getTimestamp().getMillis() + unZigZag(readVarlong(in));
+        }
+    }
+
+    private static SingleNodeVectorClock decodeNodes(ByteBuffer in, int position, byte flags) {
+        final int size = readVarint(in);
+        final NodeId[] nodeIds = new NodeId[size];
+        int id = 0;
+        for (int i = 0; i < size; i++) {
+            id += unZigZag(readVarint(in));
+            nodeIds[i] = new NodeId(id);
+        }
+        final int[] sequences = new int[size];
+        for (int i = 0; i < size; i++) {
+            sequences[i] = readVarint(in);
+        }
+        final NodeIndex index = NodeIndex.of(asList(nodeIds),
+                (flags & DEPARTED) != 0 ? decodeDeparted(in) : ImmutableSortedMap.<NodeId, Integer>of());
+        return new SingleNodeVectorClock(index.get(position), index, sequences, SingleNodeVectorClock.systemClock,
+                timestamp(in, null, flags));
+    }
+
+    private static ImmutableSortedMap<NodeId, Integer> decodeDeparted(ByteBuffer in) {
+        final int size = readVarint(in);
+        final ImmutableSortedMap.Builder<NodeId, Integer> departed = ImmutableSortedMap.naturalOrder();
+        int id = 0;
+        for (int i = 0; i < size; i++) {
+            id += unZigZag(readVarint(in));
+            departed.put(new NodeId(id), readVarint(in));
+        }
+        return departed.build();
+    }
+}
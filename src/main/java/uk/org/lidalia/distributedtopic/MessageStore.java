@@ -0,0 +1,49 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.io.Closeable;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Where a {@link TopicNode} keeps its messages beyond the lifetime of the process. The node still serves reads from
+ * memory; the store is written to as messages arrive and read back when the node starts.
+ */
+public interface MessageStore<T> extends Closeable {
+
+    /**
+     * Returns once the message is durable.
+     */
+    void append(Message<T> message);
+
+    /**
+     * @return every message held, other than any heartbeats, in the order they were appended
+     */
+    ImmutableList<Message<T>> recover();
+
+    /**
+     * @return the clock of the most recently appended message from each origin node
+     */
+    ImmutableMap<NodeId, SingleNodeVectorClock> latestClocks();
+
+    /**
+     * Returns once it is durable that the node may have used every sequence up to the given one, as it does for the
+     * heartbeats it sends without appending them, so that the clock it recovers is never behind one its peers have
+     * already seen.
+     */
+    void reserveSequencesUpTo(int sequence);
+
+    /**
+     * @return the highest sequence reserved, or 0 if none has been
+     */
+    int reservedSequences();
+
+    /**
+     * Allows the store to drop messages that are not after the given clock, because the node has discarded them. They
+     * are not returned by {@link #recover()} again, whether or not the store has yet dropped them.
+     */
+    void discardUpTo(SingleNodeVectorClock clock);
+
+    @Override
+    void close();
+}
@@ -0,0 +1,14 @@
+package uk.org.lidalia.distributedtopic;
+
+/**
+ * Where a {@link TopicNode} and its {@link Synchroniser} report what they are doing. Asking for a counter or histogram
+ * by a name already asked for returns the same one; registering a gauge under a name already used replaces it.
+ */
+public interface MetricRegistry {
+
+    Counter counter(String name);
+
+    Histogram histogram(String name);
+
+    void gauge(String name, Gauge gauge);
+}
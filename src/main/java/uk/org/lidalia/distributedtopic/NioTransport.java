@@ -0,0 +1,770 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.Duration;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Throwables.propagate;
+import static uk.org.lidalia.distributedtopic.Varints.readVarint;
+import static uk.org.lidalia.distributedtopic.Varints.writeVarint;
+
+/**
+ * Synchronises {@link TopicNode}s in different processes over TCP, with every connection served by one selector
+ * thread.
+ * <p>
+ * Each delivery to a peer becomes one frame: its length, a type byte, the name of the topic, the number of messages,
+ * then the messages encoded with a {@link LinkCodec} for the connection. An anti-entropy request is a frame of its own
+ * holding just the topic and the requesting node's clock, answered by the receiving node over its own connection back.
+ * Frames queued for a peer are encoded when the socket can take them and written together in one gathering write.
+ * While the socket buffer is full, frames wait and are reported by {@link Peer#queued()}, so the {@link Synchroniser}
+ * and the node can see the peer is falling behind. A broken connection is re-established after a delay, and any frame
+ * not completely written is sent again on the new connection; the receiving node ignores messages it already holds.
+ * Frames already handed to the socket when it broke are not sent again and may be lost with it; the receiving node
+ * finds the messages missing from their origin and asks for them again by anti-entropy.
+ * <p>
+ * Frames are decoded on the selector thread, but the messages and requests in them are handed to the receiving node's
+ * executor, in the order they arrived on the connection, so that a node slow to store what it receives holds up no
+ * other connection. A connection stops being read while {@value #MAX_FRAMES_HANDING_OFF} of its frames are waiting
+ * for their nodes, leaving the sender's socket to fill and its frames to queue, so a slow node pushes back on the
+ * peers sending to it. A connection carrying several topics is held back by the slowest of them.
+ * <p>
+ * A frame longer than the maximum frame size is refused: the receiving end closes a connection that sends one, and
+ * the sending end drops a delivery that encodes to one, as it does one whose payloads cannot be serialised, reporting
+ * it rather than sending it again. Any other failure handling a connection, such as a frame that cannot be decoded,
+ * closes that connection alone; a node failing to apply what it was handed reports it and carries on.
+ * <p>
+ * A connection made with {@link #connectHost(NodeId, InetSocketAddress)} carries every topic shared with a
+ * {@link TopicHost}, so the frames of all of them, heartbeats included, go out in the same writes.
+ */
+public class NioTransport implements Closeable {
+
+    private static final byte MESSAGES = 0;
+    private static final byte MISSING = 1;
+    private static final String DEFAULT_TOPIC = "";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_FRAME_SIZE = 4 * 1024;
+    private static final int MAX_FRAMES_PER_WRITE = 64;
+    private static final int MAX_FRAMES_HANDING_OFF = 64;
+    private static final Duration DEFAULT_RECONNECT_DELAY = Duration.millis(500);
+    private static final int DEFAULT_MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    private final MessageCodec<?> codec;
+    private final Duration reconnectDelay;
+    private final int maxFrameBytes;
+    private final Selector selector;
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor();
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+
+    public NioTransport(MessageCodec<?> codec) {
+        this(codec, DEFAULT_RECONNECT_DELAY);
+    }
+
+    public NioTransport(MessageCodec<?> codec, Duration reconnectDelay) {
+        this(codec, reconnectDelay, DEFAULT_MAX_FRAME_BYTES);
+    }
+
+    /**
+     * @param maxFrameBytes the length of the longest frame this transport will send or accept
+     */
+    public NioTransport(MessageCodec<?> codec, Duration reconnectDelay, int maxFrameBytes) {
+        checkArgument(maxFrameBytes > 0 && maxFrameBytes <= Integer.MAX_VALUE - 4, "maxFrameBytes must be positive, was %s", maxFrameBytes);
+        this.codec = checkNotNull(codec);
+        this.reconnectDelay = checkNotNull(reconnectDelay);
+        this.maxFrameBytes = maxFrameBytes;
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw propagate(e);
+        }
+        this.selectorThread = new ThreadFactoryBuilder().setNameFormat("nio-transport-%d").build().newThread(new Runnable() {
+            @Override
+            public void run() {
+                select();
+            }
+        });
+        selectorThread.start();
+    }
+
+    /**
+     * Accepts connections on the given address and syncs every message received on them into the node, whatever
+     * topic it was sent on.
+     *
+     * @return the address actually bound, which differs from the one given if it had port 0
+     */
+    public InetSocketAddress listen(InetSocketAddress address, final TopicNode<?> node) {
+        checkNotNull(node);
+        return listen(address, new Router() {
+            @Override
+            public Optional<TopicNode<?>> route(String topic) {
+                return Optional.<TopicNode<?>>of(node);
+            }
+        });
+    }
+
+    /**
+     * Accepts connections on the given address and syncs every message received on them into the host's node for its
+     * topic. Messages for a topic the host does not have are dropped; once it does, anti-entropy asks for them again.
+     *
+     * @return the address actually bound, which differs from the one given if it had port 0
+     */
+    public InetSocketAddress listen(InetSocketAddress address, final TopicHost host) {
+        checkNotNull(host);
+        return listen(address, new Router() {
+            @Override
+            public Optional<TopicNode<?>> route(String topic) {
+                return host.existingTopic(topic);
+            }
+        });
+    }
+
+    private InetSocketAddress listen(InetSocketAddress address, final Router router) {
+        try {
+            final ServerSocketChannel server = ServerSocketChannel.open();
+            server.configureBlocking(false);
+            server.bind(address);
+            onSelectorThread(new Runnable() {
+                @Override
+                public void run() {
+                    register(server, SelectionKey.OP_ACCEPT, new Acceptor(server, router));
+                }
+            });
+            return (InetSocketAddress) server.getLocalAddress();
+        } catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    /**
+     * @return a peer that sends to the node listening on the given address; pass it to {@link TopicNode#syncWith(Peer)}
+     */
+    public Peer connect(NodeId id, InetSocketAddress address) {
+        return connectHost(id, address).topic(DEFAULT_TOPIC);
+    }
+
+    /**
+     * @return the host listening on the given address, reached over a single connection shared by every topic; pass
+     *         it to {@link TopicHost#syncWith(RemoteHost)}
+     */
+    public RemoteHost connectHost(NodeId id, InetSocketAddress address) {
+        final Connection connection = new Connection(id, address);
+        onSelectorThread(new Runnable() {
+            @Override
+            public void run() {
+                connection.connect();
+            }
+        });
+        return connection;
+    }
+
+    private void select() {
+        try {
+            while (running) {
+                selector.select();
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+                final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    final Handler handler = (Handler) key.attachment();
+                    try {
+                        if (key.isValid()) {
+                            handler.ready(key);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        handler.failed(e);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void onSelectorThread(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    private SelectionKey register(SelectableChannel channel, int ops, Handler handler) {
+        try {
+            return channel.register(selector, ops, handler);
+        } catch (IOException e) {
+            handler.failed(e);
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        reconnector.shutdownNow();
+        selector.wakeup();
+        try {
+            selectorThread.join();
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            throw propagate(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private interface Router {
+
+        Optional<TopicNode<?>> route(String topic);
+    }
+
+    private interface Handler {
+
+        void ready(SelectionKey key) throws IOException;
+
+        /**
+         * Called on the selector thread when handling the channel fails, whether in its IO or in what was read.
+         */
+        void failed(Exception e);
+    }
+
+    private class Acceptor implements Handler {
+
+        private final ServerSocketChannel server;
+        private final Router router;
+
+        private Acceptor(ServerSocketChannel server, Router router) {
+            this.server = server;
+            this.router = router;
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            final SocketChannel channel = server.accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                register(channel, SelectionKey.OP_READ, new Inbound(channel, router));
+            }
+        }
+
+        @Override
+        public void failed(Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Reads frames from one accepted connection and hands them to the node for their topic in the order they arrive.
+     * Messages for every topic are decoded in turn, whether or not the topic is known here, since the
+     * {@link LinkCodec} encodes each message against the one before it on the connection.
+     */
+    private class Inbound implements Handler {
+
+        private final SocketChannel channel;
+        private final Router router;
+        private final LinkCodec<?> decoder = codec.forLink();
+        private final Map<TopicNode<?>, HandOff> handOffs = new HashMap<>();
+        private final AtomicInteger handingOff = new AtomicInteger();
+        private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        private Inbound(SocketChannel channel, Router router) {
+            this.channel = channel;
+            this.router = router;
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            final int read = channel.read(buffer);
+            buffer.flip();
+            while (buffer.remaining() >= 4 && buffer.remaining() >= 4 + frameLength()) {
+                final int length = buffer.getInt();
+                final ByteBuffer frame = copyFrame(length);
+                final byte type = frame.get();
+                final Optional<TopicNode<?>> node = router.route(readTopic(frame));
+                if (type == MISSING) {
+                    final SingleNodeVectorClock received = codec.decodeClock(frame);
+                    if (node.isPresent()) {
+                        handOff(key, node.get(), new Runnable() {
+                            @Override
+                            public void run() {
+                                node.get().sendMissing(received);
+                            }
+                        });
+                    }
+                } else {
+                    final ImmutableList<Message<?>> messages = decode(frame);
+                    if (node.isPresent()) {
+                        handOff(key, node.get(), new Runnable() {
+                            @Override
+                            public void run() {
+                                node.get().sync(messages);
+                            }
+                        });
+                    }
+                }
+            }
+            if (handingOff.get() >= MAX_FRAMES_HANDING_OFF) {
+                key.interestOps(0);
+            }
+            if (buffer.remaining() >= 4 && 4 + buffer.getInt(buffer.position()) > buffer.capacity()) {
+                final ByteBuffer larger = ByteBuffer.allocate(4 + buffer.getInt(buffer.position()));
+                larger.put(buffer);
+                buffer = larger;
+            } else {
+                buffer.compact();
+            }
+            if (read < 0) {
+                key.cancel();
+                channel.close();
+            }
+        }
+
+        private void handOff(SelectionKey key, TopicNode<?> node, Runnable task) {
+            HandOff handOff = handOffs.get(node);
+            if (handOff == null) {
+                handOff = new HandOff(node.executor(), key, handingOff);
+                handOffs.put(node, handOff);
+            }
+            handOff.add(task);
+        }
+
+        /**
+         * @return the length of the frame at the buffer's position, which holds at least its length
+         * @throws IOException if the length is not that of a frame this transport accepts
+         */
+        private int frameLength() throws IOException {
+            final int length = buffer.getInt(buffer.position());
+            if (length < 1 || length > maxFrameBytes) {
+                throw new IOException("Frame of " + length + " bytes from " + channel.getRemoteAddress()
+                        + ", where at most " + maxFrameBytes + " are accepted");
+            }
+            return length;
+        }
+
+        /**
+         * Copies the frame out of the read buffer, which is about to be reused, so that the payloads of the messages
+         * decoded from it can stay as slices of the copy until they are read.
+         */
+        private ByteBuffer copyFrame(int length) {
+            final ByteBuffer source = buffer.slice();
+            source.limit(length);
+            buffer.position(buffer.position() + length);
+            final ByteBuffer frame = ByteBuffer.allocate(length);
+            frame.put(source);
+            frame.flip();
+            return frame;
+        }
+
+        private ImmutableList<Message<?>> decode(ByteBuffer frame) {
+            final int count = readVarint(frame);
+            final ImmutableList.Builder<Message<?>> messages = ImmutableList.builder();
+            for (int i = 0; i < count; i++) {
+                messages.add(decoder.decode(frame));
+            }
+            return messages.build();
+        }
+
+        @Override
+        public void failed(Exception e) {
+            if (!(e instanceof IOException)) {
+                e.printStackTrace();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // already failing
+            }
+        }
+    }
+
+    /**
+     * Runs what one connection has read for one node on the node's executor, a task at a time in the order they were
+     * read, counting them against the connection and letting it be read again once few enough are left waiting.
+     */
+    private final class HandOff implements Runnable {
+
+        private final Executor executor;
+        private final SelectionKey key;
+        private final AtomicInteger handingOff;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger waiting = new AtomicInteger();
+
+        private HandOff(Executor executor, SelectionKey key, AtomicInteger handingOff) {
+            this.executor = executor;
+            this.key = key;
+            this.handingOff = handingOff;
+        }
+
+        private void add(Runnable task) {
+            tasks.add(task);
+            handingOff.incrementAndGet();
+            if (waiting.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // the node has been closed; anything read for it is dropped, and the connection read on
+                    handingOff.addAndGet(-tasks.size());
+                    tasks.clear();
+                    waiting.set(0);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            do {
+                try {
+                    tasks.remove().run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                if (handingOff.decrementAndGet() == MAX_FRAMES_HANDING_OFF - 1) {
+                    resumeReading();
+                }
+            } while (waiting.decrementAndGet() != 0);
+        }
+
+        private void resumeReading() {
+            onSelectorThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (key.isValid() && handingOff.get() < MAX_FRAMES_HANDING_OFF) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+            });
+        }
+    }
+
+    private static void writeTopic(ByteBuffer frame, byte[] topic) {
+        writeVarint(frame, topic.length);
+        frame.put(topic);
+    }
+
+    private static String readTopic(ByteBuffer frame) {
+        final byte[] topic = new byte[readVarint(frame)];
+        frame.get(topic);
+        return new String(topic, UTF_8);
+    }
+
+    /**
+     * A delivery, or an anti-entropy request standing in for one with no messages, waiting to be sent on a topic.
+     */
+    private static final class Outgoing {
+
+        private final byte[] topic;
+        private final ImmutableList<Message<?>> messages;
+        private final SingleNodeVectorClock received;
+
+        private Outgoing(byte[] topic, ImmutableList<Message<?>> messages, SingleNodeVectorClock received) {
+            this.topic = topic;
+            this.messages = messages;
+            this.received = received;
+        }
+
+        private boolean isRequest() {
+            return received != null;
+        }
+    }
+
+    /**
+     * The sending end of a connection to a host, shared by a {@link TopicPeer} for each topic sent over it. Deliveries
+     * are queued from any thread; everything else happens on the selector thread. Nothing bounds the queue: a
+     * {@link FlowControl} window holds back only the sending node's own producers, not what it relays.
+     */
+    private class Connection implements RemoteHost, Handler {
+
+        private final NodeId id;
+        private final InetSocketAddress address;
+        private final Queue<Outgoing> pending = new ConcurrentLinkedQueue<>();
+        private final Queue<Outgoing> missingRequests = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+
+        private final Deque<Outgoing> retries = new ArrayDeque<>();
+        private final Deque<Outgoing> writingBatches = new ArrayDeque<>();
+        private final Deque<ByteBuffer> writingFrames = new ArrayDeque<>();
+        private SocketChannel channel = null;
+        private SelectionKey key = null;
+        private LinkCodec<?> encoder = null;
+        private int frameSize = INITIAL_FRAME_SIZE;
+
+        private Connection(NodeId id, InetSocketAddress address) {
+            this.id = checkNotNull(id);
+            this.address = checkNotNull(address);
+        }
+
+        @Override
+        public NodeId getId() {
+            return id;
+        }
+
+        @Override
+        public Peer topic(String name) {
+            return new TopicPeer(this, name);
+        }
+
+        private void deliver(byte[] topic, ImmutableList<Message<?>> messages) {
+            pending.add(new Outgoing(topic, messages, null));
+            queued.incrementAndGet();
+            requestWrite();
+        }
+
+        private void requestMissing(byte[] topic, SingleNodeVectorClock received) {
+            missingRequests.add(new Outgoing(topic, ImmutableList.<Message<?>>of(), received));
+            requestWrite();
+        }
+
+        private void requestWrite() {
+            if (!writeRequested.getAndSet(true)) {
+                onSelectorThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeRequested.set(false);
+                        if (encoder != null) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        }
+                    }
+                });
+            }
+        }
+
+        private void connect() {
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                key = register(channel, SelectionKey.OP_CONNECT, this);
+                if (key != null && channel.connect(address)) {
+                    connected();
+                }
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+
+        private void connected() {
+            encoder = codec.forLink();
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        @Override
+        public void ready(SelectionKey key) throws IOException {
+            if (key.isConnectable() && channel.finishConnect()) {
+                connected();
+            }
+            if (key.isValid() && key.isReadable() && channel.read(ByteBuffer.allocate(1)) < 0) {
+                throw new IOException("Connection to " + id + " at " + address + " closed");
+            }
+            if (key.isValid() && key.isWritable()) {
+                write();
+            }
+        }
+
+        /**
+         * Anti-entropy requests go first and are not retried on a new connection, since the next round asks again.
+         * Only deliveries are counted as queued.
+         */
+        private void write() throws IOException {
+            Outgoing request;
+            while (writingFrames.size() < MAX_FRAMES_PER_WRITE && (request = missingRequests.poll()) != null) {
+                writingBatches.add(request);
+                writingFrames.add(encodeRequest(request));
+            }
+            while (writingFrames.size() < MAX_FRAMES_PER_WRITE) {
+                final Outgoing batch = retries.isEmpty() ? pending.poll() : retries.poll();
+                if (batch == null) {
+                    break;
+                }
+                final ByteBuffer frame;
+                try {
+                    frame = encode(batch);
+                } catch (RuntimeException e) {
+                    queued.decrementAndGet();
+                    e.printStackTrace();
+                    continue;
+                }
+                writingBatches.add(batch);
+                writingFrames.add(frame);
+            }
+            channel.write(writingFrames.toArray(new ByteBuffer[writingFrames.size()]));
+            while (!writingFrames.isEmpty() && !writingFrames.peek().hasRemaining()) {
+                writingFrames.remove();
+                if (!writingBatches.remove().isRequest()) {
+                    queued.decrementAndGet();
+                }
+            }
+            if (writingFrames.isEmpty() && retries.isEmpty() && pending.isEmpty() && missingRequests.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        private ByteBuffer encode(Outgoing batch) {
+            while (true) {
+                final SingleNodeVectorClock mark = encoder.mark();
+                final ByteBuffer frame = ByteBuffer.allocate(frameSize);
+                try {
+                    frame.position(4);
+                    frame.put(MESSAGES);
+                    writeTopic(frame, batch.topic);
+                    writeVarint(frame, batch.messages.size());
+                    for (Message<?> message : batch.messages) {
+                        encoder.encode(message, frame);
+                    }
+                    final int length = frame.position() - 4;
+                    if (length > maxFrameBytes) {
+                        throw frameTooLong(String.valueOf(length));
+                    }
+                    frame.putInt(0, length);
+                    frame.flip();
+                    return frame;
+                } catch (BufferOverflowException e) {
+                    encoder.rewindTo(mark);
+                    if (frameSize - 4 >= maxFrameBytes) {
+                        throw frameTooLong("more than " + (frameSize - 4));
+                    }
+                    frameSize *= 2;
+                } catch (RuntimeException e) {
+                    encoder.rewindTo(mark);
+                    throw e;
+                }
+            }
+        }
+
+        private IllegalStateException frameTooLong(String length) {
+            return new IllegalStateException("Delivery to " + id + " encoded to a frame of " + length
+                    + " bytes, where at most " + maxFrameBytes + " are accepted");
+        }
+
+        private ByteBuffer encodeRequest(Outgoing request) {
+            while (true) {
+                final ByteBuffer frame = ByteBuffer.allocate(frameSize);
+                try {
+                    frame.position(4);
+                    frame.put(MISSING);
+                    writeTopic(frame, request.topic);
+                    codec.encodeClock(request.received, frame);
+                    frame.putInt(0, frame.position() - 4);
+                    frame.flip();
+                    return frame;
+                } catch (BufferOverflowException e) {
+                    frameSize *= 2;
+                }
+            }
+        }
+
+        @Override
+        public void failed(Exception e) {
+            if (!(e instanceof IOException)) {
+                e.printStackTrace();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // already failing
+            }
+            while (!writingBatches.isEmpty()) {
+                final Outgoing batch = writingBatches.removeLast();
+                if (!batch.isRequest()) {
+                    retries.addFirst(batch);
+                }
+            }
+            writingFrames.clear();
+            encoder = null;
+            key = null;
+            if (running) {
+                reconnector.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        onSelectorThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                connect();
+                            }
+                        });
+                    }
+                }, reconnectDelay.getMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * One topic's view of a shared connection. Its queue is the connection's, since a delivery on any topic waits
+     * behind everything already queued on the others.
+     */
+    private static class TopicPeer implements Peer {
+
+        private final Connection connection;
+        private final byte[] topic;
+
+        private TopicPeer(Connection connection, String topic) {
+            this.connection = connection;
+            this.topic = topic.getBytes(UTF_8);
+        }
+
+        @Override
+        public NodeId getId() {
+            return connection.getId();
+        }
+
+        @Override
+        public void deliver(ImmutableList<Message<?>> messages) {
+            connection.deliver(topic, messages);
+        }
+
+        @Override
+        public void requestMissing(SingleNodeVectorClock received) {
+            connection.requestMissing(topic, received);
+        }
+
+        @Override
+        public int queued() {
+            return connection.queued.get();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An immutable, sorted set of node ids that maps each node to a dense position, so that a clock's
+ * sequences can be held in a primitive array addressed by that position.
+ * <p>
+ * Indexes are interned, so clocks over the same nodes share one index however they were built, and comparing their
+ * node sets is usually a reference comparison.
+ * <p>
+ * An index also records the nodes that have departed the topic, each with the final sequence kept from it. A departed
+ * node has no position, so clocks no longer hold a sequence for it, but its final sequence still counts towards the
+ * total by which clocks are ordered: without it, clocks made after a departure could sort before the messages they
+ * follow.
+ */
+final class NodeIndex {
+
+    private static final Interner<NodeIndex> interned = Interners.newWeakInterner();
+
+    private static final ImmutableSortedMap<NodeId, Integer> NONE_DEPARTED = ImmutableSortedMap.of();
+
+    private final int[] ids;
+    private final ImmutableSortedSet<NodeId> nodeIds;
+    private final ImmutableSortedMap<NodeId, Integer> departed;
+    private final int retired;
+
+    static NodeIndex of(NodeId nodeId) {
+        return interned.intern(new NodeIndex(new int[] { nodeId.getId() }, ImmutableSortedSet.of(nodeId), NONE_DEPARTED));
+    }
+
+    static NodeIndex of(Iterable<NodeId> nodeIds) {
+        return of(nodeIds, NONE_DEPARTED);
+    }
+
+    /**
+     * @param departed the final sequence of each node that has departed, none of which may be among nodeIds
+     */
+    static NodeIndex of(Iterable<NodeId> nodeIds, Map<NodeId, Integer> departed) {
+        ImmutableSortedSet<NodeId> sorted = ImmutableSortedSet.copyOf(nodeIds);
+        int[] ids = new int[sorted.size()];
+        int i = 0;
+        for (NodeId nodeId : sorted) {
+            checkArgument(!departed.containsKey(nodeId), "%s has departed", nodeId);
+            ids[i++] = nodeId.getId();
+        }
+        return interned.intern(new NodeIndex(ids, sorted, ImmutableSortedMap.copyOf(departed)));
+    }
+
+    private NodeIndex(int[] ids, ImmutableSortedSet<NodeId> nodeIds, ImmutableSortedMap<NodeId, Integer> departed) {
+        this.ids = ids;
+        this.nodeIds = nodeIds;
+        this.departed = departed;
+        int retired = 0;
+        for (int finalSequence : departed.values()) {
+            retired += finalSequence;
+        }
+        this.retired = retired;
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return the position of the node, or a negative number if it is not in this index
+     */
+    int indexOf(NodeId nodeId) {
+        return Arrays.binarySearch(ids, nodeId.getId());
+    }
+
+    NodeId get(int index) {
+        return nodeIds.asList().get(index);
+    }
+
+    boolean contains(NodeId nodeId) {
+        return indexOf(nodeId) >= 0;
+    }
+
+    NodeIndex with(NodeId nodeId) {
+        checkNotNull(nodeId);
+        if (contains(nodeId)) {
+            return this;
+        } else {
+            return of(ImmutableSortedSet.<NodeId>naturalOrder().addAll(nodeIds).add(nodeId).build(), departed);
+        }
+    }
+
+    /**
+     * @return this index with the node, whether present or already departed, departed at the given final sequence
+     */
+    NodeIndex departing(NodeId nodeId, int finalSequence) {
+        final ImmutableSortedSet.Builder<NodeId> remaining = ImmutableSortedSet.naturalOrder();
+        for (NodeId present : nodeIds) {
+            if (!present.equals(nodeId)) {
+                remaining.add(present);
+            }
+        }
+        return of(remaining.build(), Maps2.put(departed, nodeId, finalSequence));
+    }
+
+    /**
+     * @return an index of every node present in either index, and of every node departed from either that is present
+     *         in neither, at the lower of its final sequences
+     */
+    NodeIndex union(NodeIndex other) {
+        if (sameNodesAs(other)) {
+            return this;
+        }
+        final ImmutableSortedSet<NodeId> present = ImmutableSortedSet.<NodeId>naturalOrder()
+                .addAll(nodeIds).addAll(other.nodeIds).build();
+        final ImmutableSortedMap.Builder<NodeId, Integer> unionDeparted = ImmutableSortedMap.naturalOrder();
+        for (NodeId nodeId : ImmutableSortedSet.<NodeId>naturalOrder().addAll(departed.keySet()).addAll(other.departed.keySet()).build()) {
+            if (!present.contains(nodeId)) {
+                final Integer mine = departed.get(nodeId);
+                final Integer theirs = other.departed.get(nodeId);
+                unionDeparted.put(nodeId, mine == null ? theirs : theirs == null ? mine : Math.min(mine, theirs));
+            }
+        }
+        return of(present, unionDeparted.build());
+    }
+
+    ImmutableSortedSet<NodeId> nodeIds() {
+        return nodeIds;
+    }
+
+    ImmutableSortedMap<NodeId, Integer> departed() {
+        return departed;
+    }
+
+    Optional<Integer> departedSequence(NodeId nodeId) {
+        return Optional.fromNullable(departed.get(nodeId));
+    }
+
+    /**
+     * @return the sum of the final sequences of the departed nodes
+     */
+    int retired() {
+        return retired;
+    }
+
+    boolean sameNodesAs(NodeIndex other) {
+        return this == other || Arrays.equals(ids, other.ids) && departed.equals(other.departed);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        NodeIndex that = (NodeIndex) o;
+
+        return Arrays.equals(ids, that.ids) && departed.equals(that.departed);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(ids) + departed.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return departed.isEmpty() ? nodeIds.toString() : nodeIds + " departed " + departed;
+    }
+}
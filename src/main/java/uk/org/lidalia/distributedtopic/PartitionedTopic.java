@@ -0,0 +1,74 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.concurrent.Executor;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.hash.Hashing.consistentHash;
+
+/**
+ * A topic split into a fixed number of partitions by the key of each message, so that it can be consumed in parallel.
+ * <p>
+ * Each partition is a topic of its own on a {@link TopicHost}, named {@code <name>/<partition>}, and has its own
+ * consistent order, so messages with the same key are in the same order on every node while messages with different
+ * keys in different partitions are not ordered at all. A key is routed by its hash code, which must therefore be the
+ * same in every process, as those of strings and boxed numbers are; and every host must split the topic into the same
+ * number of partitions.
+ */
+public class PartitionedTopic<K, T> {
+
+    private final String name;
+    private final ImmutableList<TopicNode<T>> partitions;
+
+    PartitionedTopic(TopicHost host, String name, int partitions) {
+        checkArgument(partitions > 0, "partitions must be positive, was %s", partitions);
+        this.name = checkNotNull(name);
+        final ImmutableList.Builder<TopicNode<T>> nodes = ImmutableList.builder();
+        for (int i = 0; i < partitions; i++) {
+            nodes.add(host.<T>topic(partitionName(name, i)));
+        }
+        this.partitions = nodes.build();
+    }
+
+    private static String partitionName(String name, int partition) {
+        return name + "/" + partition;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return whether the value was stored, as {@link TopicNode#store}
+     */
+    public boolean store(K key, T value) {
+        return partitionFor(key).store(value);
+    }
+
+    public TopicNode<T> partitionFor(K key) {
+        return partitions.get(consistentHash(key.hashCode(), partitions.size()));
+    }
+
+    public TopicNode<T> partition(int partition) {
+        return partitions.get(partition);
+    }
+
+    public ImmutableList<TopicNode<T>> partitions() {
+        return partitions;
+    }
+
+    /**
+     * Subscribes a subscriber of its own to each partition, all delivered to on the given executor, such as a
+     * {@link java.util.concurrent.ForkJoinPool}. Partitions are delivered in parallel, but each subscriber only ever
+     * sees its own partition, one message at a time and in order, so messages with the same key are processed in
+     * order.
+     */
+    public void subscribe(Supplier<? extends Subscriber<T>> subscribers, Executor executor) {
+        for (TopicNode<T> partition : partitions) {
+            partition.subscribe(subscribers.get(), executor);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns message payloads into bytes and back, for storing or sending messages outside the JVM. Serialisers that are
+ * equal must write the same bytes for the same payload, since bytes written by one are passed on by the other as they
+ * are, without being decoded.
+ */
+public interface PayloadSerialiser<T> {
+
+    /**
+     * Writes the payload at the buffer's position, throwing {@link java.nio.BufferOverflowException} if it does not
+     * fit.
+     */
+    void serialise(T payload, ByteBuffer out);
+
+    /**
+     * @param bytes exactly the bytes of one payload, from its position to its limit
+     */
+    T deserialise(ByteBuffer bytes);
+}
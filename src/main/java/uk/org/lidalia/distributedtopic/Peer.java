@@ -0,0 +1,28 @@
+package uk.org.lidalia.distributedtopic;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Somewhere a {@link Synchroniser} can send messages: another {@link TopicNode}, in this process or elsewhere.
+ */
+public interface Peer {
+
+    NodeId getId();
+
+    /**
+     * Sends the messages without waiting for them to arrive. Successive deliveries must arrive in the order they
+     * were made.
+     */
+    void deliver(ImmutableList<Message<?>> messages);
+
+    /**
+     * Asks the far end to send back, with {@link TopicNode#sendMissing}, anything it holds that the given clock has
+     * not received. The request may be lost; it is repeated every round of anti-entropy.
+     */
+    void requestMissing(SingleNodeVectorClock received);
+
+    /**
+     * @return the number of deliveries accepted but not yet handed to the far end
+     */
+    int queued();
+}
@@ -0,0 +1,124 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.Duration;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Suspects a node of having failed by how long it has been silent compared with how often it has been heard from, as
+ * in Hayashibara et al's phi accrual failure detector. Rather than a fixed timeout, it gives a level of suspicion,
+ * phi: the chance that a node still alive would have been silent this long is {@code 10^-phi}. Intervals between
+ * arrivals are taken to be exponentially distributed, so phi rises in proportion to the silence, at a rate set by the
+ * mean of the most recent intervals.
+ * <p>
+ * Times are passed in rather than read, so that a detector can run on a node's own clock, simulated or not.
+ */
+public class PhiAccrualFailureDetector {
+
+    private static final int DEFAULT_WINDOW = 100;
+    private static final Duration DEFAULT_MIN_MEAN_INTERVAL = Duration.millis(500);
+    private static final double LOG10_E = Math.log10(Math.E);
+
+    private final double threshold;
+    private final int window;
+    private final long minMeanIntervalMillis;
+    private final ConcurrentMap<NodeId, Arrivals> arrivals = new ConcurrentHashMap<>();
+
+    /**
+     * @param threshold the phi at which a node is suspected; 8 suspects a node after a little over eighteen times its
+     *                  mean interval
+     */
+    public PhiAccrualFailureDetector(double threshold) {
+        this(threshold, DEFAULT_WINDOW, DEFAULT_MIN_MEAN_INTERVAL);
+    }
+
+    /**
+     * @param window the number of most recent intervals averaged
+     * @param minMeanInterval the least the mean interval is taken to be, so that a burst of messages does not make a
+     *                        node suspected as soon as it pauses
+     */
+    public PhiAccrualFailureDetector(double threshold, int window, Duration minMeanInterval) {
+        checkArgument(threshold > 0, "threshold must be positive, was %s", threshold);
+        checkArgument(window > 0, "window must be positive, was %s", window);
+        checkArgument(minMeanInterval.getMillis() > 0, "minMeanInterval must be positive, was %s", minMeanInterval);
+        this.threshold = threshold;
+        this.window = window;
+        this.minMeanIntervalMillis = minMeanInterval.getMillis();
+    }
+
+    /**
+     * Records that the node was heard from at the given time.
+     */
+    public void heartbeat(NodeId node, long nowMillis) {
+        Arrivals existing = arrivals.get(node);
+        if (existing == null) {
+            final Arrivals created = new Arrivals(window);
+            existing = arrivals.putIfAbsent(node, created);
+            if (existing == null) {
+                existing = created;
+            }
+        }
+        existing.arrived(nowMillis);
+    }
+
+    /**
+     * @return the suspicion that the node has failed, or 0 if it has not been heard from twice yet
+     */
+    public double phi(NodeId node, long nowMillis) {
+        final Arrivals nodeArrivals = arrivals.get(node);
+        return nodeArrivals == null ? 0 : nodeArrivals.phi(nowMillis);
+    }
+
+    public boolean isSuspected(NodeId node, long nowMillis) {
+        return phi(node, nowMillis) >= threshold;
+    }
+
+    /**
+     * Stops tracking a node that is no longer a member.
+     */
+    public void forget(NodeId node) {
+        arrivals.remove(node);
+    }
+
+    /**
+     * The intervals between the most recent arrivals from one node, in a ring with a running total.
+     */
+    private final class Arrivals {
+
+        private final long[] intervals;
+        private int count = 0;
+        private int next = 0;
+        private long total = 0;
+        private boolean heard = false;
+        private long last;
+
+        private Arrivals(int window) {
+            this.intervals = new long[window];
+        }
+
+        private synchronized void arrived(long nowMillis) {
+            if (!heard) {
+                heard = true;
+                last = nowMillis;
+                return;
+            }
+            final long interval = Math.max(0, nowMillis - last);
+            total += interval - intervals[next];
+            intervals[next] = interval;
+            next = (next + 1) % intervals.length;
+            count = Math.min(count + 1, intervals.length);
+            last = Math.max(last, nowMillis);
+        }
+
+        private synchronized double phi(long nowMillis) {
+            if (count == 0) {
+                return 0;
+            }
+            final double mean = Math.max((double) total / count, minMeanIntervalMillis);
+            return Math.max(0, nowMillis - last) / mean * LOG10_E;
+        }
+    }
+}
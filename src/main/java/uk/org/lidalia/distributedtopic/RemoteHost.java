@@ -0,0 +1,14 @@
+package uk.org.lidalia.distributedtopic;
+
+/**
+ * A {@link TopicHost} in another process, reached over one connection that carries every topic they share.
+ */
+public interface RemoteHost {
+
+    NodeId getId();
+
+    /**
+     * @return a peer sending to the node for the named topic on the remote host, over the shared connection
+     */
+    Peer topic(String name);
+}
@@ -0,0 +1,97 @@
+package uk.org.lidalia.distributedtopic;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import com.google.common.base.Optional;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Decides when a {@link TopicNode} may discard a message. A message is only ever a candidate once it is consistent
+ * and every open {@link Cursor} on the node has read past it; the policy then decides whether it has been kept long
+ * enough.
+ */
+public class RetentionPolicy {
+
+    private static final RetentionPolicy RETAIN_ALL = new RetentionPolicy(false, Optional.<Integer>absent(), Optional.<Duration>absent());
+    private static final RetentionPolicy UNTIL_CONSUMED = new RetentionPolicy(true, Optional.<Integer>absent(), Optional.<Duration>absent());
+
+    private final boolean discards;
+    private final Optional<Integer> maxMessages;
+    private final Optional<Duration> maxAge;
+
+    /**
+     * @return a policy that never discards anything
+     */
+    public static RetentionPolicy retainAll() {
+        return RETAIN_ALL;
+    }
+
+    /**
+     * A message counts as consumed once every open cursor has read it. While a node has no open cursors, and so no
+     * subscriptions, every consistent message counts as consumed, so a cursor or subscriber that comes along later
+     * starts from whatever has not yet been compacted rather than the start of the topic. Retain messages for a while
+     * with {@link #retainingFor} or {@link #retainingAtMost} if a late reader needs their history.
+     *
+     * @return a policy that discards messages as soon as they have been consumed
+     */
+    public static RetentionPolicy untilConsumed() {
+        return UNTIL_CONSUMED;
+    }
+
+    private RetentionPolicy(boolean discards, Optional<Integer> maxMessages, Optional<Duration> maxAge) {
+        this.discards = discards;
+        this.maxMessages = checkNotNull(maxMessages);
+        this.maxAge = checkNotNull(maxAge);
+    }
+
+    /**
+     * @return a policy that keeps consumed messages until more than maxMessages are retained
+     */
+    public RetentionPolicy retainingAtMost(int maxMessages) {
+        checkArgument(maxMessages >= 0, "maxMessages must not be negative, was %s", maxMessages);
+        return new RetentionPolicy(true, Optional.of(maxMessages), maxAge);
+    }
+
+    /**
+     * @return a policy that keeps consumed messages until they are older than maxAge, measured from the timestamp
+     *         their origin gave them; that travels with a message and is kept by the store, so a message received
+     *         late or recovered after a restart is as old as when it was stored
+     */
+    public RetentionPolicy retainingFor(Duration maxAge) {
+        return new RetentionPolicy(true, maxMessages, Optional.of(maxAge));
+    }
+
+    public Optional<Integer> getMaxMessages() {
+        return maxMessages;
+    }
+
+    public Optional<Duration> getMaxAge() {
+        return maxAge;
+    }
+
+    boolean discards() {
+        return discards;
+    }
+
+    /**
+     * @param retained how many messages the node currently holds
+     */
+    boolean hasExpired(Message<?> message, long retained, Instant now) {
+        if (!discards) {
+            return false;
+        } else if (!maxMessages.isPresent() && !maxAge.isPresent()) {
+            return true;
+        } else {
+            return (maxMessages.isPresent() && retained > maxMessages.get())
+                    || (maxAge.isPresent() && message.getVectorClock().getTimestamp().plus(maxAge.get()).isBefore(now));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return discards ? "{maxMessages=" + maxMessages + ", maxAge=" + maxAge + "}" : "{retainAll}";
+    }
+}
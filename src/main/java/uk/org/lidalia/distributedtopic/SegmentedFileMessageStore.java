@@ -0,0 +1,524 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Throwables.propagate;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A {@link MessageStore} that appends each message to the end of a log split into segment files in a directory.
+ * <p>
+ * Each record is framed by its length at both ends, so the log can be read forwards on recovery and backwards from
+ * the tail to find the latest clock from each origin without reading it all. Appenders wait for their record to be
+ * forced to disk, but one force covers every record written before it, so concurrent appenders share an fsync. A
+ * sparse index maps each origin's sequences to positions in the log, and reads map the segments into memory, each
+ * segment being mapped again only once it has grown. Segments are closed and deleted only while no read is under way.
+ * <p>
+ * The clock up to which messages have been discarded is kept in a file beside the segments, so that the messages in
+ * a segment still partly needed are not recovered once they have been discarded, as is the highest sequence reserved.
+ */
+public class SegmentedFileMessageStore<T> implements MessageStore<T> {
+
+    private static final String SUFFIX = ".log";
+    private static final String DISCARDED = "discarded";
+    private static final String RESERVED = "reserved";
+    private static final int FRAMING = 8;
+    private static final long DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final long DEFAULT_INDEX_INTERVAL = 4096;
+    private static final int INITIAL_RECORD_SIZE = 256;
+
+    private final Path directory;
+    private final MessageCodec<T> codec;
+    private final long segmentBytes;
+    private final long indexInterval;
+
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final ReadWriteLock removalLock = new ReentrantReadWriteLock();
+    private volatile Optional<SingleNodeVectorClock> discarded = Optional.absent();
+    private volatile int reserved = 0;
+    private final ConcurrentMap<NodeId, ConcurrentNavigableMap<Integer, Long>> sparseIndex = new ConcurrentHashMap<>();
+    private final Map<NodeId, Long> lastIndexed = new HashMap<>();
+
+    private final Object writeLock = new Object();
+    private final Object syncLock = new Object();
+    private long end;
+    private final AtomicLong durable = new AtomicLong();
+
+    public SegmentedFileMessageStore(Path directory, MessageCodec<T> codec) {
+        this(directory, codec, DEFAULT_SEGMENT_BYTES, DEFAULT_INDEX_INTERVAL);
+    }
+
+    /**
+     * @param segmentBytes the size beyond which a new segment file is started
+     * @param indexInterval roughly how many bytes of log lie between sparse index entries for the same origin
+     */
+    public SegmentedFileMessageStore(Path directory, MessageCodec<T> codec, long segmentBytes, long indexInterval) {
+        checkArgument(segmentBytes > 0 && segmentBytes <= Integer.MAX_VALUE,
+                "segmentBytes must be positive and fit in a mapped buffer, was %s", segmentBytes);
+        this.directory = checkNotNull(directory);
+        this.codec = checkNotNull(codec);
+        this.segmentBytes = segmentBytes;
+        this.indexInterval = indexInterval;
+        try {
+            Files.createDirectories(directory);
+            final Path discardedPath = directory.resolve(DISCARDED);
+            if (Files.exists(discardedPath)) {
+                final ByteBuffer encoded = ByteBuffer.wrap(Files.readAllBytes(discardedPath));
+                discarded = Optional.of(codec.decode(encoded).getVectorClock());
+            }
+            final Path reservedPath = directory.resolve(RESERVED);
+            if (Files.exists(reservedPath)) {
+                reserved = ByteBuffer.wrap(Files.readAllBytes(reservedPath)).getInt();
+            }
+            final List<Path> paths = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+                for (Path path : files) {
+                    paths.add(path);
+                }
+            }
+            Collections.sort(paths);
+            for (int i = 0; i < paths.size(); i++) {
+                final Segment segment = Segment.open(paths.get(i));
+                segments.add(segment);
+                recoverSegment(segment, i == paths.size() - 1);
+            }
+            if (segments.isEmpty()) {
+                segments.add(Segment.create(directory, 0));
+            }
+        } catch (IOException e) {
+            throw propagate(e);
+        }
+        final Segment active = active();
+        this.end = active.base + active.size;
+        this.durable.set(end);
+    }
+
+    private void recoverSegment(Segment segment, boolean last) throws IOException {
+        final ByteBuffer mapped = segment.map(segment.size);
+        int position = 0;
+        while (isCompleteRecordAt(mapped, position)) {
+            final int length = mapped.getInt(position);
+            indexRecord(segment, segment.base + position, codec.decodeClock(body(mapped, position, length)));
+            position += FRAMING + length;
+        }
+        if (position != segment.size) {
+            if (last) {
+                segment.channel.truncate(position);
+                segment.size = position;
+            } else {
+                throw new IllegalStateException("Corrupt record at " + position + " in " + segment.path);
+            }
+        }
+    }
+
+    private static boolean isCompleteRecordAt(ByteBuffer mapped, int position) {
+        if (mapped.limit() - position < FRAMING) {
+            return false;
+        }
+        final int length = mapped.getInt(position);
+        return length > 0
+                && (long) position + FRAMING + length <= mapped.limit()
+                && mapped.getInt(position + 4 + length) == length;
+    }
+
+    private static ByteBuffer body(ByteBuffer mapped, int position, int length) {
+        final ByteBuffer body = mapped.duplicate();
+        body.position(position + 4);
+        body.limit(position + 4 + length);
+        return body.slice();
+    }
+
+    @Override
+    public void append(Message<T> message) {
+        final ByteBuffer record = frame(message);
+        final long recordEnd;
+        try {
+            synchronized (writeLock) {
+                if (active().size > 0 && active().size + record.remaining() > segmentBytes) {
+                    roll();
+                }
+                final Segment active = active();
+                final long position = active.base + active.size;
+                long offset = active.size;
+                while (record.hasRemaining()) {
+                    offset += active.channel.write(record, offset);
+                }
+                active.size = offset;
+                indexRecord(active, position, message.getVectorClock());
+                end = active.base + active.size;
+                recordEnd = end;
+            }
+            awaitDurable(recordEnd);
+        } catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    private ByteBuffer frame(Message<T> message) {
+        int size = INITIAL_RECORD_SIZE;
+        while (true) {
+            final ByteBuffer record = ByteBuffer.allocate(size);
+            try {
+                record.position(4);
+                codec.encode(message, record);
+                final int length = record.position() - 4;
+                record.putInt(length);
+                record.putInt(0, length);
+                record.flip();
+                return record;
+            } catch (BufferOverflowException e) {
+                size *= 2;
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        final Segment previous = active();
+        previous.channel.force(false);
+        advanceDurable(end);
+        segments.add(Segment.create(directory, previous.base + previous.size));
+    }
+
+    private void awaitDurable(long position) throws IOException {
+        if (durable.get() >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (durable.get() >= position) {
+                return;
+            }
+            final long target;
+            final FileChannel channel;
+            synchronized (writeLock) {
+                target = end;
+                channel = active().channel;
+            }
+            channel.force(false);
+            advanceDurable(target);
+        }
+    }
+
+    private void advanceDurable(long position) {
+        long current;
+        do {
+            current = durable.get();
+        } while (current < position && !durable.compareAndSet(current, position));
+    }
+
+    private void indexRecord(Segment segment, long position, SingleNodeVectorClock clock) {
+        if (segment.maxClock == null || clock.isAfter(segment.maxClock)) {
+            segment.maxClock = clock;
+        }
+        final NodeId origin = clock.getNodeId();
+        final Long last = lastIndexed.get(origin);
+        if (last == null || position - last >= indexInterval) {
+            indexFor(origin).put(clock.sequenceForDefiningNode(), position);
+            lastIndexed.put(origin, position);
+        }
+    }
+
+    private ConcurrentNavigableMap<Integer, Long> indexFor(NodeId origin) {
+        ConcurrentNavigableMap<Integer, Long> index = sparseIndex.get(origin);
+        if (index == null) {
+            sparseIndex.putIfAbsent(origin, new ConcurrentSkipListMap<Integer, Long>());
+            index = sparseIndex.get(origin);
+        }
+        return index;
+    }
+
+    @Override
+    public ImmutableList<Message<T>> recover() {
+        final ImmutableList.Builder<Message<T>> messages = ImmutableList.builder();
+        removalLock.readLock().lock();
+        try {
+            for (Segment segment : segments) {
+                final ByteBuffer mapped = map(segment);
+                int position = 0;
+                while (position < mapped.limit()) {
+                    final int length = mapped.getInt(position);
+                    final Message<T> message = codec.decode(body(mapped, position, length));
+                    if (!message.isHeartbeat() && !isDiscarded(message.getVectorClock())) {
+                        messages.add(message);
+                    }
+                    position += FRAMING + length;
+                }
+            }
+        } finally {
+            removalLock.readLock().unlock();
+        }
+        return messages.build();
+    }
+
+    private boolean isDiscarded(SingleNodeVectorClock clock) {
+        final Optional<SingleNodeVectorClock> discardedUpTo = discarded;
+        return discardedUpTo.isPresent() && !clock.isAfter(discardedUpTo.get());
+    }
+
+    /**
+     * Reads from the tail backwards until it has seen a message from every node known to the most recent message.
+     */
+    @Override
+    public ImmutableMap<NodeId, SingleNodeVectorClock> latestClocks() {
+        final Map<NodeId, SingleNodeVectorClock> latest = new HashMap<>();
+        ImmutableSet<NodeId> expected = null;
+        removalLock.readLock().lock();
+        try {
+            for (Segment segment : Lists.reverse(segments)) {
+                final ByteBuffer mapped = map(segment);
+                int position = mapped.limit();
+                while (position > 0) {
+                    final int length = mapped.getInt(position - 4);
+                    position -= FRAMING + length;
+                    final SingleNodeVectorClock clock = codec.decodeClock(body(mapped, position, length));
+                    if (!latest.containsKey(clock.getNodeId())) {
+                        latest.put(clock.getNodeId(), clock);
+                    }
+                    if (expected == null) {
+                        expected = clock.nodeIds();
+                    }
+                    if (latest.keySet().containsAll(expected)) {
+                        return ImmutableMap.copyOf(latest);
+                    }
+                }
+            }
+        } finally {
+            removalLock.readLock().unlock();
+        }
+        return ImmutableMap.copyOf(latest);
+    }
+
+    /**
+     * Forces the reservation to disk before replacing the previous one with it.
+     */
+    @Override
+    public synchronized void reserveSequencesUpTo(int sequence) {
+        if (sequence <= reserved) {
+            return;
+        }
+        final Path written = directory.resolve(RESERVED + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(written, CREATE, WRITE, TRUNCATE_EXISTING)) {
+                final ByteBuffer bytes = ByteBuffer.allocate(4);
+                bytes.putInt(0, sequence);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                channel.force(false);
+            }
+            Files.move(written, directory.resolve(RESERVED), ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw propagate(e);
+        }
+        reserved = sequence;
+    }
+
+    @Override
+    public int reservedSequences() {
+        return reserved;
+    }
+
+    /**
+     * A {@link TopicNode} answers reads and requests for missing messages from the messages it holds in memory, and
+     * what it has discarded every peer already has, so it never reads through this; it is for reading the log
+     * directly, as a tool replaying a topic would.
+     *
+     * @return the messages from the given origin with at least the given sequence, in the order they were appended
+     */
+    public ImmutableList<Message<T>> readFrom(NodeId origin, int sequence) {
+        final Map.Entry<Integer, Long> floor = indexFor(origin).floorEntry(sequence);
+        final long start = floor == null ? 0 : floor.getValue();
+        final ImmutableList.Builder<Message<T>> messages = ImmutableList.builder();
+        removalLock.readLock().lock();
+        try {
+            for (Segment segment : segments) {
+                final ByteBuffer mapped = map(segment);
+                if (segment.base + mapped.limit() <= start) {
+                    continue;
+                }
+                int position = (int) Math.max(0, start - segment.base);
+                while (position < mapped.limit()) {
+                    final int length = mapped.getInt(position);
+                    final ByteBuffer body = body(mapped, position, length);
+                    final SingleNodeVectorClock clock = codec.decodeClock(body.duplicate());
+                    if (clock.getNodeId().equals(origin) && clock.sequenceForDefiningNode() >= sequence
+                            && !isDiscarded(clock)) {
+                        final Message<T> message = codec.decode(body);
+                        if (!message.isHeartbeat()) {
+                            messages.add(message);
+                        }
+                    }
+                    position += FRAMING + length;
+                }
+            }
+        } finally {
+            removalLock.readLock().unlock();
+        }
+        return messages.build();
+    }
+
+    private ByteBuffer map(Segment segment) {
+        final long size;
+        synchronized (writeLock) {
+            size = segment.size;
+        }
+        try {
+            return segment.map(size);
+        } catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    /**
+     * Records the clock so that no message up to it is recovered again, then deletes every segment other than the one
+     * being written to whose messages are all up to it, once any reads under way have finished.
+     */
+    @Override
+    public void discardUpTo(SingleNodeVectorClock clock) {
+        try {
+            recordDiscarded(clock);
+            removalLock.writeLock().lock();
+            try {
+                for (Segment segment : segments) {
+                    if (segment != active() && segment.maxClock != null && !segment.maxClock.isAfter(clock)) {
+                        segments.remove(segment);
+                        pruneIndexWithin(segment);
+                        segment.channel.close();
+                        Files.delete(segment.path);
+                    }
+                }
+            } finally {
+                removalLock.writeLock().unlock();
+            }
+        } catch (IOException e) {
+            throw propagate(e);
+        }
+    }
+
+    private synchronized void recordDiscarded(SingleNodeVectorClock clock) throws IOException {
+        if (discarded.isPresent() && !clock.isAfter(discarded.get())) {
+            return;
+        }
+        final Path written = directory.resolve(DISCARDED + ".tmp");
+        Files.write(written, toArray(codec.encode(Message.heartbeat(clock))));
+        Files.move(written, directory.resolve(DISCARDED), ATOMIC_MOVE, REPLACE_EXISTING);
+        discarded = Optional.of(clock);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Removes the index entries pointing into the given segment alone: clocks are only partially ordered, so an
+     * earlier segment may survive one that is deleted, and keeps its entries.
+     */
+    private void pruneIndexWithin(Segment segment) {
+        final long end = segment.base + segment.size;
+        for (ConcurrentNavigableMap<Integer, Long> index : sparseIndex.values()) {
+            final Iterator<Long> positions = index.values().iterator();
+            while (positions.hasNext()) {
+                final long position = positions.next();
+                if (position >= segment.base && position < end) {
+                    positions.remove();
+                }
+            }
+        }
+    }
+
+    private Segment active() {
+        return segments.get(segments.size() - 1);
+    }
+
+    @Override
+    public void close() {
+        removalLock.writeLock().lock();
+        synchronized (writeLock) {
+            try {
+                active().channel.force(false);
+                for (Segment segment : segments) {
+                    segment.channel.close();
+                }
+            } catch (IOException e) {
+                throw propagate(e);
+            } finally {
+                removalLock.writeLock().unlock();
+            }
+        }
+    }
+
+    private static final class Segment {
+
+        private final Path path;
+        private final long base;
+        private final FileChannel channel;
+        private volatile long size;
+        private volatile SingleNodeVectorClock maxClock;
+        private MappedByteBuffer mapped;
+
+        static Segment create(Path directory, long base) throws IOException {
+            return open(directory.resolve(String.format("%020d%s", base, SUFFIX)));
+        }
+
+        static Segment open(Path path) throws IOException {
+            final String name = path.getFileName().toString();
+            final long base = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+            return new Segment(path, base, FileChannel.open(path, CREATE, READ, WRITE));
+        }
+
+        private Segment(Path path, long base, FileChannel channel) throws IOException {
+            this.path = path;
+            this.base = base;
+            this.channel = channel;
+            this.size = channel.size();
+        }
+
+        /**
+         * @return a view of the first size bytes of the segment, mapping it again only if it has grown past them
+         */
+        synchronized ByteBuffer map(long size) throws IOException {
+            if (mapped == null || mapped.capacity() < size) {
+                mapped = channel.map(READ_ONLY, 0, size);
+            }
+            final ByteBuffer view = mapped.duplicate();
+            view.limit((int) size);
+            return view;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package uk.org.lidalia.distributedtopic;
+
+import org.joda.time.Duration;
+
+import com.google.common.base.Optional;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static uk.org.lidalia.distributedtopic.LatencyDistributions.uniform;
+
+/**
+ * The network conditions the {@link Synchroniser} simulates on each link to a peer.
+ */
+public class SimulatedLink {
+
+    private final LatencyDistribution latency;
+    private final Optional<Integer> messagesPerSecond;
+
+    public static SimulatedLink defaultLink() {
+        return new SimulatedLink(uniform(Duration.millis(100), Duration.millis(1100)));
+    }
+
+    public SimulatedLink(LatencyDistribution latency) {
+        this(latency, Optional.<Integer>absent());
+    }
+
+    /**
+     * @param messagesPerSecond the most messages the link can carry each second; further deliveries queue behind them
+     */
+    public SimulatedLink(LatencyDistribution latency, int messagesPerSecond) {
+        this(latency, Optional.of(messagesPerSecond));
+    }
+
+    private SimulatedLink(LatencyDistribution latency, Optional<Integer> messagesPerSecond) {
+        checkArgument(messagesPerSecond.or(1) > 0, "messagesPerSecond must be positive, was %s", messagesPerSecond.orNull());
+        this.latency = checkNotNull(latency);
+        this.messagesPerSecond = messagesPerSecond;
+    }
+
+    public LatencyDistribution getLatency() {
+        return latency;
+    }
+
+    public Optional<Integer> getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    /**
+     * @return how long the link is occupied transmitting the given number of messages
+     */
+    Duration transmissionTime(int messages) {
+        if (messagesPerSecond.isPresent()) {
+            return Duration.millis((messages * 1000L + messagesPerSecond.get() - 1) / messagesPerSecond.get());
+        } else {
+            return Duration.ZERO;
+        }
+    }
+}
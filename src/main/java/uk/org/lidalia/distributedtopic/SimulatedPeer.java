@@ -0,0 +1,117 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTimeUtils.MillisProvider;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link TopicNode} in this process, reached over a {@link SimulatedLink}. Each delivery is scheduled for its
+ * simulated arrival time rather than waited for, so any number of deliveries can be in flight at once. Deliveries
+ * still arrive in the order they were sent, as over a TCP connection, and one at a time even on an executor with
+ * several threads, so that a later delivery cannot move the node's clock past messages from an earlier one that are
+ * still being added. A slow peer only delays itself, but nothing bounds how many deliveries it has in flight; a
+ * {@link FlowControl} window holds back only the sending node's own producers.
+ */
+class SimulatedPeer implements Peer, Closeable {
+
+    private final TopicNode<?> node;
+    private final SimulatedLink link;
+    private final Queue<ImmutableList<Message<?>>> inFlight = new ConcurrentLinkedQueue<>();
+    private final MillisProvider clock;
+    private final ScheduledExecutorService delivery;
+    private final boolean ownsDelivery;
+    private Instant linkFreeAt = new Instant(0);
+    private Instant lastArrival = new Instant(0);
+
+    /**
+     * Delivers on a daemon thread of its own, stopped when this peer is closed.
+     */
+    SimulatedPeer(TopicNode<?> node, SimulatedLink link) {
+        this(node, link, SingleNodeVectorClock.systemClock, Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("synchroniser-" + node.getId().getId() + "-%d").setDaemon(true).build()), true);
+    }
+
+    SimulatedPeer(TopicNode<?> node, SimulatedLink link, MillisProvider clock, ScheduledExecutorService delivery) {
+        this(node, link, clock, delivery, false);
+    }
+
+    private SimulatedPeer(TopicNode<?> node, SimulatedLink link, MillisProvider clock, ScheduledExecutorService delivery,
+                          boolean ownsDelivery) {
+        this.node = checkNotNull(node);
+        this.link = checkNotNull(link);
+        this.clock = checkNotNull(clock);
+        this.delivery = checkNotNull(delivery);
+        this.ownsDelivery = ownsDelivery;
+    }
+
+    @Override
+    public NodeId getId() {
+        return node.getId();
+    }
+
+    @Override
+    public synchronized void deliver(final ImmutableList<Message<?>> messages) {
+        final Instant submissionTime = new Instant(clock.getMillis());
+        final Instant departureTime = latest(submissionTime, linkFreeAt);
+        linkFreeAt = departureTime.plus(link.transmissionTime(messages.size()));
+        lastArrival = latest(departureTime.plus(link.getLatency().sample()), lastArrival);
+        inFlight.add(messages);
+        delivery.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (inFlight) {
+                        node.sync(inFlight.remove());
+                    }
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }, new Duration(submissionTime, lastArrival).getMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void requestMissing(final SingleNodeVectorClock received) {
+        delivery.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    node.sendMissing(received);
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }, link.getLatency().sample().getMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int queued() {
+        return inFlight.size();
+    }
+
+    /**
+     * Stops the thread deliveries are made on, if this peer made it, dropping any still in flight.
+     */
+    @Override
+    public void close() {
+        if (ownsDelivery) {
+            delivery.shutdownNow();
+        }
+    }
+
+    private static Instant latest(Instant instant1, Instant instant2) {
+        return instant1.isAfter(instant2) ? instant1 : instant2;
+    }
+}
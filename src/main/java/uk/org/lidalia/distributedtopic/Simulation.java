@@ -0,0 +1,249 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTimeUtils.MillisProvider;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import com.google.common.base.Supplier;
+import com.google.common.primitives.Longs;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Simulated time, in which any number of nodes run deterministically on the calling thread.
+ * <p>
+ * Nodes and synchronisers built here take their time from the simulation and schedule all their work - deliveries,
+ * heartbeats, compaction, anti-entropy - on its {@link #executor()}. Nothing happens until the simulation is run, and
+ * then every scheduled task runs in order of its simulated time, ties broken in the order they were scheduled, with
+ * the clock jumping straight from one task to the next. Given the same seed and the same calls, a run is the same
+ * every time however long it simulates. A simulation is not thread safe; drive it, and the nodes in it, from one
+ * thread.
+ */
+public class Simulation implements MillisProvider {
+
+    private static final Duration MAX_SKEW = Duration.millis(100);
+
+    private final Random random;
+    private final PriorityQueue<Task<?>> tasks = new PriorityQueue<>();
+    private final ScheduledExecutorService executor = new Executor();
+    private long now = 0;
+    private long scheduled = 0;
+    private long run = 0;
+
+    public Simulation(long seed) {
+        this.random = new Random(seed);
+    }
+
+    @Override
+    public long getMillis() {
+        return now;
+    }
+
+    public Instant now() {
+        return new Instant(now);
+    }
+
+    /**
+     * @return the simulation's source of randomness, for latency distributions and the like
+     */
+    public Random random() {
+        return random;
+    }
+
+    public ScheduledExecutorService executor() {
+        return executor;
+    }
+
+    /**
+     * @return the number of tasks run so far
+     */
+    public long tasksRun() {
+        return run;
+    }
+
+    /**
+     * @return a synchroniser delivering over the given link in simulated time
+     */
+    public Synchroniser synchroniser(SimulatedLink link, Dissemination dissemination) {
+        return new Synchroniser(1, Duration.ZERO, link, dissemination, this, executor);
+    }
+
+    /**
+     * @return a node whose clock is skewed from simulated time by a random amount of up to 100ms either way, as the
+     *         clocks of separate machines would be
+     */
+    public <T> TopicNode<T> node(int id, Synchroniser synchroniser) {
+        final long skew = random.nextInt((int) MAX_SKEW.getMillis() * 2 + 1) - MAX_SKEW.getMillis();
+        final MillisProvider clock = new MillisProvider() {
+            @Override
+            public long getMillis() {
+                return now + skew;
+            }
+        };
+        return new TopicNode<>(id, synchroniser, RetentionPolicy.retainAll(), new VolatileMessageStore<T>(), clock, executor,
+                new InMemoryMetricRegistry());
+    }
+
+    /**
+     * Runs every task due in the given time, leaving the clock at its end.
+     */
+    public void runFor(Duration duration) {
+        final long end = now + duration.getMillis();
+        while (!tasks.isEmpty() && tasks.peek().time <= end) {
+            runNext();
+        }
+        now = end;
+    }
+
+    /**
+     * Runs tasks until the condition holds, checking it whenever simulated time is about to move on, so after all the
+     * tasks due at any one time have run.
+     *
+     * @return whether the condition held before the given time had passed
+     */
+    public boolean runUntil(Supplier<Boolean> condition, Duration limit) {
+        final long end = now + limit.getMillis();
+        while (!condition.get()) {
+            if (tasks.isEmpty() || tasks.peek().time > end) {
+                now = end;
+                return false;
+            }
+            do {
+                runNext();
+            } while (!tasks.isEmpty() && tasks.peek().time <= now);
+        }
+        return true;
+    }
+
+    private void runNext() {
+        final Task<?> task = tasks.remove();
+        now = Math.max(now, task.time);
+        run++;
+        task.fire();
+    }
+
+    /**
+     * A task scheduled in simulated time; a periodic task puts itself back in the queue after each run.
+     */
+    private final class Task<V> extends FutureTask<V> implements ScheduledFuture<V> {
+
+        private final long sequence = scheduled++;
+        private final long period;
+        private long time;
+
+        private Task(Callable<V> callable, long time) {
+            super(callable);
+            this.time = time;
+            this.period = 0;
+        }
+
+        /**
+         * @param period positive for a fixed rate, negative for a fixed delay, zero to run once
+         */
+        private Task(Runnable runnable, long time, long period) {
+            super(runnable, null);
+            this.time = time;
+            this.period = period;
+        }
+
+        private void fire() {
+            if (period == 0) {
+                run();
+            } else if (runAndReset()) {
+                time = period > 0 ? time + period : now - period;
+                tasks.add(this);
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - now, MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            final Task<?> that = (Task<?>) other;
+            final int byTime = Longs.compare(time, that.time);
+            return byTime != 0 ? byTime : Longs.compare(sequence, that.sequence);
+        }
+    }
+
+    private final class Executor extends AbstractExecutorService implements ScheduledExecutorService {
+
+        private boolean shutdown = false;
+
+        private <V> Task<V> add(Task<V> task) {
+            tasks.add(task);
+            return task;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            schedule(command, 0, MILLISECONDS);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            return add(new Task<>(checkNotNull(command), now + unit.toMillis(delay), 0));
+        }
+
+        @Override
+        public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+            return add(new Task<>(checkNotNull(callable), now + unit.toMillis(delay)));
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+            checkArgument(unit.toMillis(period) > 0, "period must be at least a millisecond, was %s %s", period, unit);
+            return add(new Task<>(checkNotNull(command), now + unit.toMillis(initialDelay), unit.toMillis(period)));
+        }
+
+        @Override
+        public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+            checkArgument(unit.toMillis(delay) > 0, "delay must be at least a millisecond, was %s %s", delay, unit);
+            return add(new Task<>(checkNotNull(command), now + unit.toMillis(initialDelay), -unit.toMillis(delay)));
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            final List<Runnable> pending = new ArrayList<Runnable>(tasks);
+            tasks.clear();
+            return pending;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown && tasks.isEmpty();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return isTerminated();
+        }
+    }
+}
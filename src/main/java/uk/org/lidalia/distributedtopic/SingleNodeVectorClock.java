@@ -1,68 +1,294 @@
 package uk.org.lidalia.distributedtopic;
 
+import org.joda.time.DateTimeUtils;
+import org.joda.time.DateTimeUtils.MillisProvider;
 import org.joda.time.Instant;
 
 import com.google.common.base.Optional;
-import com.google.common.base.Predicate;
-import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.primitives.Ints;
 
+import java.util.Arrays;
 import java.util.Random;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.collect.FluentIterable.from;
-import static org.joda.time.Instant.now;
-import static uk.org.lidalia.distributedtopic.Maps2.put;
 
+/**
+ * The sequence this clock's node has reached, and the sequences it has received from every other node of its topic.
+ * <p>
+ * A clock made from another with the same nodes, as each message's clock is made from the one before, shares the
+ * other's array of sequences and holds only the few that differ from it, so that the clocks retained with messages do
+ * not each cost an entry per node. Once as many as a quarter of the sequences differ, the clock takes a full array of
+ * its own for the clocks that follow from it to share.
+ */
 public class SingleNodeVectorClock implements Comparable<SingleNodeVectorClock> {
 
     private static final Random random = new Random();
+    private static final int[] NONE = new int[0];
+
+    static final MillisProvider systemClock = new MillisProvider() {
+        @Override
+        public long getMillis() {
+            return DateTimeUtils.currentTimeMillis();
+        }
+    };
+
+    /**
+     * The system clock, give or take 100ms, standing in for the skew between the clocks of different machines.
+     */
+    static final MillisProvider jitteryClock = new MillisProvider() {
+        @Override
+        public long getMillis() {
+            long jitter = random.nextInt(200) - 100;
+            return systemClock.getMillis() - jitter;
+        }
+    };
 
     private final NodeId nodeId;
-    private final ImmutableSortedMap<NodeId, Integer> state;
-    private final Instant timestamp = jitteryNow();
+    private final NodeIndex index;
+    private final int[] sequences;
+    private final int[] changedPositions;
+    private final int[] changedSequences;
+    private final int position;
+    private final MillisProvider clock;
+    private final Instant timestamp;
+    private final int total;
 
-    private Instant jitteryNow() {
-        long jitter = random.nextInt(200) - 100;
-        return now().minus(jitter);
+    public SingleNodeVectorClock(NodeId nodeId) {
+        this(nodeId, jitteryClock);
     }
 
-    public SingleNodeVectorClock(NodeId nodeId) {
-        this(nodeId, ImmutableSortedMap.of(nodeId, 0));
+    /**
+     * @param clock the source of the timestamp for this clock and every clock that follows from it
+     */
+    SingleNodeVectorClock(NodeId nodeId, MillisProvider clock) {
+        this(nodeId, NodeIndex.of(nodeId), new int[] { 0 }, clock);
     }
 
     SingleNodeVectorClock(NodeId nodeId, ImmutableSortedMap<NodeId, Integer> state) {
+        this(nodeId, NodeIndex.of(state.keySet()), Ints.toArray(state.values()));
+    }
+
+    SingleNodeVectorClock(NodeId nodeId, NodeIndex index, int[] sequences) {
+        this(nodeId, index, sequences, jitteryClock);
+    }
+
+    SingleNodeVectorClock(NodeId nodeId, NodeIndex index, int[] sequences, MillisProvider clock) {
+        this(nodeId, index, sequences, clock, clock.getMillis());
+    }
+
+    /**
+     * @param timestamp the timestamp of this clock, as when it is decoded with the timestamp its origin gave it
+     */
+    SingleNodeVectorClock(NodeId nodeId, NodeIndex index, int[] sequences, MillisProvider clock, long timestamp) {
+        this(nodeId, index, sequences, NONE, NONE, clock, timestamp, total(sequences) + index.retired());
+        checkArgument(sequences.length == index.size(), "%s sequences for %s", sequences.length, index);
+    }
+
+    /**
+     * @param sequences every sequence, shared with other clocks, except those at the changed positions, which are
+     *                  in ascending order
+     */
+    private SingleNodeVectorClock(NodeId nodeId, NodeIndex index, int[] sequences, int[] changedPositions,
+                                  int[] changedSequences, MillisProvider clock, int total) {
+        this(nodeId, index, sequences, changedPositions, changedSequences, clock, clock.getMillis(), total);
+    }
+
+    private SingleNodeVectorClock(NodeId nodeId, NodeIndex index, int[] sequences, int[] changedPositions,
+                                  int[] changedSequences, MillisProvider clock, long timestamp, int total) {
         this.nodeId = checkNotNull(nodeId);
-        this.state = checkNotNull(state);
+        this.index = checkNotNull(index);
+        this.sequences = checkNotNull(sequences);
+        this.changedPositions = changedPositions;
+        this.changedSequences = changedSequences;
+        this.position = index.indexOf(nodeId);
+        checkArgument(position >= 0, "%s is not in %s", nodeId, index);
+        this.clock = checkNotNull(clock);
+        this.timestamp = new Instant(timestamp);
+        this.total = total;
+    }
+
+    /**
+     * @param positions the positions of the sequences that differ from this clock's, in ascending order
+     * @param updated the sequences at those positions
+     * @return a clock for the given node with the same nodes as this one, sharing this clock's sequences where it can
+     */
+    SingleNodeVectorClock changed(NodeId nodeId, int[] positions, int[] updated, MillisProvider clock) {
+        return changed(nodeId, positions, updated, clock, clock.getMillis());
+    }
+
+    SingleNodeVectorClock changed(NodeId nodeId, int[] positions, int[] updated, MillisProvider clock, long timestamp) {
+        int updatedTotal = total;
+        for (int i = 0; i < positions.length; i++) {
+            updatedTotal += updated[i] - sequenceAt(positions[i]);
+        }
+        final int[] mergedPositions = new int[changedPositions.length + positions.length];
+        final int[] mergedSequences = new int[mergedPositions.length];
+        int merged = 0;
+        int mine = 0;
+        int theirs = 0;
+        while (mine < changedPositions.length || theirs < positions.length) {
+            if (theirs == positions.length || mine < changedPositions.length && changedPositions[mine] < positions[theirs]) {
+                mergedPositions[merged] = changedPositions[mine];
+                mergedSequences[merged++] = changedSequences[mine++];
+            } else {
+                if (mine < changedPositions.length && changedPositions[mine] == positions[theirs]) {
+                    mine++;
+                }
+                mergedPositions[merged] = positions[theirs];
+                mergedSequences[merged++] = updated[theirs++];
+            }
+        }
+        if (merged * 4 > sequences.length) {
+            final int[] full = sequences.clone();
+            for (int i = 0; i < merged; i++) {
+                full[mergedPositions[i]] = mergedSequences[i];
+            }
+            return new SingleNodeVectorClock(nodeId, index, full, NONE, NONE, clock, timestamp, updatedTotal);
+        }
+        return new SingleNodeVectorClock(nodeId, index, sequences, Arrays.copyOf(mergedPositions, merged),
+                Arrays.copyOf(mergedSequences, merged), clock, timestamp, updatedTotal);
     }
 
     public NodeId getNodeId() {
         return nodeId;
     }
 
+    MillisProvider getClock() {
+        return clock;
+    }
+
+    /**
+     * @return this clock, with its timestamp and those of the clocks that follow from it taken from the given source
+     */
+    SingleNodeVectorClock withClock(MillisProvider clock) {
+        return new SingleNodeVectorClock(nodeId, index, sequences, changedPositions, changedSequences, clock, total);
+    }
+
+    /**
+     * @return this clock with the given timestamp in place of its own
+     */
+    SingleNodeVectorClock withTimestamp(long timestamp) {
+        return new SingleNodeVectorClock(nodeId, index, sequences, changedPositions, changedSequences, clock, timestamp, total);
+    }
+
+    Instant getTimestamp() {
+        return timestamp;
+    }
+
     ImmutableSortedMap<NodeId, Integer> getState() {
-        return state;
+        ImmutableSortedMap.Builder<NodeId, Integer> state = ImmutableSortedMap.naturalOrder();
+        for (int i = 0; i < sequences.length; i++) {
+            state.put(index.get(i), sequenceAt(i));
+        }
+        return state.build();
+    }
+
+    NodeIndex getIndex() {
+        return index;
+    }
+
+    int sequenceAt(int position) {
+        for (int i = 0; i < changedPositions.length && changedPositions[i] <= position; i++) {
+            if (changedPositions[i] == position) {
+                return changedSequences[i];
+            }
+        }
+        return sequences[position];
+    }
+
+    /**
+     * @return a rough estimate of the heap taken by this clock's sequences, leaving out any shared with other clocks
+     */
+    int estimatedSize() {
+        return changedPositions.length == 0 ? 16 + 4 * sequences.length : 32 + 8 * changedPositions.length;
+    }
+
+    /**
+     * @return the sequence for the node at the given position in another index, or 0 if this clock does not know it
+     */
+    int sequenceAt(NodeIndex otherIndex, int otherPosition) {
+        if (index.sameNodesAs(otherIndex)) {
+            return sequenceAt(otherPosition);
+        } else {
+            return sequenceFor(otherIndex.get(otherPosition)).or(0);
+        }
     }
 
     public SingleNodeVectorClock next() {
-        return new SingleNodeVectorClock(nodeId, incrementedState());
+        return changed(nodeId, new int[] { position }, new int[] { sequenceAt(position) + 1 }, clock);
     }
 
     public SingleNodeVectorClock update(NodeId otherNodeId, Integer otherNodeSequence) {
-        return new SingleNodeVectorClock(nodeId, put(incrementedState(), otherNodeId, otherNodeSequence));
+        int otherPosition = index.indexOf(otherNodeId);
+        if (otherPosition == position) {
+            return changed(nodeId, new int[] { position }, new int[] { otherNodeSequence }, clock);
+        } else if (otherPosition >= 0) {
+            int incremented = sequenceAt(position) + 1;
+            return otherPosition < position
+                    ? changed(nodeId, new int[] { otherPosition, position }, new int[] { otherNodeSequence, incremented }, clock)
+                    : changed(nodeId, new int[] { position, otherPosition }, new int[] { incremented, otherNodeSequence }, clock);
+        } else {
+            int insertAt = -(otherPosition + 1);
+            int[] current = currentSequences();
+            int[] updated = new int[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, insertAt);
+            updated[insertAt] = otherNodeSequence;
+            System.arraycopy(current, insertAt, updated, insertAt + 1, current.length - insertAt);
+            int ownPosition = insertAt <= position ? position + 1 : position;
+            updated[ownPosition]++;
+            return new SingleNodeVectorClock(nodeId, index.with(otherNodeId), updated, clock);
+        }
     }
 
-    private ImmutableSortedMap<NodeId, Integer> incrementedState() {
-        return put(state, nodeId, sequenceForDefiningNode() + 1);
+    /**
+     * @return a new array holding every sequence of this clock
+     */
+    private int[] currentSequences() {
+        final int[] current = sequences.clone();
+        for (int i = 0; i < changedPositions.length; i++) {
+            current[changedPositions[i]] = changedSequences[i];
+        }
+        return current;
     }
 
     public Integer sequenceForDefiningNode() {
-        return sequenceFor(nodeId).get();
+        return sequenceAt(position);
     }
 
+    /**
+     * @return the sequence for the node, its final sequence if it has departed, or absent if this clock does not know it
+     */
     public Optional<Integer> sequenceFor(NodeId nodeId) {
-        return Optional.fromNullable(state.get(nodeId));
+        int otherPosition = index.indexOf(nodeId);
+        if (otherPosition >= 0) {
+            return Optional.of(sequenceAt(otherPosition));
+        } else {
+            return index.departedSequence(nodeId);
+        }
+    }
+
+    /**
+     * @return this clock with the other node departed at the given final sequence, so no longer holding a sequence
+     *         for it; if it had already departed, its final sequence is replaced
+     */
+    SingleNodeVectorClock departing(NodeId otherNodeId, int finalSequence) {
+        checkArgument(!otherNodeId.equals(nodeId), "A clock cannot depart its own node %s", nodeId);
+        final NodeIndex departedIndex = index.departing(otherNodeId, finalSequence);
+        final int[] remaining = new int[departedIndex.size()];
+        for (int i = 0; i < remaining.length; i++) {
+            remaining[i] = sequenceAt(index.indexOf(departedIndex.get(i)));
+        }
+        return new SingleNodeVectorClock(nodeId, departedIndex, remaining, clock);
+    }
+
+    /**
+     * @return the final sequence of each node that had departed when this clock was made
+     */
+    ImmutableSortedMap<NodeId, Integer> departed() {
+        return index.departed();
     }
 
     @Override
@@ -73,7 +299,11 @@ public class SingleNodeVectorClock implements Comparable<SingleNodeVectorClock>
         SingleNodeVectorClock that = (SingleNodeVectorClock) o;
 
         if (!nodeId.equals(that.nodeId)) return false;
-        if (!state.equals(that.state)) return false;
+        if (!index.sameNodesAs(that.index)) return false;
+        if (total != that.total) return false;
+        for (int i = 0; i < sequences.length; i++) {
+            if (sequenceAt(i) != that.sequenceAt(i)) return false;
+        }
 
         return true;
     }
@@ -81,81 +311,106 @@ public class SingleNodeVectorClock implements Comparable<SingleNodeVectorClock>
     @Override
     public int hashCode() {
         int result = nodeId.hashCode();
-        result = 31 * result + state.hashCode();
+        result = 31 * result + index.hashCode();
+        int sequencesHash = 1;
+        for (int i = 0; i < sequences.length; i++) {
+            sequencesHash = 31 * sequencesHash + sequenceAt(i);
+        }
+        result = 31 * result + sequencesHash;
         return result;
     }
 
     @Override
     public String toString() {
-        return "{"+nodeId+" "+state.toString()+"}";
+        return "{"+nodeId+" "+getState().toString()+"}";
     }
 
+    /**
+     * Orders clocks by the sum of their sequences, which is cached when the clock is made, so that most comparisons
+     * are a single primitive comparison. A clock that is absolutely before another has a lower sum, so this respects
+     * causality; only concurrent clocks with equal sums go on to compare their sequences node by node. The sum
+     * includes the final sequences of departed nodes, which no later clock can be behind.
+     */
     @Override
     public int compareTo(SingleNodeVectorClock other) {
-        if (equals(other)) {
+        if (total != other.total) {
+            return total < other.total ? -1 : 1;
+        } else if (this == other) {
             return 0;
-        } else if (isAbsolutelyBefore(other)) {
-            return  -1;
-        } else if (isAbsolutelyAfter(other)) {
-            return 1;
-        } else  {
-            int diff = sequenceDiff(other);
-            if (diff != 0) {
-                return diff;
-            } else {
-                return orderedSequenceCompare(other);
-            }
+        } else {
+            return orderedSequenceCompare(other);
         }
     }
 
-    private int sequenceDiff(SingleNodeVectorClock other) {
-        int sequenceTotal = total(state.values());
-        int otherSequenceTotal = total(other.state.values());
-        return sequenceTotal - otherSequenceTotal;
-    }
-
     private int orderedSequenceCompare(SingleNodeVectorClock other) {
-        for (NodeId nodeId : nodeIds()) {
-            int diff = sequenceFor(nodeId).get() - other.sequenceFor(nodeId).or(0);
-            if (diff != 0) {
-                return diff;
+        if (haveSameNodeSet(other)) {
+            for (int i = 0; i < sequences.length; i++) {
+                int diff = sequenceAt(i) - other.sequenceAt(i);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+        } else {
+            for (NodeId node : allNodesOf(this, other)) {
+                int diff = sequenceFor(node).or(0) - other.sequenceFor(node).or(0);
+                if (diff != 0) {
+                    return diff;
+                }
             }
         }
-        throw new AssertionError("It should be impossible to have two clocks with the same sequences that are not equal");
+        // the same sequences from another node, as on a boundary built from the lowest common clock, sort by node id so
+        // that the order stays antisymmetric
+        return nodeId.compareTo(other.nodeId);
     }
 
-    private int total(ImmutableCollection<Integer> values) {
+    /**
+     * @return every node present in or departed from either clock, in order
+     */
+    private static ImmutableSortedSet<NodeId> allNodesOf(SingleNodeVectorClock one, SingleNodeVectorClock other) {
+        return ImmutableSortedSet.<NodeId>naturalOrder()
+                .addAll(one.nodeIds()).addAll(one.departed().keySet())
+                .addAll(other.nodeIds()).addAll(other.departed().keySet())
+                .build();
+    }
+
+    private static int total(int[] sequences) {
         int acc = 0;
-        for (Integer value : values) {
-            acc += value;
+        for (int sequence : sequences) {
+            acc += sequence;
         }
         return acc;
     }
 
     public boolean isAbsolutelyAfter(final SingleNodeVectorClock other) {
-        return haveSameNodeSet(other) && from(nodeIds()).allMatch(new Predicate<NodeId>() {
-            @Override
-            public boolean apply(NodeId nodeId) {
-                return sequenceFor(nodeId).get() >= other.sequenceFor(nodeId).get();
+        if (!haveSameNodeSet(other)) {
+            return false;
+        }
+        for (int i = 0; i < sequences.length; i++) {
+            if (sequenceAt(i) < other.sequenceAt(i)) {
+                return false;
             }
-        });
+        }
+        return true;
     }
 
     public boolean isAbsolutelyBefore(final SingleNodeVectorClock other) {
-        return haveSameNodeSet(other) && from(nodeIds()).allMatch(new Predicate<NodeId>() {
-            @Override
-            public boolean apply(NodeId nodeId) {
-                return sequenceFor(nodeId).get() <= other.sequenceFor(nodeId).get();
+        if (!haveSameNodeSet(other)) {
+            return false;
+        }
+        for (int i = 0; i < sequences.length; i++) {
+            if (sequenceAt(i) > other.sequenceAt(i)) {
+                return false;
             }
-        });
+        }
+        return true;
     }
 
     private boolean haveSameNodeSet(SingleNodeVectorClock other) {
-        return nodeIds().equals(other.nodeIds());
+        return index.sameNodesAs(other.index);
     }
 
     public ImmutableSortedSet<NodeId> nodeIds() {
-        return state.keySet();
+        return index.nodeIds();
     }
 
     public SingleNodeVectorClock add(NodeId nodeId) {
@@ -163,7 +418,7 @@ public class SingleNodeVectorClock implements Comparable<SingleNodeVectorClock>
     }
 
     public SingleNodeVectorClock update(SingleNodeVectorClock updatedRemoteClock) {
-        return new SingleNodeVectorClock(nodeId, put(incrementedState(), updatedRemoteClock.getNodeId(), updatedRemoteClock.sequenceForDefiningNode()));
+        return update(updatedRemoteClock.getNodeId(), updatedRemoteClock.sequenceForDefiningNode());
     }
 
     boolean isBefore(SingleNodeVectorClock clock) {
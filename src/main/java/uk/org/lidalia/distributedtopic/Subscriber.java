@@ -0,0 +1,21 @@
+package uk.org.lidalia.distributedtopic;
+
+/**
+ * Receives the consistent messages of a {@link TopicNode} as they become consistent, in order, and no faster than it
+ * asks for them through its {@link Subscription}. Calls to a subscriber are never made concurrently. A topic has no
+ * end, so there is nothing to say when it completes.
+ */
+public interface Subscriber<T> {
+
+    /**
+     * Called once, before anything else, with the subscription through which to ask for messages.
+     */
+    void onSubscribe(Subscription subscription);
+
+    void onNext(Message<T> message);
+
+    /**
+     * Called if {@link #onNext} throws, after which the subscription is cancelled.
+     */
+    void onError(Throwable error);
+}
@@ -0,0 +1,17 @@
+package uk.org.lidalia.distributedtopic;
+
+/**
+ * A {@link Subscriber}'s link to the {@link TopicNode} it subscribed to.
+ */
+public interface Subscription {
+
+    /**
+     * Allows the given number of further messages to be sent; {@link Long#MAX_VALUE} allows any number.
+     */
+    void request(long count);
+
+    /**
+     * Stops messages being sent, and stops the subscription holding back compaction of those not yet sent.
+     */
+    void cancel();
+}
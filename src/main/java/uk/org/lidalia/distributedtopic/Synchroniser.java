@@ -1,57 +1,382 @@
 package uk.org.lidalia.distributedtopic;
 
-import java.util.Random;
-import java.util.Set;
-import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.joda.time.DateTimeUtils.MillisProvider;
 import org.joda.time.Duration;
-import org.joda.time.Instant;
 
-import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-import static org.joda.time.Instant.now;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 
-public class Synchroniser {
+/**
+ * Sends a node's messages to its peers, each over a lane of its own. A synchroniser that makes its own threads, as one
+ * built without an executor does, should be {@link #close() closed} once its node is finished with; those threads are
+ * daemons, so one that is not closed does not keep the process alive.
+ */
+public class Synchroniser implements Closeable {
 
-    private final Random random = new Random();
-    private final LinkedBlockingQueue<Runnable> workQueue = new LinkedBlockingQueue<>();
-    private final ExecutorService syncer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, workQueue);
-    private final Set<TopicNode> otherNodes = new CopyOnWriteArraySet<>();
+    private static final int HEARTBEAT_QUEUE_LIMIT = 2;
+
+    private final ConcurrentMap<NodeId, Lane> lanes = new ConcurrentHashMap<>();
+    private final AtomicInteger lanesChanged = new AtomicInteger();
+    private volatile Routes routes = null;
+
+    private final int maxBatchSize;
+    private final Duration linger;
+    private final SimulatedLink link;
+    private final Dissemination dissemination;
+    private final MillisProvider clock;
+    private final Optional<ScheduledExecutorService> lingerTimer;
+    private final boolean ownsLingerTimer;
+    private final Optional<ScheduledExecutorService> deliveryExecutor;
+    private volatile Optional<MetricRegistry> metrics = Optional.absent();
 
     public Synchroniser() {
+        this(1, Duration.ZERO);
     }
 
-    public void synchronise(final Message message) {
-        for (final TopicNode node : otherNodes) {
-            final Instant submissionTime = now();
-            syncer.submit(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        final Duration latency = Duration.millis(random.nextInt(1000) + 100);
-                        final Instant arrivalTime = submissionTime.plus(latency);
-                        final Duration timeToWait = new Duration(now(), arrivalTime);
-                        if (timeToWait.getMillis() > 0) {
-                            Uninterruptibles.sleepUninterruptibly(timeToWait.getMillis(), TimeUnit.MILLISECONDS);
-                        }
-                        node.sync(message);
-                    } catch (Throwable t) {
-                        t.printStackTrace();
-                    }
-                }
-            });
+    /**
+     * @param maxBatchSize the number of messages for a peer that will be coalesced into a single delivery
+     * @param linger how long a partial batch waits for more messages before being delivered anyway
+     */
+    public Synchroniser(int maxBatchSize, Duration linger) {
+        this(maxBatchSize, linger, SimulatedLink.defaultLink());
+    }
+
+    public Synchroniser(int maxBatchSize, Duration linger, SimulatedLink link) {
+        this(maxBatchSize, linger, link, Disseminations.fullMesh());
+    }
+
+    /**
+     * @param dissemination which peers each message is sent to, and whether messages from other nodes are relayed
+     */
+    public Synchroniser(int maxBatchSize, Duration linger, SimulatedLink link, Dissemination dissemination) {
+        this(maxBatchSize, linger, link, dissemination, SingleNodeVectorClock.systemClock,
+                maxBatchSize > 1 ? Optional.of(lingerTimer()) : Optional.<ScheduledExecutorService>absent(), true,
+                Optional.<ScheduledExecutorService>absent());
+    }
+
+    /**
+     * Runs on the given clock and executor rather than the system's, such as those of a {@link Simulation}: both
+     * batches and deliveries to nodes over the {@link SimulatedLink} are scheduled on the executor.
+     */
+    public Synchroniser(int maxBatchSize, Duration linger, SimulatedLink link, Dissemination dissemination,
+                        MillisProvider clock, ScheduledExecutorService executor) {
+        this(maxBatchSize, linger, link, dissemination, clock, Optional.of(executor), false, Optional.of(executor));
+    }
+
+    /**
+     * @param lingerTimer where partial batches wait out their linger, absent if nothing is batched
+     */
+    private Synchroniser(int maxBatchSize, Duration linger, SimulatedLink link, Dissemination dissemination, MillisProvider clock,
+                         Optional<ScheduledExecutorService> lingerTimer, boolean ownsLingerTimer,
+                         Optional<ScheduledExecutorService> deliveryExecutor) {
+        checkArgument(maxBatchSize > 0, "maxBatchSize must be positive, was %s", maxBatchSize);
+        this.maxBatchSize = maxBatchSize;
+        this.linger = checkNotNull(linger);
+        this.link = checkNotNull(link);
+        this.dissemination = checkNotNull(dissemination);
+        this.clock = checkNotNull(clock);
+        this.lingerTimer = checkNotNull(lingerTimer);
+        this.ownsLingerTimer = ownsLingerTimer;
+        this.deliveryExecutor = checkNotNull(deliveryExecutor);
+    }
+
+    private static ScheduledExecutorService lingerTimer() {
+        return Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("synchroniser-linger-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Sends a message the local node has just stored.
+     */
+    public void synchronise(final Message<?> message) {
+        final NodeId self = message.getVectorClock().getNodeId();
+        for (Lane lane : routes(self).from(self)) {
+            send(lane, message);
         }
     }
 
-    public void syncWith(TopicNode otherNode) {
-        otherNodes.add(otherNode);
+    /**
+     * Passes on messages from other nodes that the local node has received for the first time, to whichever peers the
+     * {@link Dissemination} relays them to.
+     */
+    public void relay(NodeId self, List<? extends Message<?>> received) {
+        final Routes routes = routes(self);
+        for (Message<?> message : received) {
+            for (Lane lane : routes.from(message.getVectorClock().getNodeId())) {
+                send(lane, message);
+            }
+        }
+    }
+
+    /**
+     * @return the routes for the current lanes, worked out again only once lanes have been added or removed
+     */
+    private Routes routes(NodeId self) {
+        final int version = lanesChanged.get();
+        final Routes current = routes;
+        if (current != null && current.version == version && current.self.equals(self)) {
+            return current;
+        }
+        final Routes updated = new Routes(self, version,
+                ImmutableSortedSet.<NodeId>naturalOrder().addAll(lanes.keySet()).add(self).build());
+        routes = updated;
+        return updated;
+    }
+
+    /**
+     * A heartbeat is not sent to a peer with {@value #HEARTBEAT_QUEUE_LIMIT} or more deliveries already waiting, so
+     * that a peer that has stalled is not sent one more every tick; the next heartbeat it can take carries a later
+     * clock anyway.
+     */
+    private void send(Lane lane, Message<?> message) {
+        if (message.isHeartbeat() && lane.depth() >= HEARTBEAT_QUEUE_LIMIT) {
+            return;
+        }
+        if (maxBatchSize == 1) {
+            lane.deliver(ImmutableList.of(message));
+        } else {
+            lane.batch(message);
+        }
+    }
+
+    /**
+     * Synchronises with another node in this process over this synchroniser's {@link SimulatedLink}.
+     */
+    public void syncWith(TopicNode<?> otherNode) {
+        if (!lanes.containsKey(otherNode.getId())) {
+            final SimulatedPeer peer = deliveryExecutor.isPresent()
+                    ? new SimulatedPeer(otherNode, link, clock, deliveryExecutor.get())
+                    : new SimulatedPeer(otherNode, link);
+            if (!addLane(new Lane(peer, Optional.of(peer)))) {
+                peer.close();
+            }
+        }
+    }
+
+    public void syncWith(Peer peer) {
+        addLane(new Lane(peer, Optional.<SimulatedPeer>absent()));
+    }
+
+    private boolean addLane(Lane lane) {
+        if (lanes.putIfAbsent(lane.peer.getId(), lane) != null) {
+            return false;
+        }
+        lanesChanged.incrementAndGet();
+        if (metrics.isPresent()) {
+            registerQueueDepth(metrics.get(), lane.peer.getId());
+        }
+        return true;
+    }
+
+    /**
+     * Stops synchronising with a peer that has departed the topic, closing its lane and, if this synchroniser made
+     * the peer, stopping the thread it delivered on.
+     */
+    public void remove(NodeId peer) {
+        final Lane lane = lanes.remove(peer);
+        if (lane != null) {
+            lanesChanged.incrementAndGet();
+            lane.close();
+        }
+    }
+
+    /**
+     * Reports the depth of the queue to each peer, now and as peers are added, as a gauge named {@code queue.<peer>}.
+     */
+    void instrument(MetricRegistry metrics) {
+        this.metrics = Optional.of(metrics);
+        for (NodeId peer : lanes.keySet()) {
+            registerQueueDepth(metrics, peer);
+        }
+    }
+
+    private void registerQueueDepth(MetricRegistry metrics, final NodeId peer) {
+        metrics.gauge("queue." + peer.getId(), new Gauge() {
+            @Override
+            public long value() {
+                return queue(peer);
+            }
+        });
+    }
+
+    /**
+     * Sends an anti-entropy request to every peer, asking each for whatever it holds beyond the given clock.
+     */
+    public void requestMissing(SingleNodeVectorClock received) {
+        for (Lane lane : lanes.values()) {
+            lane.peer.requestMissing(received);
+        }
+    }
+
+    /**
+     * Sends messages to a single peer straight away, ahead of any batch being built up for it.
+     */
+    public void deliver(NodeId peer, ImmutableList<Message<?>> messages) {
+        final Lane lane = lanes.get(peer);
+        if (lane != null) {
+            lane.deliver(messages);
+        }
+    }
+
+    /**
+     * @return whether a heartbeat would be sent to any peer, or there are none to hold it back
+     */
+    boolean canTakeHeartbeat() {
+        if (lanes.isEmpty()) {
+            return true;
+        }
+        for (Lane lane : lanes.values()) {
+            if (lane.depth() < HEARTBEAT_QUEUE_LIMIT) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public int queue() {
-        return workQueue.size();
+        int total = 0;
+        for (Lane lane : lanes.values()) {
+            total += lane.depth();
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of deliveries waiting to be made to the given peer
+     */
+    public int queue(NodeId peer) {
+        final Lane lane = lanes.get(peer);
+        return lane == null ? 0 : lane.depth();
+    }
+
+    /**
+     * Stops synchronising with every peer, and stops any threads this synchroniser made for itself or for peers in
+     * this process. Messages still waiting to linger out a batch, or on their way over a simulated link, are dropped.
+     */
+    @Override
+    public void close() {
+        for (NodeId peer : lanes.keySet()) {
+            remove(peer);
+        }
+        if (ownsLingerTimer && lingerTimer.isPresent()) {
+            lingerTimer.get().shutdownNow();
+        }
+    }
+
+    public ImmutableMap<NodeId, Integer> queues() {
+        final ImmutableMap.Builder<NodeId, Integer> queues = ImmutableMap.builder();
+        for (Map.Entry<NodeId, Lane> lane : lanes.entrySet()) {
+            queues.put(lane.getKey(), lane.getValue().depth());
+        }
+        return queues.build();
+    }
+
+    /**
+     * The outbound queue to a single peer, batching messages before handing them over if batching is enabled.
+     */
+    /**
+     * The lanes each origin's messages go out on, as the {@link Dissemination} decides for one set of lanes, asked for
+     * each origin only the first time one of its messages is sent.
+     */
+    private final class Routes {
+
+        private final NodeId self;
+        private final int version;
+        private final ImmutableSortedSet<NodeId> members;
+        private final ConcurrentMap<NodeId, ImmutableList<Lane>> byOrigin = new ConcurrentHashMap<>();
+
+        private Routes(NodeId self, int version, ImmutableSortedSet<NodeId> members) {
+            this.self = self;
+            this.version = version;
+            this.members = members;
+        }
+
+        private ImmutableList<Lane> from(NodeId origin) {
+            final ImmutableList<Lane> existing = byOrigin.get(origin);
+            if (existing != null) {
+                return existing;
+            }
+            final ImmutableList.Builder<Lane> targets = ImmutableList.builder();
+            for (NodeId target : dissemination.targets(self, origin, members)) {
+                final Lane lane = lanes.get(target);
+                if (lane != null) {
+                    targets.add(lane);
+                }
+            }
+            final ImmutableList<Lane> created = targets.build();
+            byOrigin.put(origin, created);
+            return created;
+        }
+    }
+
+    private class Lane {
+
+        private final Peer peer;
+        private final Optional<SimulatedPeer> created;
+        private List<Message<?>> batch = null;
+
+        /**
+         * @param created the peer, if this synchroniser made it and so must close it
+         */
+        private Lane(Peer peer, Optional<SimulatedPeer> created) {
+            this.peer = peer;
+            this.created = created;
+        }
+
+        private synchronized void batch(Message<?> message) {
+            if (batch == null) {
+                final List<Message<?>> newBatch = new ArrayList<>(maxBatchSize);
+                batch = newBatch;
+                lingerTimer.get().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(newBatch);
+                    }
+                }, linger.getMillis(), TimeUnit.MILLISECONDS);
+            }
+            batch.add(message);
+            if (batch.size() >= maxBatchSize) {
+                flush(batch);
+            }
+        }
+
+        private synchronized void flush(List<Message<?>> toFlush) {
+            if (batch == toFlush) {
+                batch = null;
+                deliver(ImmutableList.copyOf(toFlush));
+            }
+        }
+
+        private void deliver(ImmutableList<Message<?>> messages) {
+            peer.deliver(messages);
+        }
+
+        private synchronized int depth() {
+            return peer.queued() + (batch == null ? 0 : 1);
+        }
+
+        private synchronized void close() {
+            batch = null;
+            if (created.isPresent()) {
+                created.get().close();
+            }
+        }
     }
 }
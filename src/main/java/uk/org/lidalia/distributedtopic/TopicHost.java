@@ -0,0 +1,251 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTimeUtils.MillisProvider;
+import org.joda.time.Duration;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Holds this process's node for any number of named topics, so that the threads and control traffic of a process do
+ * not grow with the number of topics it takes part in.
+ * <p>
+ * Every topic's node, and its {@link Synchroniser}, runs on the host's one executor rather than threads of its own.
+ * Rather than each node scheduling its own heartbeats, anti-entropy and compaction, the host runs one tick for all of
+ * them, so the heartbeats every topic owes a peer are sent together; over a connection from
+ * {@link NioTransport#connectHost}, which carries every topic to that peer, they go out in the same write. A tick
+ * costs no disk writes, as heartbeats are not stored. To a host in the same process, though, topics share only the
+ * executor: each topic has a synchroniser of its own, so its deliveries queue, batch and linger in a lane of their
+ * own rather than alongside other topics'. Topics are synchronised with every host this one syncs with, including
+ * topics created afterwards. Each topic's node has the host's id, and reports its metrics under its topic's name;
+ * unless given registries of its own, the host publishes them over JMX until it is closed.
+ */
+public class TopicHost implements Closeable {
+
+    private static final long ROUND_MILLIS = 1000;
+
+    private final NodeId id;
+    private final int maxBatchSize;
+    private final Duration linger;
+    private final SimulatedLink link;
+    private final MillisProvider clock;
+    private final ScheduledExecutorService executor;
+    private final boolean ownsExecutor;
+    private final Function<String, ? extends MetricRegistry> metrics;
+
+    private final ConcurrentMap<String, TopicNode<?>> topics = new ConcurrentHashMap<>();
+    private final Set<TopicHost> localHosts = new CopyOnWriteArraySet<>();
+    private final Set<RemoteHost> remoteHosts = new CopyOnWriteArraySet<>();
+
+    public TopicHost(int id) {
+        this(id, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads the number of threads shared by every topic
+     */
+    public TopicHost(int id, int threads) {
+        this(id, 1, Duration.ZERO, threads);
+    }
+
+    /**
+     * @param maxBatchSize the number of messages for a peer that will be coalesced into a single delivery, per topic
+     * @param linger how long a partial batch waits for more messages before being delivered anyway
+     * @param threads the number of threads shared by every topic
+     */
+    public TopicHost(final int id, int maxBatchSize, Duration linger, int threads) {
+        this(id, maxBatchSize, linger, SimulatedLink.defaultLink(), SingleNodeVectorClock.systemClock,
+                Executors.newScheduledThreadPool(threads, new ThreadFactoryBuilder().setNameFormat("topic-host-" + id + "-%d").build()),
+                true, new Function<String, MetricRegistry>() {
+                    @Override
+                    public MetricRegistry apply(String topic) {
+                        return JmxMetricRegistry.forTopic(new NodeId(id), topic);
+                    }
+                });
+    }
+
+    /**
+     * Runs on the given clock and executor rather than the system's, such as those of a {@link Simulation}, with
+     * topics in this process reached over the given link.
+     *
+     * @param metrics the registry for each topic's metrics, given its name; it is closed with the topic's node if it is
+     *                {@link java.io.Closeable}
+     */
+    public TopicHost(int id, int maxBatchSize, Duration linger, SimulatedLink link, MillisProvider clock,
+                     ScheduledExecutorService executor, Function<String, ? extends MetricRegistry> metrics) {
+        this(id, maxBatchSize, linger, link, clock, executor, false, metrics);
+    }
+
+    private TopicHost(int id, int maxBatchSize, Duration linger, SimulatedLink link, MillisProvider clock,
+                      ScheduledExecutorService executor, boolean ownsExecutor, Function<String, ? extends MetricRegistry> metrics) {
+        checkArgument(maxBatchSize > 0, "maxBatchSize must be positive, was %s", maxBatchSize);
+        this.id = new NodeId(id);
+        this.maxBatchSize = maxBatchSize;
+        this.linger = checkNotNull(linger);
+        this.link = checkNotNull(link);
+        this.clock = checkNotNull(clock);
+        this.executor = checkNotNull(executor);
+        this.ownsExecutor = ownsExecutor;
+        this.metrics = checkNotNull(metrics);
+    }
+
+    public NodeId getId() {
+        return id;
+    }
+
+    /**
+     * @return the node for the named topic, created holding every message in memory if this host has none yet
+     */
+    public <T> TopicNode<T> topic(String name) {
+        final Optional<TopicNode<T>> existing = this.<T>existing(name);
+        if (existing.isPresent()) {
+            return existing.get();
+        }
+        final Optional<TopicNode<T>> created = add(name, RetentionPolicy.retainAll(), new VolatileMessageStore<T>());
+        return created.isPresent() ? created.get() : this.<T>existing(name).get();
+    }
+
+    /**
+     * @return a new node for the named topic, retaining and storing its messages as given
+     * @throws IllegalStateException if this host already has the topic
+     */
+    public <T> TopicNode<T> topic(String name, RetentionPolicy retentionPolicy, MessageStore<T> store) {
+        final Optional<TopicNode<T>> created = add(name, retentionPolicy, store);
+        checkState(created.isPresent(), "Topic %s already exists on %s", name, id);
+        return created.get();
+    }
+
+    /**
+     * @return the named topic split by key into the given number of partitions, each a topic on this host created
+     *         holding every message in memory if this host has none yet
+     */
+    public <K, T> PartitionedTopic<K, T> partitioned(String name, int partitions) {
+        return new PartitionedTopic<>(this, name, partitions);
+    }
+
+    public Optional<TopicNode<?>> existingTopic(String name) {
+        return Optional.<TopicNode<?>>fromNullable(topics.get(name));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> Optional<TopicNode<T>> existing(String name) {
+        return Optional.fromNullable((TopicNode<T>) topics.get(name));
+    }
+
+    /**
+     * Topics are created one at a time, so that a node is only built, and its metrics registered, for a topic that
+     * does not yet exist. The new node is connected to other hosts once it is visible, outside the lock, so that two
+     * hosts creating the same topic in each other cannot deadlock; a host added meanwhile may connect it too, which
+     * is harmless.
+     *
+     * @return the new node, or absent if the topic already existed
+     */
+    private <T> Optional<TopicNode<T>> add(String name, RetentionPolicy retentionPolicy, MessageStore<T> store) {
+        final TopicNode<T> created;
+        synchronized (topics) {
+            if (topics.containsKey(name)) {
+                return Optional.absent();
+            }
+            final Synchroniser synchroniser = new Synchroniser(maxBatchSize, linger, link, Disseminations.fullMesh(), clock, executor);
+            created = new TopicNode<>(id.getId(), synchroniser, retentionPolicy, store, clock, executor, metrics.apply(name));
+            topics.put(name, created);
+        }
+        for (TopicHost host : localHosts) {
+            created.syncWith(host.<T>topic(name));
+        }
+        for (RemoteHost host : remoteHosts) {
+            created.syncWith(host.topic(name));
+        }
+        return Optional.of(created);
+    }
+
+    public ImmutableSortedSet<String> topics() {
+        return ImmutableSortedSet.copyOf(topics.keySet());
+    }
+
+    /**
+     * Synchronises every topic on this host with the same topic on another host in this process, creating it there if
+     * it has no node for it, now and whenever a topic is created here.
+     */
+    public void syncWith(TopicHost other) {
+        if (localHosts.add(other)) {
+            for (String name : topics.keySet()) {
+                this.topic(name).syncWith(other.topic(name));
+            }
+        }
+    }
+
+    /**
+     * Synchronises every topic on this host, now and whenever one is created, with the same topic on a host in another
+     * process.
+     */
+    public void syncWith(RemoteHost other) {
+        if (remoteHosts.add(other)) {
+            for (Map.Entry<String, TopicNode<?>> topic : topics.entrySet()) {
+                topic.getValue().syncWith(other.topic(topic.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Schedules one heartbeat tick covering every topic, and one round of anti-entropy, compaction and membership
+     * changes across them all each second.
+     */
+    public void start() {
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                for (TopicNode<?> node : topics.values()) {
+                    try {
+                        node.heartbeatIfDue();
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    }
+                }
+            }
+        }, 0, TopicNode.MIN_HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (TopicNode<?> node : topics.values()) {
+                    try {
+                        node.compact();
+                        node.antiEntropy();
+                        node.reviewMembership();
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    }
+                }
+            }
+        }, ROUND_MILLIS, ROUND_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes every topic's node, and stops the host's threads if it made them itself.
+     */
+    @Override
+    public void close() {
+        for (TopicNode<?> node : topics.values()) {
+            node.close();
+        }
+        if (ownsExecutor) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -1,112 +1,1319 @@
 package uk.org.lidalia.distributedtopic;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.FluentIterable;
+import org.joda.time.DateTimeUtils.MillisProvider;
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
-import static com.google.common.collect.FluentIterable.from;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Throwables.propagate;
 
-public class TopicNode {
+public class TopicNode<T> implements Closeable {
 
-    private static final Object heartBeat = "HEARTBEAT";
+    private static final Object boundary = "BOUNDARY";
+    static final long MIN_HEARTBEAT_INTERVAL_MILLIS = 10;
+    private static final long MAX_HEARTBEAT_INTERVAL_MILLIS = 1000;
+    private static final int STORE_TIMES = 4096;
+    private static final int SEQUENCE_RESERVATION = 1 << 16;
 
-    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledExecutorService executor;
+    private final boolean ownsExecutor;
+    private final MillisProvider clock;
 
-    private final ConcurrentSkipListSet<Message> messages = new ConcurrentSkipListSet<>();
-    private volatile VectorClock vectorClock;
+    private final ConcurrentSkipListSet<Message<T>> messages = new ConcurrentSkipListSet<>();
+    private final ConcurrentMap<NodeId, ConcurrentNavigableMap<Integer, Message<T>>> messagesByOrigin = new ConcurrentHashMap<>();
+    private final ConcurrentMap<NodeId, Integer> compactedUpTo = new ConcurrentHashMap<>();
+    private final AtomicReference<ClockState> clockState;
+    private final AtomicReference<ClockState> retainedState;
+    private final ConcurrentMap<Long, Allocated<T>> unsynchronised = new ConcurrentHashMap<>();
+    private final Lock synchronisationLock = new ReentrantLock();
+    private volatile long nextToSynchronise = 1;
 
     private final NodeId id;
 
-    private final Synchroniser synchroniser = new Synchroniser();
+    private final Synchroniser synchroniser;
     private final AtomicBoolean needsHeartbeat = new AtomicBoolean(false);
+    private final AtomicBoolean receivedData = new AtomicBoolean(false);
+    private long heartbeatInterval = MIN_HEARTBEAT_INTERVAL_MILLIS;
+    private long lastHeartbeat = 0;
+    private final AtomicReference<SingleNodeVectorClock> receivedAtLastAntiEntropy = new AtomicReference<>();
+    private volatile Optional<PhiAccrualFailureDetector> failureDetector = Optional.absent();
+    private volatile FlowControl flowControl = FlowControl.unbounded();
+    private final Lock windowLock = new ReentrantLock();
+    private final Condition windowOpened = windowLock.newCondition();
+    private final Queue<PendingStore<T>> pendingStores = new ConcurrentLinkedQueue<>();
+    private final NavigableSet<Integer> unacknowledgedSequences = new ConcurrentSkipListSet<>();
+
+    private final RetentionPolicy retentionPolicy;
+    private final MessageStore<T> store;
+    private final Object reservationLock = new Object();
+    private volatile int reservedSequences;
+    private final Set<Cursor<T>> cursors = Collections.newSetFromMap(new MapMaker().weakKeys().<Cursor<T>, Boolean>makeMap());
+    private final Set<CursorSubscription<T>> subscriptions = Collections.newSetFromMap(new ConcurrentHashMap<CursorSubscription<T>, Boolean>());
+    private volatile SingleNodeVectorClock signalledUpTo;
+    private final AtomicLong retainedMessages = new AtomicLong();
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    private final MetricRegistry metrics;
+    private final Counter stored;
+    private final Counter received;
+    private final Counter rejected;
+    private final ConcurrentMap<NodeId, Histogram> deliveryLatencies = new ConcurrentHashMap<>();
+    private final Histogram storeToConsistent;
+    private final long startedAt;
+    private final AtomicLongArray storeTimes = new AtomicLongArray(STORE_TIMES);
+    private final AtomicBoolean recordingConsistency = new AtomicBoolean(false);
+    private int consistentUpTo;
 
     public TopicNode(final int id) {
+        this(id, new Synchroniser());
+    }
+
+    public TopicNode(final int id, final Synchroniser synchroniser) {
+        this(id, synchroniser, RetentionPolicy.retainAll());
+    }
+
+    public TopicNode(final int id, final Synchroniser synchroniser, final RetentionPolicy retentionPolicy) {
+        this(id, synchroniser, retentionPolicy, new VolatileMessageStore<T>());
+    }
+
+    /**
+     * Starts from whatever the store holds: its messages are loaded directly, and the clock is rebuilt from the latest
+     * clock the store has seen from each origin rather than by replaying every message.
+     */
+    public TopicNode(final int id, final Synchroniser synchroniser, final RetentionPolicy retentionPolicy, final MessageStore<T> store) {
+        this(id, synchroniser, retentionPolicy, store, new InMemoryMetricRegistry());
+    }
+
+    /**
+     * Reports metrics to the given registry, such as {@link JmxMetricRegistry#forNode} to publish them over JMX. The
+     * registry is closed with the node if it is {@link Closeable}.
+     */
+    public TopicNode(final int id, final Synchroniser synchroniser, final RetentionPolicy retentionPolicy, final MessageStore<T> store,
+                     final MetricRegistry metrics) {
+        this(id, synchroniser, retentionPolicy, store, SingleNodeVectorClock.systemClock, SingleNodeVectorClock.jitteryClock,
+                Executors.newSingleThreadScheduledExecutor(), true, metrics);
+    }
+
+    /**
+     * Runs on the given clock and executor rather than the system's, such as those of a {@link Simulation}.
+     */
+    public TopicNode(final int id, final Synchroniser synchroniser, final RetentionPolicy retentionPolicy, final MessageStore<T> store,
+                     final MillisProvider clock, final ScheduledExecutorService executor) {
+        this(id, synchroniser, retentionPolicy, store, clock, executor, new InMemoryMetricRegistry());
+    }
+
+    public TopicNode(final int id, final Synchroniser synchroniser, final RetentionPolicy retentionPolicy, final MessageStore<T> store,
+                     final MillisProvider clock, final ScheduledExecutorService executor, final MetricRegistry metrics) {
+        this(id, synchroniser, retentionPolicy, store, clock, clock, executor, false, metrics);
+    }
+
+    /**
+     * @param timestamps the source of the timestamps on this node's vector clocks
+     * @param ownsExecutor whether the executor was made for this node, and so should be shut down with it
+     */
+    private TopicNode(final int id, final Synchroniser synchroniser, final RetentionPolicy retentionPolicy, final MessageStore<T> store,
+                      final MillisProvider clock, final MillisProvider timestamps, final ScheduledExecutorService executor,
+                      final boolean ownsExecutor, final MetricRegistry metrics) {
         this.id = new NodeId(id);
-        this.vectorClock = new VectorClock(this.id);
+        this.clock = checkNotNull(clock);
+        this.executor = checkNotNull(executor);
+        this.ownsExecutor = ownsExecutor;
+        this.synchroniser = checkNotNull(synchroniser);
+        this.retentionPolicy = checkNotNull(retentionPolicy);
+        this.store = checkNotNull(store);
+        this.metrics = checkNotNull(metrics);
+        this.stored = metrics.counter("stored");
+        this.received = metrics.counter("received");
+        this.rejected = metrics.counter("rejected");
+        this.storeToConsistent = metrics.histogram("storeToConsistentMillis");
+        this.startedAt = clock.getMillis();
+        for (Message<T> message : store.recover()) {
+            hold(message);
+        }
+        final int lastMessage = messagesFrom(this.id).isEmpty() ? 0 : messagesFrom(this.id).lastKey();
+        this.reservedSequences = store.reservedSequences();
+        this.clockState = new AtomicReference<>(new ClockState(
+                recoverClock(this.id, recoveredClocks(store.latestClocks()), reservedSequences, timestamps), 0, 0, lastMessage, lastMessage));
+        this.retainedState = new AtomicReference<>(clockState.get());
+        for (Map.Entry<NodeId, Integer> departed : vectorClock().getLocalClock().departed().entrySet()) {
+            discardAfter(departed.getKey(), departed.getValue());
+        }
+        this.consistentUpTo = lowestCommonClock().sequenceForDefiningNode();
+        registerGauges();
+    }
+
+    /**
+     * Besides the gauges registered here, each node reports the number of messages it has stored and received, a
+     * histogram per origin of how long its messages took to arrive, and a histogram of how long this node's own
+     * messages took to become consistent. Arrival is measured from the timestamp the origin gave the message, which
+     * travels with it and is kept by the store, so it is skewed only by any difference between the two nodes' clocks.
+     */
+    private void registerGauges() {
+        metrics.gauge("retainedMessages", new Gauge() {
+            @Override
+            public long value() {
+                return retainedMessages();
+            }
+        });
+        metrics.gauge("retainedBytes", new Gauge() {
+            @Override
+            public long value() {
+                return retainedBytes();
+            }
+        });
+        for (NodeId origin : vectorClock().getLocalClock().nodeIds()) {
+            registerLag(origin);
+        }
+        synchroniser.instrument(metrics);
+    }
+
+    /**
+     * Registers a gauge of how many of the messages from the given origin that this node knows of are not yet known
+     * to every node, and so are holding back the lowest common clock.
+     */
+    private void registerLag(final NodeId origin) {
+        metrics.gauge("lowestCommonClockLag." + origin.getId(), new Gauge() {
+            @Override
+            public long value() {
+                final VectorClock vectorClock = vectorClock();
+                return vectorClock.getLocalClock().sequenceFor(origin).or(0)
+                        - vectorClock.getLowestCommonClock().sequenceFor(origin).or(0);
+            }
+        });
+    }
+
+    /**
+     * @return the latest clocks the store has seen, except that each other origin's is the latest up to which every
+     *         message from it was recovered, so that messages it never received before stopping are asked for again
+     */
+    private ImmutableMap<NodeId, SingleNodeVectorClock> recoveredClocks(ImmutableMap<NodeId, SingleNodeVectorClock> latestClocks) {
+        final Map<NodeId, SingleNodeVectorClock> recovered = new HashMap<>(latestClocks);
+        for (NodeId origin : messagesByOrigin.keySet()) {
+            if (!origin.equals(id)) {
+                final Optional<SingleNodeVectorClock> contiguous = contiguousClock(origin, 0, ImmutableSortedMap.<Integer, Message<T>>of());
+                if (contiguous.isPresent()) {
+                    recovered.put(origin, contiguous.get());
+                }
+            }
+        }
+        return ImmutableMap.copyOf(recovered);
+    }
+
+    /**
+     * @param reserved the highest sequence this node may have used without storing a message, which the recovered clock
+     *                 is moved past
+     */
+    private static VectorClock recoverClock(NodeId id, ImmutableMap<NodeId, SingleNodeVectorClock> latestClocks, int reserved,
+                                            MillisProvider timestamps) {
+        SingleNodeVectorClock localClock = latestClocks.containsKey(id)
+                ? latestClocks.get(id).withClock(timestamps)
+                : new SingleNodeVectorClock(id, timestamps);
+        if (localClock.sequenceForDefiningNode() < reserved) {
+            localClock = localClock.update(id, reserved);
+        }
+        VectorClock vectorClock = new VectorClock(id, ImmutableSortedMap.of(id, localClock));
+        for (SingleNodeVectorClock remoteClock : latestClocks.values()) {
+            if (!remoteClock.getNodeId().equals(id)) {
+                vectorClock = vectorClock.update(remoteClock);
+            }
+        }
+        return vectorClock;
     }
 
     public void start() {
         executor.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
-                if (synchroniser.queue() < (vectorClock.getState().size() * 2) && needsHeartbeat.getAndSet(false)) {
-                    store(heartBeat);
+                try {
+                    heartbeatIfDue();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }, 0, MIN_HEARTBEAT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        if (retentionPolicy.discards()) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    }
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        }
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    antiEntropy();
+                    reviewMembership();
+                } catch (Throwable t) {
+                    t.printStackTrace();
                 }
             }
-        }, 0, 100, TimeUnit.MILLISECONDS);
+        }, 1, 1, TimeUnit.SECONDS);
     }
 
-    public void syncWith(TopicNode otherNode) {
-        vectorClock = vectorClock.add(otherNode.id);
+    /**
+     * Cancels every subscription, stops synchronising, stops the node's threads if it made them itself and closes its
+     * metric registry if that is {@link Closeable}, so that nothing published outside the node still refers to it. The
+     * store is left to whoever made it.
+     */
+    @Override
+    public void close() {
+        for (CursorSubscription<T> subscription : subscriptions) {
+            subscription.cancel();
+        }
+        synchroniser.close();
+        if (ownsExecutor) {
+            executor.shutdownNow();
+        }
+        if (metrics instanceof Closeable) {
+            try {
+                ((Closeable) metrics).close();
+            } catch (IOException e) {
+                throw propagate(e);
+            }
+        }
+    }
+
+    /**
+     * A heartbeat is only needed when something has been received since this node last sent its clock, since stores
+     * carry the clock anyway. While messages are waiting to become consistent, or data has just arrived, heartbeats go
+     * as often as every {@value #MIN_HEARTBEAT_INTERVAL_MILLIS}ms; otherwise the interval doubles with each one, up to
+     * {@value #MAX_HEARTBEAT_INTERVAL_MILLIS}ms, so that nodes acknowledging each other's heartbeats settle down. While
+     * failures are being detected, a heartbeat goes at least that often regardless, so that silence means failure.
+     */
+    void heartbeatIfDue() {
+        if (failureDetector.isPresent() && clock.getMillis() - lastHeartbeat >= MAX_HEARTBEAT_INTERVAL_MILLIS) {
+            needsHeartbeat.set(true);
+        }
+        if (!needsHeartbeat.get() || !synchroniser.canTakeHeartbeat()) {
+            return;
+        }
+        final boolean blocked = receivedData.getAndSet(false) || lowestCommonClockIsBlocked();
+        if (blocked) {
+            heartbeatInterval = MIN_HEARTBEAT_INTERVAL_MILLIS;
+        }
+        final long now = clock.getMillis();
+        if (now - lastHeartbeat >= heartbeatInterval && needsHeartbeat.getAndSet(false)) {
+            heartbeat();
+            lastHeartbeat = now;
+            if (!blocked) {
+                heartbeatInterval = Math.min(heartbeatInterval * 2, MAX_HEARTBEAT_INTERVAL_MILLIS);
+            }
+        }
+    }
+
+    private boolean lowestCommonClockIsBlocked() {
+        return messages.ceiling(TopicNode.<T>boundary(lowestCommonClock())) != null;
+    }
+
+    public NodeId getId() {
+        return id;
+    }
+
+    /**
+     * @return the executor this node runs on, for work done on its behalf elsewhere, such as applying what a
+     *         connection has read for it
+     */
+    Executor executor() {
+        return executor;
+    }
+
+    public void syncWith(TopicNode<T> otherNode) {
+        checkNotDeparted(otherNode.id);
+        addToClock(otherNode.id);
+        deliveryLatencyFrom(otherNode.id);
         synchroniser.syncWith(otherNode);
     }
 
-    public synchronized void store(final Object value) {
-        vectorClock = vectorClock.next();
-        final Message message = new Message(value, vectorClock.getLocalClock());
-        messages.add(message);
-        synchroniser.synchronise(message);
+    /**
+     * Synchronises with a node reached some other way, such as over {@link NioTransport}.
+     */
+    public void syncWith(Peer peer) {
+        checkNotDeparted(peer.getId());
+        addToClock(peer.getId());
+        deliveryLatencyFrom(peer.getId());
+        synchroniser.syncWith(peer);
     }
 
-    public synchronized void sync(Message message) {
-        vectorClock = vectorClock.update(message.getVectorClock());
-        messages.add(message);
+    private void checkNotDeparted(NodeId otherNodeId) {
+        checkArgument(!vectorClock().departures().containsKey(otherNodeId),
+                "%s has departed; a node can only rejoin under a new id", otherNodeId);
+    }
+
+    /**
+     * Removes any node that the detector suspects of having failed, once every node not suspected has received the
+     * same final sequence from it, so that the topic does not wait on it for ever. Keep-alive heartbeats are sent
+     * at least every {@value #MAX_HEARTBEAT_INTERVAL_MILLIS}ms from then on, so every node of the topic should
+     * detect failures with the same detector settings.
+     */
+    public void detectFailures(PhiAccrualFailureDetector detector) {
+        failureDetector = Optional.of(detector);
+    }
+
+    /**
+     * @return the nodes of the topic that have not departed, this one included
+     */
+    public ImmutableSortedSet<NodeId> members() {
+        return vectorClock().getLocalClock().nodeIds();
+    }
+
+    /**
+     * Removes a node that has left the topic for good, at the latest sequence received from it. Every other node
+     * follows once it has received as much from the node, and once all have, the node's clock is dropped and no
+     * longer takes up space in the clock of each message. A node removed cannot rejoin under the same id.
+     */
+    public void remove(NodeId member) {
+        checkArgument(!member.equals(id), "%s cannot remove itself", id);
+        final SingleNodeVectorClock memberClock = vectorClock().getState().get(member);
+        checkArgument(memberClock != null && !vectorClock().getLocalClock().departed().containsKey(member),
+                "%s is not a member of %s's topic", member, id);
+        depart(member, memberClock.sequenceForDefiningNode());
+    }
+
+    /**
+     * One round of membership changes. A node suspected of having failed is departed, at the sequence every node not
+     * suspected has received from it; a departure announced in another node's clock is adopted, at the lowest final
+     * sequence announced, once this node has received that far from the departed node; and the clock of a departed
+     * node is dropped once every node still present has departed it at the same final sequence.
+     */
+    void reviewMembership() {
+        if (failureDetector.isPresent()) {
+            departSuspected(vectorClock());
+        }
+        for (Map.Entry<NodeId, Integer> departure : vectorClock().departures().entrySet()) {
+            final NodeId member = departure.getKey();
+            if (member.equals(id)) {
+                continue;
+            }
+            final int finalSequence = departure.getValue();
+            final Integer departedAt = vectorClock().getLocalClock().departed().get(member);
+            final SingleNodeVectorClock memberClock = vectorClock().getState().get(member);
+            if (departedAt != null ? departedAt > finalSequence
+                    : memberClock != null && memberClock.sequenceForDefiningNode() >= finalSequence) {
+                depart(member, finalSequence);
+            }
+        }
+        final ImmutableSortedMap<NodeId, Integer> departed = vectorClock().getLocalClock().departed();
+        for (Map.Entry<NodeId, Integer> departure : departed.entrySet()) {
+            final NodeId member = departure.getKey();
+            if (vectorClock().getState().containsKey(member)
+                    && vectorClock().allOthersHaveDeparted(member, departure.getValue(), departed.keySet())) {
+                prune(member);
+            }
+        }
+    }
+
+    private void departSuspected(VectorClock vectorClock) {
+        final long now = clock.getMillis();
+        final Set<NodeId> suspected = new HashSet<>();
+        for (NodeId member : vectorClock.getLocalClock().nodeIds()) {
+            if (!member.equals(id) && failureDetector.get().isSuspected(member, now)) {
+                suspected.add(member);
+            }
+        }
+        final Set<NodeId> ignoring = Sets.union(suspected, vectorClock.getLocalClock().departed().keySet());
+        for (NodeId member : suspected) {
+            final SingleNodeVectorClock memberClock = vectorClock.getState().get(member);
+            if (memberClock != null && vectorClock.allOthersHold(member, memberClock.sequenceForDefiningNode(), ignoring)) {
+                depart(member, memberClock.sequenceForDefiningNode());
+            }
+        }
+    }
+
+    private void depart(NodeId member, int finalSequence) {
+        ClockState current;
+        do {
+            current = clockState.get();
+        } while (!clockState.compareAndSet(current, current.withClock(current.vectorClock.depart(member, finalSequence))));
+        discardAfter(member, finalSequence);
         needsHeartbeat.set(true);
+        retained();
+        windowMayHaveOpened();
     }
 
-    public synchronized ImmutableList<Message> consistentMessagesSince(SingleNodeVectorClock incomingVectorClock) {
-        return baseConsistentMessages().filter(after(incomingVectorClock)).toList();
+    private void prune(NodeId member) {
+        ClockState current;
+        do {
+            current = clockState.get();
+        } while (!clockState.compareAndSet(current, current.withClock(current.vectorClock.withoutClockOf(member))));
+        synchroniser.remove(member);
+        if (failureDetector.isPresent()) {
+            failureDetector.get().forget(member);
+        }
+        retained();
+        windowMayHaveOpened();
     }
 
-    public synchronized ImmutableList<Message> consistentMessages() {
-        return baseConsistentMessages().toList();
+    /**
+     * Drops any message held from a departed node beyond its final sequence, which some other node never received
+     * and so can never become consistent.
+     */
+    private void discardAfter(NodeId origin, int finalSequence) {
+        final ConcurrentNavigableMap<Integer, Message<T>> beyond = messagesFrom(origin).tailMap(finalSequence, false);
+        for (Message<T> message : beyond.values()) {
+            if (messages.remove(message)) {
+                retainedMessages.decrementAndGet();
+                retainedBytes.addAndGet(-message.estimatedSize());
+            }
+        }
+        beyond.clear();
     }
 
-    private FluentIterable<Message> baseConsistentMessages() {
-        SingleNodeVectorClock lowestCommonClock = vectorClock.getLowestCommonClock();
-        final ImmutableSortedSet<Message> messageSnapshot = ImmutableSortedSet.copyOf(messages);
-        return from(messageSnapshot).filter(heartbeats()).filter(before(lowestCommonClock));
+    private void addToClock(NodeId otherNodeId) {
+        ClockState current;
+        do {
+            current = clockState.get();
+        } while (!clockState.compareAndSet(current, current.withClock(current.vectorClock.add(otherNodeId))));
+        retained();
     }
 
-    private Predicate<Message> before(final SingleNodeVectorClock lowestCommonClock) {
-        return new Predicate<Message>() {
-            @Override
-            public boolean apply(final Message message) {
-                return message.isBefore(lowestCommonClock);
+    /**
+     * Limits how many of this node's messages its peers may have yet to acknowledge before a store has to wait, be
+     * rejected or be dropped. A peer that stops acknowledging, having failed, holds the window shut until it is
+     * removed, so flow control is best combined with {@link #detectFailures}. Only this node's own stores are held
+     * back; messages it relays from other nodes are queued for its peers whatever the window.
+     */
+    public void controlFlow(FlowControl flowControl) {
+        this.flowControl = checkNotNull(flowControl);
+        windowMayHaveOpened();
+    }
+
+    /**
+     * Stores the value, unless the window of messages peers have yet to acknowledge is full, when the node's
+     * {@link FlowControl} decides whether to wait for room, throw or drop it. The window can be overrun by as many
+     * stores as are made at once.
+     *
+     * @return whether the value was stored, which it is not only if the window is full and the flow control discards
+     *         on overflow
+     * @throws RejectedExecutionException if the window is full and the flow control rejects on overflow
+     */
+    public boolean store(final T value) {
+        if (windowHasRoom()) {
+            append(value);
+            return true;
+        }
+        switch (flowControl.getOverflow()) {
+            case BLOCK:
+                windowLock.lock();
+                try {
+                    while (!windowHasRoom()) {
+                        windowOpened.awaitUninterruptibly();
+                    }
+                } finally {
+                    windowLock.unlock();
+                }
+                append(value);
+                return true;
+            case REJECT:
+                rejected.increment();
+                throw new RejectedExecutionException(id + " has " + unacknowledged() + " messages yet to be acknowledged");
+            default:
+                rejected.increment();
+                return false;
+        }
+    }
+
+    /**
+     * @return whether the value was stored, which it is only if the window has room for it now
+     */
+    public boolean tryStore(final T value) {
+        if (windowHasRoom()) {
+            append(value);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the value was stored, which it is only if the window has room for it within the timeout
+     */
+    public boolean tryStore(final T value, Duration timeout) throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout.getMillis());
+        windowLock.lock();
+        try {
+            while (!windowHasRoom()) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = windowOpened.awaitNanos(remaining);
             }
-        };
+        } finally {
+            windowLock.unlock();
+        }
+        append(value);
+        return true;
     }
 
-    private Predicate<Message> after(final SingleNodeVectorClock incomingVectorClock) {
-        return new Predicate<Message>() {
-            @Override
-            public boolean apply(final Message message) {
-                return message.isAfter(incomingVectorClock);
+    /**
+     * Stores the value once the window has room, without waiting for it. Values waiting for room are stored in the
+     * order they were given, ahead of any later store, by whichever thread finds the window open; as many may wait as
+     * the window holds, after which the future fails with a {@link RejectedExecutionException}.
+     *
+     * @return a future that completes once the value has been stored, on this node's executor rather than on the
+     *         thread that received the acknowledgement that made room for it
+     */
+    public ListenableFuture<Void> storeAsync(final T value) {
+        if (windowHasRoom()) {
+            append(value);
+            return Futures.immediateFuture(null);
+        }
+        final Optional<Integer> window = flowControl.getWindow();
+        if (window.isPresent() && pendingStores.size() >= window.get()) {
+            rejected.increment();
+            return Futures.immediateFailedFuture(new RejectedExecutionException(
+                    id + " already has " + pendingStores.size() + " stores waiting for room"));
+        }
+        final PendingStore<T> pending = new PendingStore<>(value);
+        pendingStores.add(pending);
+        storePending();
+        return pending.stored;
+    }
+
+    /**
+     * A store waits behind any made with {@link #storeAsync} that are still waiting, so that this node's messages are
+     * stored in the order they were given.
+     */
+    private boolean windowHasRoom() {
+        return !flowControl.bounded() || pendingStores.isEmpty() && flowControl.hasRoom(unacknowledged());
+    }
+
+    /**
+     * Counts messages rather than sequences, as the node's sequence also moves whenever it receives. Only messages
+     * stored while the flow control is bounded are counted.
+     *
+     * @return how many of this node's own messages the peer furthest behind has yet to acknowledge
+     */
+    private int unacknowledged() {
+        final int acknowledged = vectorClock().getLowestCommonClock().sequenceFor(id).or(0);
+        unacknowledgedSequences.headSet(acknowledged, true).clear();
+        return unacknowledgedSequences.size();
+    }
+
+    /**
+     * Lets whatever is waiting for room in the window try again, having received acknowledgements or lost a peer.
+     */
+    private void windowMayHaveOpened() {
+        if (!flowControl.bounded() && pendingStores.isEmpty()) {
+            return;
+        }
+        storePending();
+        windowLock.lock();
+        try {
+            windowOpened.signalAll();
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    private void storePending() {
+        synchronized (pendingStores) {
+            PendingStore<T> next;
+            while ((next = pendingStores.peek()) != null && flowControl.hasRoom(unacknowledged())) {
+                pendingStores.remove();
+                append(next.value);
+                completeOnExecutor(next.stored);
             }
-        };
+        }
+    }
+
+    /**
+     * Completes a store's future on the node's executor, so that its listeners do not run on whichever thread made
+     * room for it, which may be delivering messages. Once the executor has been shut down it is completed where it is.
+     */
+    private void completeOnExecutor(final SettableFuture<Void> stored) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    stored.set(null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            stored.set(null);
+        }
     }
 
-    public ImmutableList<Message> allMessages() {
-        return from(ImmutableList.copyOf(messages)).filter(heartbeats()).toList();
+    /**
+     * Stores without taking a lock: the clock is advanced by compare-and-set, and each store takes a ticket from the
+     * same compare-and-set so that messages are handed to the {@link Synchroniser} in the order their sequences were
+     * allocated, however the storing threads interleave afterwards. The same ordering decides when readers see the
+     * clock a store moved to, so that they never see it before every earlier store's message is held. The stored
+     * message carries this node's clock, so it stands in for any heartbeat that was due.
+     */
+    private void append(final T value) {
+        needsHeartbeat.set(false);
+        final ClockState stored = nextClock(true);
+        final Message<T> message = new Message<>(value, stored.vectorClock.getLocalClock(), stored.previousMessage);
+        if (flowControl.bounded()) {
+            unacknowledgedSequences.add(message.getVectorClock().sequenceForDefiningNode());
+        }
+        retain(message);
+        recordStoreTime(message.getVectorClock().sequenceForDefiningNode());
+        this.stored.increment();
+        synchroniseInOrder(stored, message);
     }
 
-    private Predicate<Message> heartbeats() {
-        return new Predicate<Message>() {
-            @Override
-            public boolean apply(Message message) {
-                return !message.get().equals(heartBeat);
+    /**
+     * Lets readers see the latest clock, once every message it covers is held. The clock moves on a store before the
+     * store's message is added, but a store's message is only handed on, in {@link #synchroniseInOrder()}, once it
+     * and every store before it have been added; until then, readers keep the clock of the last store handed on, or
+     * an earlier one.
+     */
+    private void retained() {
+        final ClockState current = clockState.get();
+        if (current.stores < nextToSynchronise) {
+            retained(current);
+        }
+    }
+
+    private void retained(ClockState state) {
+        ClockState current;
+        do {
+            current = retainedState.get();
+            if (current.version >= state.version) {
+                return;
+            }
+        } while (!retainedState.compareAndSet(current, state));
+        lowestCommonClockMayHaveMoved();
+    }
+
+    /**
+     * @return the lowest common clock as readers may see it, covering only messages that are held
+     */
+    private SingleNodeVectorClock lowestCommonClock() {
+        return retainedState.get().vectorClock.getLowestCommonClock();
+    }
+
+    /**
+     * Does whatever has to be done as messages become consistent, once for the whole node however many subscribers
+     * it has. The lowest common clock only moves on a store when the node is alone in its topic.
+     */
+    private void lowestCommonClockMayHaveMoved() {
+        final SingleNodeVectorClock lowestCommonClock = lowestCommonClock();
+        if (lowestCommonClock.equals(signalledUpTo)) {
+            return;
+        }
+        signalledUpTo = lowestCommonClock;
+        recordNewlyConsistent();
+        for (CursorSubscription<T> subscription : subscriptions) {
+            subscription.signal();
+        }
+    }
+
+    /**
+     * Remembers when the most recent {@value #STORE_TIMES} stores were made, each packed into a single long with its
+     * sequence, so that the time until they become consistent can be recorded without allocating.
+     */
+    private void recordStoreTime(int sequence) {
+        final long elapsed = clock.getMillis() - startedAt;
+        storeTimes.set(sequence & (STORE_TIMES - 1), (long) sequence << 32 | (elapsed & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Records how long each of this node's own messages took to become consistent, for those that have become so
+     * since this was last called. A message is consistent once every node has received it, which is when the lowest
+     * common clock reaches its sequence.
+     */
+    private void recordNewlyConsistent() {
+        if (!recordingConsistency.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final int consistent = lowestCommonClock().sequenceForDefiningNode();
+            final long elapsed = clock.getMillis() - startedAt;
+            for (int sequence = Math.max(consistentUpTo + 1, consistent - STORE_TIMES + 1); sequence <= consistent; sequence++) {
+                final long storeTime = storeTimes.get(sequence & (STORE_TIMES - 1));
+                if ((int) (storeTime >>> 32) == sequence) {
+                    storeToConsistent.record((elapsed - storeTime) & 0xFFFFFFFFL);
+                }
             }
-        };
+            consistentUpTo = Math.max(consistentUpTo, consistent);
+        } finally {
+            recordingConsistency.set(false);
+        }
+    }
+
+    /**
+     * Sends this node's clock to its peers without storing anything. The heartbeat takes its place in the same order
+     * as stores so that it can never overtake one with a lower sequence. It is not written to the {@link MessageStore},
+     * but its sequence must be recovered past, so sequences are reserved in the store
+     * {@value #SEQUENCE_RESERVATION} at a time, costing a write to it only when a heartbeat goes beyond the last
+     * reservation.
+     */
+    private void heartbeat() {
+        final ClockState stored = nextClock(false);
+        final Message<T> heartbeat = Message.<T>heartbeat(stored.vectorClock.getLocalClock(), stored.lastMessage);
+        reserveSequencesFor(heartbeat.getVectorClock().sequenceForDefiningNode());
+        synchroniseInOrder(stored, heartbeat);
+    }
+
+    private void reserveSequencesFor(int sequence) {
+        if (sequence <= reservedSequences) {
+            return;
+        }
+        synchronized (reservationLock) {
+            if (sequence > reservedSequences) {
+                final int reserving = sequence + SEQUENCE_RESERVATION;
+                store.reserveSequencesUpTo(reserving);
+                reservedSequences = reserving;
+            }
+        }
+    }
+
+    private ClockState nextClock(boolean message) {
+        ClockState current;
+        ClockState updated;
+        do {
+            current = clockState.get();
+            updated = current.stored(message);
+        } while (!clockState.compareAndSet(current, updated));
+        return updated;
+    }
+
+    private void synchroniseInOrder(ClockState stored, Message<T> message) {
+        unsynchronised.put(stored.stores, new Allocated<>(stored, message));
+        synchroniseInOrder();
+    }
+
+    private void synchroniseInOrder() {
+        while (synchronisationLock.tryLock()) {
+            try {
+                Allocated<T> next;
+                Optional<ClockState> handedOn = Optional.absent();
+                while ((next = unsynchronised.remove(nextToSynchronise)) != null) {
+                    synchroniser.synchronise(next.message);
+                    nextToSynchronise++;
+                    handedOn = Optional.of(next.state);
+                }
+                if (handedOn.isPresent()) {
+                    retained(handedOn.get());
+                    retained();
+                }
+            } finally {
+                synchronisationLock.unlock();
+            }
+            if (!unsynchronised.containsKey(nextToSynchronise)) {
+                return;
+            }
+        }
+    }
+
+    public void sync(Message<?> message) {
+        sync(ImmutableList.of(message));
+    }
+
+    /**
+     * Applies a batch of messages with a single clock merge, using only the latest clock seen from each origin node up
+     * to which every message from that node is held. A message whose previous message has not arrived is held, but the
+     * clock does not move past the gap until the missing message fills it, so that the lowest common clock never covers
+     * a message that is still to arrive; {@link #antiEntropy()} asks for it. The messages are added before the clock
+     * moves, so that a reader can never see a clock that covers a message which is not there yet. Messages held for the
+     * first time are then handed back to the {@link Synchroniser} to be relayed, if it gossips; one already held,
+     * identified by its origin and sequence, goes no further. Heartbeats move the clock but are not kept, and are
+     * relayed only if they move it.
+     * <p>
+     * Every node of a topic carries the same type of payload, so messages from peers are taken to be {@code T}s.
+     * Their payloads are not decoded unless they are read. Anything from a node that has departed, beyond the final
+     * sequence it departed at, is dropped.
+     */
+    @SuppressWarnings("unchecked")
+    public void sync(List<? extends Message<?>> delivered) {
+        final VectorClock before = vectorClock();
+        final long now = clock.getMillis();
+        final List<Message<T>> batch = admitted(before, (List<Message<T>>) delivered);
+        // the heartbeats from each origin heard from in the batch, by sequence
+        final Map<NodeId, NavigableMap<Integer, Message<T>>> heartbeats = new HashMap<>();
+        for (Message<T> message : batch) {
+            final SingleNodeVectorClock clock = message.getVectorClock();
+            NavigableMap<Integer, Message<T>> fromOrigin = heartbeats.get(clock.getNodeId());
+            if (fromOrigin == null) {
+                fromOrigin = new TreeMap<>();
+                heartbeats.put(clock.getNodeId(), fromOrigin);
+            }
+            if (message.isHeartbeat()) {
+                fromOrigin.put(clock.sequenceForDefiningNode(), message);
+            }
+        }
+        if (failureDetector.isPresent()) {
+            for (NodeId origin : heartbeats.keySet()) {
+                failureDetector.get().heartbeat(origin, now);
+            }
+        }
+        final List<Message<T>> firstSeen = new ArrayList<>(batch.size());
+        for (Message<T> message : batch) {
+            if (message.isHeartbeat() ? advances(before, message.getVectorClock()) : retain(message)) {
+                firstSeen.add(message);
+                if (!message.isHeartbeat()) {
+                    final SingleNodeVectorClock messageClock = message.getVectorClock();
+                    deliveryLatencyFrom(messageClock.getNodeId()).record(now - messageClock.getTimestamp().getMillis());
+                    received.increment();
+                }
+            }
+            if (!message.isHeartbeat()) {
+                receivedData.set(true);
+            }
+        }
+        ClockState current;
+        VectorClock updated;
+        do {
+            current = clockState.get();
+            updated = current.vectorClock;
+            for (Map.Entry<NodeId, NavigableMap<Integer, Message<T>>> fromOrigin : heartbeats.entrySet()) {
+                final NodeId origin = fromOrigin.getKey();
+                if (origin.equals(id)) {
+                    continue;
+                }
+                final SingleNodeVectorClock row = updated.getState().get(origin);
+                final Optional<SingleNodeVectorClock> contiguous = contiguousClock(origin,
+                        row == null ? 0 : row.sequenceForDefiningNode(), fromOrigin.getValue());
+                if (contiguous.isPresent()) {
+                    updated = updated.update(contiguous.get());
+                }
+            }
+        } while (!clockState.compareAndSet(current, current.withClock(updated)));
+        needsHeartbeat.set(true);
+        retained();
+        if (!firstSeen.isEmpty()) {
+            synchroniser.relay(id, firstSeen);
+        }
+        windowMayHaveOpened();
+    }
+
+    private static <T> List<Message<T>> admitted(VectorClock vectorClock, List<Message<T>> batch) {
+        final ImmutableSortedMap<NodeId, Integer> departures = vectorClock.departures();
+        if (departures.isEmpty()) {
+            return batch;
+        }
+        final List<Message<T>> admitted = new ArrayList<>(batch.size());
+        for (Message<T> message : batch) {
+            final SingleNodeVectorClock clock = message.getVectorClock();
+            final Integer departedAt = departures.get(clock.getNodeId());
+            if (departedAt == null || clock.sequenceForDefiningNode() <= departedAt) {
+                admitted.add(message);
+            }
+        }
+        return admitted;
+    }
+
+    /**
+     * Follows the messages held from the origin, and the given heartbeats from it, on from the given sequence for as
+     * long as each says the message before it is no later than the one before. Nothing having been received from the
+     * origin, the first found is taken to follow on from whatever the origin stored before it, since a node that
+     * joins a topic late never receives what was discarded before it joined.
+     *
+     * @return the clock of the last message or heartbeat reached, if any is beyond the given sequence
+     */
+    private Optional<SingleNodeVectorClock> contiguousClock(NodeId origin, int receivedUpTo, NavigableMap<Integer, Message<T>> heartbeats) {
+        final NavigableMap<Integer, Message<T>> held = messagesFrom(origin);
+        int upTo = receivedUpTo;
+        Optional<SingleNodeVectorClock> latest = Optional.absent();
+        while (true) {
+            final Map.Entry<Integer, Message<T>> message = held.higherEntry(upTo);
+            final Map.Entry<Integer, Message<T>> heartbeat = heartbeats.higherEntry(upTo);
+            final Map.Entry<Integer, Message<T>> next = heartbeat == null
+                    || message != null && message.getKey() < heartbeat.getKey() ? message : heartbeat;
+            if (next == null || upTo > 0 && next.getValue().getPrevious() > upTo) {
+                return latest;
+            }
+            upTo = next.getKey();
+            latest = Optional.of(next.getValue().getVectorClock());
+        }
+    }
+
+    private static boolean advances(VectorClock vectorClock, SingleNodeVectorClock received) {
+        final SingleNodeVectorClock existing = vectorClock.getState().get(received.getNodeId());
+        return existing == null || existing.sequenceForDefiningNode() < received.sequenceForDefiningNode();
+    }
+
+    private boolean retain(Message<T> message) {
+        if (hold(message)) {
+            store.append(message);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * A message is held only once, known by its origin and sequence. One that has been compacted away is known by
+     * being at or before the last sequence compacted from its origin, which is checked second because compaction
+     * records it before removing the message.
+     */
+    private boolean hold(Message<T> message) {
+        final SingleNodeVectorClock clock = message.getVectorClock();
+        if (messagesFrom(clock.getNodeId()).containsKey(clock.sequenceForDefiningNode())) {
+            return false;
+        }
+        final Integer compacted = compactedUpTo.get(clock.getNodeId());
+        if (compacted != null && clock.sequenceForDefiningNode() <= compacted) {
+            return false;
+        }
+        if (messages.add(message)) {
+            messagesFrom(clock.getNodeId()).put(clock.sequenceForDefiningNode(), message);
+            retainedMessages.incrementAndGet();
+            retainedBytes.addAndGet(message.estimatedSize());
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * @return the histogram of delivery latencies from the given origin, registering it and the origin's lowest common
+     *         clock lag the first time the origin is heard of
+     */
+    private Histogram deliveryLatencyFrom(NodeId origin) {
+        final Histogram existing = deliveryLatencies.get(origin);
+        if (existing != null) {
+            return existing;
+        }
+        final Histogram created = metrics.histogram("deliveryLatencyMillis." + origin.getId());
+        final Histogram raced = deliveryLatencies.putIfAbsent(origin, created);
+        if (raced != null) {
+            return raced;
+        }
+        registerLag(origin);
+        return created;
+    }
+
+    private ConcurrentNavigableMap<Integer, Message<T>> messagesFrom(NodeId origin) {
+        final ConcurrentNavigableMap<Integer, Message<T>> existing = messagesByOrigin.get(origin);
+        if (existing != null) {
+            return existing;
+        }
+        final ConcurrentNavigableMap<Integer, Message<T>> created = new ConcurrentSkipListMap<>();
+        final ConcurrentNavigableMap<Integer, Message<T>> raced = messagesByOrigin.putIfAbsent(origin, created);
+        return raced == null ? created : raced;
+    }
+
+    /**
+     * One round of anti-entropy. Any node whose latest message received here has not moved since the last round may
+     * have had its final deliveries lost, and any node from which a later message is held than has been received in
+     * full has had one lost in between, so every peer is asked for whatever it holds from those nodes beyond what has
+     * been received. Gaps are asked about from the first round; stalls once there is a round to compare with. Nodes
+     * still being heard from in order are left to ordinary synchronisation, and departed nodes are not asked about.
+     */
+    public void antiEntropy() {
+        final SingleNodeVectorClock received = vectorClock().received();
+        final SingleNodeVectorClock previous = receivedAtLastAntiEntropy.getAndSet(received);
+        final ImmutableSortedMap<NodeId, Integer> departed = vectorClock().getLocalClock().departed();
+        final ImmutableSortedMap.Builder<NodeId, Integer> stalled = ImmutableSortedMap.naturalOrder();
+        boolean anyStalled = false;
+        for (Map.Entry<NodeId, Integer> entry : received.getState().entrySet()) {
+            final NodeId origin = entry.getKey();
+            if (!origin.equals(id) && !departed.containsKey(origin)
+                    && (previous != null && previous.sequenceFor(origin).equals(Optional.of(entry.getValue()))
+                        || messagesFrom(origin).higherKey(entry.getValue()) != null)) {
+                stalled.put(origin, entry.getValue());
+                anyStalled = true;
+            }
+        }
+        if (anyStalled) {
+            stalled.put(id, received.sequenceForDefiningNode());
+            synchroniser.requestMissing(new SingleNodeVectorClock(id, stalled.build()));
+        }
+    }
+
+    /**
+     * Answers a peer's anti-entropy request: sends back, in one delivery, every message this node holds from each
+     * origin in the request with a sequence beyond the one the peer has received. If the latest clock this node has
+     * received from another origin is later still, as when the origin's last sends were heartbeats, it follows as a
+     * heartbeat, so that the peer can agree on the origin's final sequence should it have failed. This node's own
+     * clock is never sent this way, since it may be ahead of messages still on their way to the peer.
+     *
+     * @param received the peer's clock, holding the latest sequence it has received from each origin it is asking about
+     */
+    public void sendMissing(SingleNodeVectorClock received) {
+        final NodeId requester = received.getNodeId();
+        final ImmutableSortedMap<NodeId, SingleNodeVectorClock> latestClocks = vectorClock().getState();
+        final ImmutableList.Builder<Message<?>> missing = ImmutableList.builder();
+        for (Map.Entry<NodeId, Integer> entry : received.getState().entrySet()) {
+            final NodeId origin = entry.getKey();
+            if (origin.equals(requester)) {
+                continue;
+            }
+            int sentUpTo = entry.getValue();
+            final ConcurrentNavigableMap<Integer, Message<T>> fromOrigin = messagesByOrigin.get(origin);
+            if (fromOrigin != null) {
+                final ConcurrentNavigableMap<Integer, Message<T>> beyond = fromOrigin.tailMap(sentUpTo, false);
+                missing.addAll(beyond.values());
+                if (!beyond.isEmpty()) {
+                    sentUpTo = beyond.lastKey();
+                }
+            }
+            final SingleNodeVectorClock latest = latestClocks.get(origin);
+            if (!origin.equals(id) && latest != null && latest.sequenceForDefiningNode() > sentUpTo) {
+                missing.add(Message.<T>heartbeat(latest, lastMessageFrom(origin, latest.sequenceForDefiningNode())));
+            }
+        }
+        final ImmutableList<Message<?>> toSend = missing.build();
+        if (!toSend.isEmpty()) {
+            synchroniser.deliver(requester, toSend);
+        }
+    }
+
+    /**
+     * @return the sequence of the last message from the origin up to the given sequence, held or compacted, or 0 if
+     *         there was none; every message up to the latest clock received from the origin is one or the other
+     */
+    private int lastMessageFrom(NodeId origin, int sequence) {
+        final Integer held = messagesFrom(origin).floorKey(sequence);
+        if (held != null) {
+            return held;
+        }
+        final Integer compacted = compactedUpTo.get(origin);
+        return compacted == null ? 0 : Math.min(compacted, sequence);
+    }
+
+    /**
+     * Discards messages from the head of the topic for as long as they are consistent, have been read by every open
+     * cursor and the retention policy says they have expired. Messages are discarded in order, so each origin's are
+     * discarded in the order of their sequences, and the last sequence discarded from each origin is remembered so
+     * that a late copy of a discarded message, such as a resend or an anti-entropy reply, is not taken in again.
+     *
+     * @return the number of messages discarded
+     */
+    public int compact() {
+        if (!retentionPolicy.discards()) {
+            return 0;
+        }
+        final SingleNodeVectorClock lowestCommonClock = lowestCommonClock();
+        final Optional<SingleNodeVectorClock> consumedUpTo = consumedUpTo();
+        final Instant now = new Instant(clock.getMillis());
+        int discarded = 0;
+        Optional<Message<T>> lastDiscarded = Optional.absent();
+        for (Message<T> message : messages) {
+            final boolean discardable = message.isBefore(lowestCommonClock)
+                    && consumedUpTo.isPresent() && !message.isAfter(consumedUpTo.get())
+                    && retentionPolicy.hasExpired(message, retainedMessages.get(), now);
+            if (!discardable) {
+                break;
+            }
+            if (messages.remove(message)) {
+                final SingleNodeVectorClock clock = message.getVectorClock();
+                compactedUpTo.put(clock.getNodeId(), clock.sequenceForDefiningNode());
+                messagesFrom(clock.getNodeId()).remove(clock.sequenceForDefiningNode());
+                retainedMessages.decrementAndGet();
+                retainedBytes.addAndGet(-message.estimatedSize());
+                discarded++;
+                lastDiscarded = Optional.of(message);
+            }
+        }
+        if (lastDiscarded.isPresent()) {
+            store.discardUpTo(lastDiscarded.get().getVectorClock());
+        }
+        return discarded;
+    }
+
+    /**
+     * @return the position of the open cursor that has read the least, or the lowest common clock if there are none
+     */
+    private Optional<SingleNodeVectorClock> consumedUpTo() {
+        Optional<SingleNodeVectorClock> lowest = Optional.of(lowestCommonClock());
+        for (Cursor<T> cursor : cursors) {
+            final Optional<SingleNodeVectorClock> position = cursor.position();
+            if (!position.isPresent()) {
+                return position;
+            } else if (position.get().isBefore(lowest.get())) {
+                lowest = position;
+            }
+        }
+        return lowest;
+    }
+
+    public long retainedMessages() {
+        return retainedMessages.get();
+    }
+
+    /**
+     * @return an estimate of the heap occupied by the messages this node holds
+     */
+    public long retainedBytes() {
+        return retainedBytes.get();
+    }
+
+    VectorClock vectorClock() {
+        return clockState.get().vectorClock;
+    }
+
+    public ImmutableList<Message<T>> consistentMessagesSince(SingleNodeVectorClock incomingVectorClock) {
+        return ImmutableList.copyOf(stableMessagesAfter(Optional.of(incomingVectorClock)));
+    }
+
+    public ImmutableList<Message<T>> consistentMessages() {
+        return ImmutableList.copyOf(stableMessagesAfter(Optional.<SingleNodeVectorClock>absent()));
+    }
+
+    /**
+     * @return a cursor that returns each consistent message from this node exactly once, in order
+     */
+    public Cursor<T> cursor() {
+        final Cursor<T> cursor = new Cursor<>(this);
+        cursors.add(cursor);
+        return cursor;
+    }
+
+    void close(Cursor<T> cursor) {
+        cursors.remove(cursor);
+    }
+
+    /**
+     * Sends each consistent message, from the start of the topic, to the subscriber as it asks for them. Messages are
+     * sent on this node's executor, so a subscriber that may be slow should be given an executor of its own.
+     */
+    public void subscribe(Subscriber<T> subscriber) {
+        subscribe(subscriber, executor);
+    }
+
+    public void subscribe(Subscriber<T> subscriber, Executor deliveryExecutor) {
+        final CursorSubscription<T> subscription = new CursorSubscription<>(this, cursor(), subscriber, deliveryExecutor);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        subscription.start();
+    }
+
+    void unsubscribe(CursorSubscription<T> subscription) {
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * @return a live view of the messages after the given clock (or from the start) that are before the lowest
+     *         common clock, and so will never have another message inserted among them
+     */
+    NavigableSet<Message<T>> stableMessagesAfter(Optional<SingleNodeVectorClock> since) {
+        final Message<T> upperBound = TopicNode.<T>boundary(lowestCommonClock());
+        if (!since.isPresent()) {
+            return messages.headSet(upperBound, false);
+        }
+        final Message<T> lowerBound = TopicNode.<T>boundary(since.get());
+        if (lowerBound.compareTo(upperBound) >= 0) {
+            return ImmutableSortedSet.of();
+        }
+        return messages.subSet(lowerBound, false, upperBound, false);
+    }
+
+    private static <T> Message<T> boundary(SingleNodeVectorClock clock) {
+        return Message.marker(boundary, clock);
+    }
+
+    public ImmutableList<Message<T>> allMessages() {
+        return ImmutableList.copyOf(messages);
     }
 
     public boolean synced() {
         return synchroniser.queue() == 0;
     }
+
+    /**
+     * A value given to {@link #storeAsync} that is waiting for room in the window.
+     */
+    private static final class PendingStore<T> {
+
+        private final T value;
+        private final SettableFuture<Void> stored = SettableFuture.create();
+
+        private PendingStore(T value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * A message, or heartbeat, waiting its turn to be handed to the {@link Synchroniser}, with the state its store
+     * moved the clock to.
+     */
+    private static final class Allocated<T> {
+
+        private final ClockState state;
+        private final Message<T> message;
+
+        private Allocated(ClockState state, Message<T> message) {
+            this.state = state;
+            this.message = message;
+        }
+    }
+
+    /**
+     * The node's vector clock together with the number of messages stored so far, swapped as one value. Every change
+     * takes the next version, so that of two states the later can be told apart. The sequences of this node's latest
+     * message, and of the one before the latest store, are kept with it so that each message and heartbeat can say
+     * which message of this node's came before it.
+     */
+    private static final class ClockState {
+
+        private final VectorClock vectorClock;
+        private final long stores;
+        private final long version;
+        private final int lastMessage;
+        private final int previousMessage;
+
+        private ClockState(VectorClock vectorClock, long stores, long version, int lastMessage, int previousMessage) {
+            this.vectorClock = vectorClock;
+            this.stores = stores;
+            this.version = version;
+            this.lastMessage = lastMessage;
+            this.previousMessage = previousMessage;
+        }
+
+        /**
+         * @param message whether a message is being stored, rather than a heartbeat sent
+         */
+        private ClockState stored(boolean message) {
+            final VectorClock next = vectorClock.next();
+            final int sequence = next.getLocalClock().sequenceForDefiningNode();
+            return new ClockState(next, stores + 1, version + 1, message ? sequence : lastMessage, lastMessage);
+        }
+
+        private ClockState withClock(VectorClock updated) {
+            return new ClockState(updated, stores, version + 1, lastMessage, previousMessage);
+        }
+    }
 }
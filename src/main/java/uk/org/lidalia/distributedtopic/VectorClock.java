@@ -1,30 +1,46 @@
 package uk.org.lidalia.distributedtopic;
 
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
-import com.google.common.base.Function;
-import com.google.common.collect.ImmutableSet;
+import org.joda.time.DateTimeUtils.MillisProvider;
+
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableSortedMap;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.collect.FluentIterable.from;
-import static com.google.common.collect.Maps.immutableEntry;
-import static java.util.Collections.min;
 import static uk.org.lidalia.distributedtopic.Maps2.put;
-import static uk.org.lidalia.distributedtopic.Maps2.uniqueIndex;
 
 public class VectorClock {
 
     private final NodeId nodeId;
     private final ImmutableSortedMap<NodeId, SingleNodeVectorClock> state;
+    private final ColumnMinimums minimums;
+    private final SingleNodeVectorClock lowestCommonClock;
+    private ImmutableSortedMap<NodeId, Integer> departures = null;
 
     public VectorClock(NodeId nodeId) {
         this(nodeId, ImmutableSortedMap.of(nodeId, new SingleNodeVectorClock(nodeId)));
     }
 
+    /**
+     * @param clock the source of timestamps for the local clock
+     */
+    VectorClock(NodeId nodeId, MillisProvider clock) {
+        this(nodeId, ImmutableSortedMap.of(nodeId, new SingleNodeVectorClock(nodeId, clock)));
+    }
+
     VectorClock(NodeId nodeId, ImmutableSortedMap<NodeId, SingleNodeVectorClock> state) {
+        this(nodeId, state, ColumnMinimums.of(state.values()));
+    }
+
+    private VectorClock(NodeId nodeId, ImmutableSortedMap<NodeId, SingleNodeVectorClock> state, ColumnMinimums minimums) {
         this.nodeId = checkNotNull(nodeId);
         this.state = checkNotNull(state);
+        this.minimums = checkNotNull(minimums);
+        this.lowestCommonClock = minimums.toClock(state.get(nodeId));
     }
 
     public NodeId getNodeId() {
@@ -40,30 +56,7 @@ public class VectorClock {
     }
 
     public SingleNodeVectorClock getLowestCommonClock() {
-        ImmutableSet<NodeId> allNodeIds = from(state.values()).transformAndConcat(new Function<SingleNodeVectorClock, Iterable<NodeId>>() {
-            @Override
-            public Iterable<NodeId> apply(SingleNodeVectorClock input) {
-                return input.nodeIds();
-            }
-        }).toSet();
-
-        ImmutableSortedMap<NodeId, Integer> lowestCommonState = uniqueIndex(allNodeIds, new Function<NodeId, Map.Entry<NodeId, Integer>>() {
-            @Override
-            public Map.Entry<NodeId, Integer> apply(NodeId nodeId) {
-                Integer minimum = minimumValueFor(nodeId);
-                return immutableEntry(nodeId, minimum);
-            }
-        });
-        return new SingleNodeVectorClock(nodeId, lowestCommonState);
-    }
-
-    private Integer minimumValueFor(final NodeId nodeId) {
-        return min(from(state.values()).transform(new Function<SingleNodeVectorClock, Integer>() {
-            @Override
-            public Integer apply(SingleNodeVectorClock vectorClock) {
-                return vectorClock.sequenceFor(nodeId).or(0);
-            }
-        }).toSet());
+        return lowestCommonClock;
     }
 
     @Override
@@ -91,18 +84,119 @@ public class VectorClock {
         return state.toString();
     }
 
+    /**
+     * Takes in the latest clock received from another node. A clock older than one already received from that node is
+     * ignored, so that a message delivered late, such as by anti-entropy, can never move the clock backwards, as is a
+     * clock from a node that has departed.
+     */
     public VectorClock update(SingleNodeVectorClock updatedRemoteClock) {
+        if (getLocalClock().departed().containsKey(updatedRemoteClock.getNodeId())) {
+            return this;
+        }
+        final SingleNodeVectorClock existingRemoteClock = state.get(updatedRemoteClock.getNodeId());
+        if (existingRemoteClock != null && !nodeId.equals(updatedRemoteClock.getNodeId())
+                && existingRemoteClock.sequenceForDefiningNode() >= updatedRemoteClock.sequenceForDefiningNode()) {
+            return this;
+        }
+        final SingleNodeVectorClock updatedLocalClock = getLocalClock().update(updatedRemoteClock);
         final ImmutableSortedMap<NodeId, SingleNodeVectorClock> updatedState1 = put(state, updatedRemoteClock.getNodeId(), updatedRemoteClock);
-        final ImmutableSortedMap<NodeId, SingleNodeVectorClock> updatedState2 = put(updatedState1, nodeId, getLocalClock().update(updatedRemoteClock));
-        return new VectorClock(nodeId, updatedState2);
+        final ImmutableSortedMap<NodeId, SingleNodeVectorClock> updatedState2 = put(updatedState1, nodeId, updatedLocalClock);
+        final ColumnMinimums updatedMinimums = minimums
+                .replace(state.get(updatedRemoteClock.getNodeId()), updatedRemoteClock, updatedState1.values())
+                .replace(updatedState1.get(nodeId), updatedLocalClock, updatedState2.values());
+        return new VectorClock(nodeId, updatedState2, updatedMinimums);
+    }
+
+    /**
+     * @return a clock holding, for each node, the sequence of the latest clock actually received from that node - unlike
+     *         the local clock, which also counts what other nodes have said they received from it
+     */
+    public SingleNodeVectorClock received() {
+        final ImmutableSortedMap.Builder<NodeId, Integer> received = ImmutableSortedMap.naturalOrder();
+        for (SingleNodeVectorClock clock : state.values()) {
+            received.put(clock.getNodeId(), clock.sequenceForDefiningNode());
+        }
+        return new SingleNodeVectorClock(nodeId, received.build());
     }
 
     public VectorClock next() {
-        final ImmutableSortedMap<NodeId, SingleNodeVectorClock> updatedState = put(state, nodeId, getLocalClock().next());
-        return new VectorClock(nodeId, updatedState);
+        final SingleNodeVectorClock updatedLocalClock = getLocalClock().next();
+        final ImmutableSortedMap<NodeId, SingleNodeVectorClock> updatedState = put(state, nodeId, updatedLocalClock);
+        return new VectorClock(nodeId, updatedState, minimums.replace(getLocalClock(), updatedLocalClock, updatedState.values()));
     }
 
     public VectorClock add(NodeId otherNode) {
         return update(new SingleNodeVectorClock(otherNode));
     }
+
+    /**
+     * @return this clock with the node departed from the local clock at the given final sequence. The node's own clock
+     *         is kept, still holding back the lowest common clock, until every other node has departed it as well.
+     */
+    VectorClock depart(NodeId node, int finalSequence) {
+        return new VectorClock(nodeId, put(state, nodeId, getLocalClock().departing(node, finalSequence)));
+    }
+
+    /**
+     * @return this clock without the clock of the given node, which no longer counts towards the lowest common clock
+     */
+    VectorClock withoutClockOf(NodeId node) {
+        checkArgument(!node.equals(nodeId), "Cannot remove the local clock");
+        final ImmutableSortedMap.Builder<NodeId, SingleNodeVectorClock> remaining = ImmutableSortedMap.naturalOrder();
+        for (Map.Entry<NodeId, SingleNodeVectorClock> entry : state.entrySet()) {
+            if (!entry.getKey().equals(node)) {
+                remaining.put(entry);
+            }
+        }
+        return new VectorClock(nodeId, remaining.build());
+    }
+
+    /**
+     * @return each node that any clock held here has departed, at the lowest final sequence it was departed at
+     */
+    ImmutableSortedMap<NodeId, Integer> departures() {
+        if (departures == null) {
+            final Map<NodeId, Integer> lowest = new TreeMap<>();
+            for (SingleNodeVectorClock clock : state.values()) {
+                for (Map.Entry<NodeId, Integer> departed : clock.departed().entrySet()) {
+                    final Integer existing = lowest.get(departed.getKey());
+                    if (existing == null || departed.getValue() < existing) {
+                        lowest.put(departed.getKey(), departed.getValue());
+                    }
+                }
+            }
+            departures = ImmutableSortedMap.copyOf(lowest);
+        }
+        return departures;
+    }
+
+    /**
+     * @param ignoring nodes whose clocks are not to be considered, such as any that have failed too
+     * @return whether the clock of every other node holds exactly the given sequence for the node, either as present
+     *         or as departed
+     */
+    boolean allOthersHold(NodeId node, int sequence, Set<NodeId> ignoring) {
+        for (SingleNodeVectorClock clock : state.values()) {
+            if (!clock.getNodeId().equals(node) && !ignoring.contains(clock.getNodeId())
+                    && !clock.sequenceFor(node).equals(Optional.of(sequence))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param ignoring nodes whose clocks are not to be considered, such as any that have departed too
+     * @return whether the clock of every other node has departed the node at the given final sequence
+     */
+    boolean allOthersHaveDeparted(NodeId node, int finalSequence, Set<NodeId> ignoring) {
+        for (SingleNodeVectorClock clock : state.values()) {
+            final Integer departedAt = clock.departed().get(node);
+            if (!clock.getNodeId().equals(node) && !ignoring.contains(clock.getNodeId())
+                    && (departedAt == null || departedAt != finalSequence)) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,41 @@
+package uk.org.lidalia.distributedtopic;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Keeps nothing: a node using it starts empty every time and relies on its peers to catch up.
+ */
+public class VolatileMessageStore<T> implements MessageStore<T> {
+
+    @Override
+    public void append(Message<T> message) {
+    }
+
+    @Override
+    public ImmutableList<Message<T>> recover() {
+        return ImmutableList.of();
+    }
+
+    @Override
+    public ImmutableMap<NodeId, SingleNodeVectorClock> latestClocks() {
+        return ImmutableMap.of();
+    }
+
+    @Override
+    public void reserveSequencesUpTo(int sequence) {
+    }
+
+    @Override
+    public int reservedSequences() {
+        return 0;
+    }
+
+    @Override
+    public void discardUpTo(SingleNodeVectorClock clock) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
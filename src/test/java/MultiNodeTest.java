@@ -29,7 +29,7 @@ public class MultiNodeTest {
         final AtomicInteger dataToStore = new AtomicInteger(0);
 
         final int numberOfNodes = 4;
-        final List<TopicNode> nodes = nodes(numberOfNodes);
+        final List<TopicNode<Integer>> nodes = nodes(numberOfNodes);
 
         final CountDownLatch allProducersReady = new CountDownLatch(1);
 
@@ -62,7 +62,7 @@ public class MultiNodeTest {
         allProducersReady.countDown();
         allProducersDone.await();
 
-        for (final TopicNode node : nodes) {
+        for (final TopicNode<Integer> node : nodes) {
             waitUntil(new Callable<Boolean>() {
                 @Override
                 public Boolean call() throws Exception {
@@ -71,16 +71,16 @@ public class MultiNodeTest {
             });
         }
 
-        for (TopicNode node : nodes) {
+        for (TopicNode<Integer> node : nodes) {
             final ImmutableList<Integer> records = from(node.allMessages()).transform(toPayload()).toList();
             assertThat(records, hasItems(list(1, numberOfProducers * numberOfInserts)));
         }
     }
 
-    private Function<? super Message, Integer> toPayload() {
-        return new Function<Message, Integer>() {
+    private Function<? super Message<Integer>, Integer> toPayload() {
+        return new Function<Message<Integer>, Integer>() {
             @Override
-            public Integer apply(Message message) {
+            public Integer apply(Message<Integer> message) {
                 return (Integer) message.get();
             }
         };
@@ -92,13 +92,13 @@ public class MultiNodeTest {
         }
     }
 
-    private List<TopicNode> nodes(int numberOfNodes) {
-        List<TopicNode> nodes = new ArrayList<>();
+    private List<TopicNode<Integer>> nodes(int numberOfNodes) {
+        List<TopicNode<Integer>> nodes = new ArrayList<>();
         for (int i = 1; i <= numberOfNodes; i++) {
-            nodes.add(new TopicNode(i));
+            nodes.add(new TopicNode<Integer>(i));
         }
-        for (TopicNode node : nodes) {
-            for (TopicNode otherNode : nodes) {
+        for (TopicNode<Integer> node : nodes) {
+            for (TopicNode<Integer> otherNode : nodes) {
                 if (otherNode != node) {
                     node.syncWith(otherNode);
                 }
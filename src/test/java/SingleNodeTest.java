@@ -16,17 +16,17 @@ public class SingleNodeTest {
 
     @Test
     public void recordsReturnedInInsertionOrder() {
-        TopicNode node = new TopicNode(1);
+        TopicNode<Integer> node = new TopicNode<>(1);
         for (int i = 1; i <= 100; i++) {
             node.store(i);
         }
         assertThat(from(node.allMessages()).transform(toPayload()).toList(), is(list(1, 100)));
     }
 
-    private Function<Message, Integer> toPayload() {
-        return new Function<Message, Integer>() {
+    private Function<Message<Integer>, Integer> toPayload() {
+        return new Function<Message<Integer>, Integer>() {
             @Override
-            public Integer apply(Message message) {
+            public Integer apply(Message<Integer> message) {
                 return (Integer) message.get();
             }
         };
@@ -0,0 +1,90 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static uk.org.lidalia.distributedtopic.Payloads.payloads;
+
+public class CursorTest {
+
+    @Test
+    public void pollReturnsOnlyNewlyConsistentMessages() {
+        TopicNode<Integer> node = new TopicNode<>(1);
+        Cursor<Integer> cursor = node.cursor();
+
+        node.store(1);
+        node.store(2);
+        node.store(3);
+        assertThat(payloads(cursor.poll()), is(ImmutableList.of(1, 2)));
+        assertThat(payloads(cursor.poll()), is(ImmutableList.<Integer>of()));
+
+        node.store(4);
+        assertThat(payloads(cursor.poll()), is(ImmutableList.of(3)));
+    }
+
+    @Test
+    public void cursorsAreIndependent() {
+        TopicNode<Integer> node = new TopicNode<>(1);
+        Cursor<Integer> cursor1 = node.cursor();
+
+        node.store(1);
+        node.store(2);
+        assertThat(payloads(cursor1.poll()), is(ImmutableList.of(1)));
+
+        Cursor<Integer> cursor2 = node.cursor();
+        node.store(3);
+        assertThat(payloads(cursor1.poll()), is(ImmutableList.of(2)));
+        assertThat(payloads(cursor2.poll()), is(ImmutableList.of(1, 2)));
+    }
+
+    @Test
+    public void aCursorOnANodeAloneSeesEveryStoreMadeConcurrently() throws Exception {
+        final TopicNode<Integer> node = new TopicNode<>(1);
+        Cursor<Integer> cursor = node.cursor();
+        final int producers = 4;
+        final int perProducer = 5000;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        node.store(producer * perProducer + i);
+                    }
+                }
+            });
+        }
+        start.countDown();
+        Set<Integer> seen = new HashSet<>();
+        while (!executor.isTerminated()) {
+            for (Message<Integer> message : cursor.poll()) {
+                seen.add(message.get());
+            }
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MILLISECONDS);
+        }
+        node.store(-1);
+        for (Message<Integer> message : cursor.poll()) {
+            seen.add(message.get());
+        }
+
+        assertThat(seen.size(), is(producers * perProducer));
+    }
+}
@@ -0,0 +1,77 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static uk.org.lidalia.distributedtopic.Disseminations.fullMesh;
+import static uk.org.lidalia.distributedtopic.Disseminations.tree;
+import static uk.org.lidalia.distributedtopic.LatencyDistributions.fixed;
+
+public class DisseminationTest {
+
+    private final ImmutableSortedSet<NodeId> members = ImmutableSortedSet.of(
+            node(1), node(2), node(3), node(4), node(5), node(6), node(7));
+
+    @Test
+    public void fullMeshSendsOnlyFromTheOrigin() {
+        assertThat(fullMesh().targets(node(1), node(1), members),
+                is(ImmutableList.of(node(2), node(3), node(4), node(5), node(6), node(7))));
+        assertThat(fullMesh().targets(node(2), node(1), members), is(ImmutableList.<NodeId>of()));
+    }
+
+    @Test
+    public void treeIsRootedAtTheOrigin() {
+        assertThat(tree(2).targets(node(1), node(1), members), is(ImmutableList.of(node(2), node(3))));
+        assertThat(tree(2).targets(node(2), node(1), members), is(ImmutableList.of(node(4), node(5))));
+        assertThat(tree(2).targets(node(4), node(1), members), is(ImmutableList.<NodeId>of()));
+
+        assertThat(tree(2).targets(node(3), node(3), members), is(ImmutableList.of(node(4), node(5))));
+        assertThat(tree(2).targets(node(5), node(3), members), is(ImmutableList.of(node(1), node(2))));
+    }
+
+    @Test
+    public void gossipReachesEveryNode() {
+        List<TopicNode<Integer>> nodes = new ArrayList<>();
+        for (int i = 1; i <= 7; i++) {
+            nodes.add(new TopicNode<Integer>(i, new Synchroniser(1, Duration.ZERO, new SimulatedLink(fixed(Duration.millis(1))), tree(2))));
+        }
+        for (TopicNode<Integer> node : nodes) {
+            for (TopicNode<Integer> other : nodes) {
+                if (node != other) {
+                    node.syncWith(other);
+                }
+            }
+        }
+
+        for (int i = 1; i <= 20; i++) {
+            nodes.get(0).store(i);
+            nodes.get(3).store(-i);
+        }
+        for (TopicNode<Integer> node : nodes) {
+            while (node.allMessages().size() < 40) {
+                Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        for (TopicNode<Integer> node : nodes) {
+            assertThat(node.allMessages(), is(nodes.get(0).allMessages()));
+            if (node != nodes.get(3)) {
+                assertThat(node.vectorClock().getState().get(node(4)), is(nodes.get(0).vectorClock().getState().get(node(4))));
+            }
+        }
+    }
+
+    private static NodeId node(int id) {
+        return new NodeId(id);
+    }
+}
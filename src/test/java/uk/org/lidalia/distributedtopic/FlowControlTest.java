@@ -0,0 +1,166 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static uk.org.lidalia.distributedtopic.FlowControl.Overflow.BLOCK;
+import static uk.org.lidalia.distributedtopic.FlowControl.Overflow.DISCARD;
+import static uk.org.lidalia.distributedtopic.FlowControl.Overflow.REJECT;
+
+public class FlowControlTest {
+
+    private final InMemoryMetricRegistry metrics = new InMemoryMetricRegistry();
+    private final TopicNode<Integer> node1 = new TopicNode<>(1, new Synchroniser(), RetentionPolicy.retainAll(),
+            new VolatileMessageStore<Integer>(), metrics);
+
+    public FlowControlTest() {
+        node1.syncWith(new SilentPeer(new NodeId(2)));
+    }
+
+    @Test
+    public void storesAreRejectedOnceTheWindowIsFullUntilTheyAreAcknowledged() throws Exception {
+        node1.controlFlow(FlowControl.window(3).onOverflow(REJECT));
+        for (int i = 0; i < 3; i++) {
+            node1.store(i);
+        }
+
+        try {
+            node1.store(3);
+            throw new AssertionError("Store should have been rejected");
+        } catch (RejectedExecutionException expected) {
+        }
+        assertThat(node1.tryStore(3), is(false));
+        assertThat(node1.tryStore(3, Duration.millis(10)), is(false));
+        ListenableFuture<Void> stored = node1.storeAsync(3);
+        assertThat(stored.isDone(), is(false));
+        assertThat(node1.allMessages().size(), is(3));
+
+        node1.sync(acknowledgementOf(node1.allMessages().get(1)));
+
+        stored.get(5, TimeUnit.SECONDS);
+        assertThat(node1.tryStore(4), is(true));
+        assertThat(node1.allMessages().size(), is(5));
+        assertThat(node1.allMessages().get(3).get(), is(3));
+    }
+
+    @Test
+    public void aBlockedStoreIsReleasedByAnAcknowledgement() throws Exception {
+        node1.controlFlow(FlowControl.window(2));
+        node1.store(0);
+        node1.store(1);
+        final CountDownLatch stored = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                node1.store(2);
+                stored.countDown();
+            }
+        }.start();
+
+        assertThat(stored.await(100, TimeUnit.MILLISECONDS), is(false));
+        node1.sync(acknowledgementOf(node1.allMessages().get(0)));
+
+        assertThat(stored.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(node1.allMessages().size(), is(3));
+    }
+
+    @Test
+    public void storesBeyondTheWindowAreDiscarded() {
+        node1.controlFlow(FlowControl.window(1).onOverflow(DISCARD));
+
+        assertThat(node1.store(0), is(true));
+        assertThat(node1.store(1), is(false));
+
+        assertThat(node1.allMessages().size(), is(1));
+        assertThat(metrics.counters().get("rejected").count(), is(1L));
+    }
+
+    @Test
+    public void asyncStoresCompleteOnTheNodesExecutorRatherThanTheAcknowledgingThread() throws Exception {
+        node1.controlFlow(FlowControl.window(1).onOverflow(BLOCK));
+        node1.store(0);
+        ListenableFuture<Void> stored = node1.storeAsync(1);
+        final AtomicReference<Thread> completedOn = new AtomicReference<>();
+        stored.addListener(new Runnable() {
+            @Override
+            public void run() {
+                completedOn.set(Thread.currentThread());
+            }
+        }, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+
+        node1.sync(acknowledgementOf(node1.allMessages().get(0)));
+        stored.get(5, TimeUnit.SECONDS);
+
+        assertThat(completedOn.get() == Thread.currentThread(), is(false));
+    }
+
+    @Test
+    public void asyncStoresBeyondTwiceTheWindowFail() {
+        node1.controlFlow(FlowControl.window(1).onOverflow(BLOCK));
+        node1.store(0);
+        ListenableFuture<Void> waiting = node1.storeAsync(1);
+        ListenableFuture<Void> failed = node1.storeAsync(2);
+
+        assertThat(waiting.isDone(), is(false));
+        try {
+            failed.get();
+            throw new AssertionError("Store should have failed");
+        } catch (Exception expected) {
+            assertThat(expected.getCause() instanceof RejectedExecutionException, is(true));
+        }
+    }
+
+    /**
+     * @return a heartbeat from node 2 showing it has received from node 1 up to the given message
+     */
+    private Message<Integer> acknowledgementOf(Message<Integer> message) {
+        int received = message.getVectorClock().sequenceForDefiningNode();
+        return Message.heartbeat(new SingleNodeVectorClock(new NodeId(2)).update(new NodeId(1), received));
+    }
+
+    /**
+     * A peer that never acknowledges anything it is sent.
+     */
+    private static class SilentPeer implements Peer {
+
+        private final NodeId id;
+
+        private SilentPeer(NodeId id) {
+            this.id = id;
+        }
+
+        @Override
+        public NodeId getId() {
+            return id;
+        }
+
+        @Override
+        public void deliver(ImmutableList<Message<?>> messages) {
+        }
+
+        @Override
+        public void requestMissing(SingleNodeVectorClock received) {
+        }
+
+        @Override
+        public int queued() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static uk.org.lidalia.distributedtopic.LatencyDistributions.uniform;
+
+public class MembershipTest {
+
+    private final Simulation simulation = new Simulation(1);
+    private final SimulatedLink link = new SimulatedLink(uniform(Duration.millis(10), Duration.millis(50), simulation.random()));
+    private final AtomicBoolean node3Failed = new AtomicBoolean(false);
+    private final List<TopicNode<Integer>> nodes = new ArrayList<>();
+    private final ImmutableSortedSet<NodeId> survivors = ImmutableSortedSet.of(new NodeId(1), new NodeId(2));
+
+    @Test
+    public void aFailedNodeIsRemovedFromEveryClock() {
+        final TopicNode<Integer> node1 = node(1);
+        final TopicNode<Integer> node2 = node(2);
+        final TopicNode<Integer> node3 = node(3);
+        connectAndStart(true);
+        for (int i = 0; i < 10; i++) {
+            node1.store(i);
+            node2.store(100 + i);
+            node3.store(200 + i);
+        }
+        assertThat(simulation.runUntil(consistentMessages(30, node1, node2, node3), Duration.standardSeconds(10)), is(true));
+        ImmutableList<Message<Integer>> beforeFailure = node1.consistentMessages();
+
+        node3Failed.set(true);
+        for (int i = 10; i < 20; i++) {
+            node1.store(i);
+            node2.store(100 + i);
+        }
+        boolean removed = simulation.runUntil(new Supplier<Boolean>() {
+            @Override
+            public Boolean get() {
+                return node1.vectorClock().getState().keySet().equals(survivors)
+                        && node2.vectorClock().getState().keySet().equals(survivors)
+                        && consistentMessages(50, node1, node2).get();
+            }
+        }, Duration.standardSeconds(60));
+
+        assertThat(removed, is(true));
+        assertThat(node1.members(), is(survivors));
+        assertThat(node2.consistentMessages(), is(node1.consistentMessages()));
+        assertThat(node1.consistentMessages().subList(0, 30), is(beforeFailure));
+
+        node1.store(20);
+        Message<Integer> latest = node1.allMessages().get(node1.allMessages().size() - 1);
+        assertThat(latest.getVectorClock().nodeIds(), is(survivors));
+        assertThat(latest.getVectorClock().sequenceFor(new NodeId(3)).isPresent(), is(true));
+    }
+
+    @Test
+    public void aRemovedNodeIsRemovedByEveryOtherNode() {
+        final TopicNode<Integer> node1 = node(1);
+        final TopicNode<Integer> node2 = node(2);
+        final TopicNode<Integer> node3 = node(3);
+        connectAndStart(false);
+        for (int i = 0; i < 10; i++) {
+            node3.store(200 + i);
+        }
+        assertThat(simulation.runUntil(consistentMessages(10, node1, node2, node3), Duration.standardSeconds(10)), is(true));
+
+        node3Failed.set(true);
+        node1.remove(new NodeId(3));
+        node2.store(100);
+        boolean removed = simulation.runUntil(new Supplier<Boolean>() {
+            @Override
+            public Boolean get() {
+                return node2.vectorClock().getState().keySet().equals(survivors)
+                        && node1.vectorClock().getState().keySet().equals(survivors)
+                        && consistentMessages(11, node1, node2).get();
+            }
+        }, Duration.standardSeconds(30));
+
+        assertThat(removed, is(true));
+        assertThat(node2.members(), is(survivors));
+        assertThat(node2.consistentMessages(), is(node1.consistentMessages()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aRemovedNodeCannotRejoinUnderTheSameId() {
+        TopicNode<Integer> node1 = node(1);
+        TopicNode<Integer> node3 = node(3);
+        node1.syncWith(node3);
+        node1.remove(new NodeId(3));
+
+        node1.syncWith(node3);
+    }
+
+    private TopicNode<Integer> node(int id) {
+        final TopicNode<Integer> node = simulation.node(id, simulation.synchroniser(link, Disseminations.fullMesh()));
+        nodes.add(node);
+        return node;
+    }
+
+    private void connectAndStart(boolean detectFailures) {
+        for (TopicNode<Integer> node : nodes) {
+            for (TopicNode<Integer> other : nodes) {
+                if (node != other) {
+                    node.syncWith(new FailablePeer(new SimulatedPeer(other, link, simulation, simulation.executor()),
+                            node.getId().getId() == 3 || other.getId().getId() == 3));
+                }
+            }
+            if (detectFailures) {
+                node.detectFailures(new PhiAccrualFailureDetector(8));
+            }
+            node.start();
+        }
+    }
+
+    private static Supplier<Boolean> consistentMessages(final int count, final TopicNode<?>... nodes) {
+        return new Supplier<Boolean>() {
+            @Override
+            public Boolean get() {
+                for (TopicNode<?> node : nodes) {
+                    if (node.consistentMessages().size() != count) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * A peer whose deliveries are lost once node 3 has failed, if the connection is to or from it.
+     */
+    private final class FailablePeer implements Peer {
+
+        private final Peer peer;
+        private final boolean toOrFromNode3;
+
+        private FailablePeer(Peer peer, boolean toOrFromNode3) {
+            this.peer = peer;
+            this.toOrFromNode3 = toOrFromNode3;
+        }
+
+        private boolean failed() {
+            return toOrFromNode3 && node3Failed.get();
+        }
+
+        @Override
+        public NodeId getId() {
+            return peer.getId();
+        }
+
+        @Override
+        public void deliver(ImmutableList<Message<?>> messages) {
+            if (!failed()) {
+                peer.deliver(messages);
+            }
+        }
+
+        @Override
+        public void requestMissing(SingleNodeVectorClock received) {
+            if (!failed()) {
+                peer.requestMissing(received);
+            }
+        }
+
+        @Override
+        public int queued() {
+            return failed() ? 0 : peer.queued();
+        }
+    }
+}
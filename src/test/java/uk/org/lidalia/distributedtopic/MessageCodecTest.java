@@ -0,0 +1,203 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.nio.ByteBuffer;
+
+import org.joda.time.DateTimeUtils;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class MessageCodecTest {
+
+    private final MessageCodec<Object> codec = new MessageCodec<>(new JavaPayloadSerialiser<Object>());
+
+    @Test
+    public void roundTripsASelfContainedMessage() {
+        Message<Object> message = new Message<Object>("payload", new SingleNodeVectorClock(new NodeId(2)).add(new NodeId(1)).add(new NodeId(300)).next());
+
+        Message<Object> decoded = codec.decode(codec.encode(message));
+
+        assertThat(decoded, is(message));
+        assertThat(decoded.get(), is((Object) "payload"));
+    }
+
+    @Test
+    public void roundTripsTheSequenceOfThePreviousMessage() {
+        SingleNodeVectorClock clock = new SingleNodeVectorClock(new NodeId(1)).add(new NodeId(2)).next().next().next();
+
+        assertThat(codec.decode(codec.encode(new Message<Object>("payload", clock, 2))).getPrevious(), is(2));
+        assertThat(codec.decode(codec.encode(Message.<Object>heartbeat(clock, 1))).getPrevious(), is(1));
+        assertThat(codec.decode(codec.encode(new Message<Object>("payload", clock))).getPrevious(), is(0));
+    }
+
+    @Test
+    public void heartbeatsAreEncodedAsTheirClockAlone() {
+        SingleNodeVectorClock clock = new SingleNodeVectorClock(new NodeId(1)).add(new NodeId(2)).next();
+
+        ByteBuffer encoded = codec.encode(Message.<Object>heartbeat(clock));
+        int size = encoded.remaining();
+        Message<Object> decoded = codec.decode(encoded);
+
+        assertThat(decoded.isHeartbeat(), is(true));
+        assertThat(decoded.getVectorClock(), is(clock));
+        assertThat(size, lessThan(codec.encode(new Message<Object>("", clock)).remaining()));
+    }
+
+    @Test
+    public void roundTripsMessagesOverALink() {
+        LinkCodec<Object> encoder = codec.forLink();
+        LinkCodec<Object> decoder = codec.forLink();
+        ByteBuffer wire = ByteBuffer.allocate(64 * 1024);
+
+        SingleNodeVectorClock clock = new SingleNodeVectorClock(new NodeId(1)).add(new NodeId(2));
+        Message<?>[] sent = new Message<?>[20];
+        for (int i = 0; i < sent.length; i++) {
+            clock = i == 10 ? clock.add(new NodeId(3)) : clock.next();
+            sent[i] = new Message<Object>(i, clock);
+            encoder.encode(sent[i], wire);
+        }
+        wire.flip();
+
+        for (Message<?> message : sent) {
+            Message<Object> decoded = decoder.decode(wire);
+            assertThat(decoded, is(message));
+            assertThat(decoded.get(), is(message.get()));
+        }
+        assertThat(wire.hasRemaining(), is(false));
+    }
+
+    @Test
+    public void clocksAreDecodedWithTheTimestampsTheirOriginGaveThem() {
+        final long[] now = { 1000000L };
+        SingleNodeVectorClock clock = new SingleNodeVectorClock(new NodeId(1), new DateTimeUtils.MillisProvider() {
+            @Override
+            public long getMillis() {
+                return now[0];
+            }
+        }).add(new NodeId(2));
+        LinkCodec<Object> encoder = codec.forLink();
+        LinkCodec<Object> decoder = codec.forLink();
+        ByteBuffer wire = ByteBuffer.allocate(64 * 1024);
+        SingleNodeVectorClock first = clock.next();
+        now[0] -= 5000;
+        SingleNodeVectorClock heartbeat = first.next();
+        now[0] += 70000;
+        SingleNodeVectorClock second = heartbeat.next();
+        encoder.encode(new Message<Object>(1, first), wire);
+        encoder.encode(Message.<Object>heartbeat(heartbeat), wire);
+        encoder.encode(new Message<Object>(2, second), wire);
+        wire.flip();
+
+        assertThat(codec.decode(codec.encode(new Message<Object>(1, first))).getVectorClock().getTimestamp(), is(first.getTimestamp()));
+        assertThat(decoder.decode(wire).getVectorClock().getTimestamp(), is(first.getTimestamp()));
+        assertThat(decoder.decode(wire).isHeartbeat(), is(true));
+        assertThat(decoder.decode(wire).getVectorClock().getTimestamp(), is(second.getTimestamp()));
+    }
+
+    @Test
+    public void deltaEncodingIsSmallerThanSelfContained() {
+        SingleNodeVectorClock clock = new SingleNodeVectorClock(new NodeId(1));
+        for (int i = 2; i <= 30; i++) {
+            clock = clock.update(new NodeId(i), 100000 + i);
+        }
+        Message<Object> first = new Message<Object>(1, clock);
+        Message<Object> second = new Message<Object>(2, clock.next());
+        LinkCodec<Object> encoder = codec.forLink();
+        ByteBuffer wire = ByteBuffer.allocate(64 * 1024);
+        encoder.encode(first, wire);
+        int firstSize = wire.position();
+
+        encoder.encode(second, wire);
+
+        assertThat(wire.position() - firstSize, lessThan(firstSize));
+        assertThat(wire.position() - firstSize, lessThan(codec.encode(second).remaining()));
+    }
+
+    @Test
+    public void onlyTheSequencesThatChangedAreSentWhenFewHave() {
+        SingleNodeVectorClock clock = new SingleNodeVectorClock(new NodeId(1));
+        for (int i = 2; i <= 30; i++) {
+            clock = clock.update(new NodeId(i), 100000 + i);
+        }
+        LinkCodec<Object> encoder = codec.forLink();
+        LinkCodec<Object> decoder = codec.forLink();
+        ByteBuffer wire = ByteBuffer.allocate(64 * 1024);
+        encoder.encode(Message.<Object>heartbeat(clock), wire);
+        int firstSize = wire.position();
+        SingleNodeVectorClock next = clock.update(new NodeId(7), 200000);
+
+        encoder.encode(Message.<Object>heartbeat(next), wire);
+        int secondSize = wire.position() - firstSize;
+        encoder.encode(new Message<Object>(3, clock.update(new NodeId(8), 1).update(new NodeId(9), 1).next()), wire);
+        wire.flip();
+        decoder.decode(wire);
+
+        assertThat(secondSize < 10, is(true));
+        assertThat(decoder.decode(wire).getVectorClock(), is(next));
+        assertThat(decoder.decode(wire).getVectorClock(), is(clock.update(new NodeId(8), 1).update(new NodeId(9), 1).next()));
+    }
+
+    @Test
+    public void roundTripsTheFinalSequencesOfDepartedNodes() {
+        SingleNodeVectorClock clock = new SingleNodeVectorClock(new NodeId(2)).add(new NodeId(1)).add(new NodeId(3)).next()
+                .update(new NodeId(3), 7).departing(new NodeId(3), 7).departing(new NodeId(1), 0);
+        Message<Object> message = new Message<Object>("payload", clock);
+        LinkCodec<Object> encoder = codec.forLink();
+        LinkCodec<Object> decoder = codec.forLink();
+        ByteBuffer wire = ByteBuffer.allocate(1024);
+        encoder.encode(new Message<Object>("before", new SingleNodeVectorClock(new NodeId(2)).add(new NodeId(1)).add(new NodeId(3))), wire);
+        encoder.encode(message, wire);
+        wire.flip();
+        decoder.decode(wire);
+
+        Message<Object> decoded = decoder.decode(wire);
+
+        assertThat(decoded, is(message));
+        assertThat(decoded.getVectorClock().departed(), is(clock.departed()));
+        assertThat(decoded.getVectorClock().sequenceFor(new NodeId(3)).get(), is(7));
+        assertThat(codec.decode(codec.encode(message)).getVectorClock(), is(clock));
+    }
+
+    @Test
+    public void payloadsAreDecodedOnlyWhenRead() {
+        Message<Object> decoded = codec.decode(codec.encode(new Message<Object>("payload", new SingleNodeVectorClock(new NodeId(1)))));
+
+        assertThat(decoded.isDecoded(), is(false));
+        assertThat(decoded.get(), is((Object) "payload"));
+        assertThat(decoded.isDecoded(), is(true));
+    }
+
+    @Test
+    public void encodedPayloadsArePassedOnWithoutBeingDecoded() {
+        CountingSerialiser serialiser = new CountingSerialiser();
+        MessageCodec<Object> countingCodec = new MessageCodec<>(serialiser);
+        ByteBuffer original = countingCodec.encode(new Message<Object>("payload", new SingleNodeVectorClock(new NodeId(1))));
+
+        ByteBuffer reencoded = countingCodec.encode(countingCodec.decode(original.duplicate()));
+
+        assertThat(reencoded, is(original));
+        assertThat(serialiser.serialised, is(1));
+        assertThat(serialiser.deserialised, is(0));
+    }
+
+    private static class CountingSerialiser implements PayloadSerialiser<Object> {
+
+        private final JavaPayloadSerialiser<Object> delegate = new JavaPayloadSerialiser<>();
+        private int serialised = 0;
+        private int deserialised = 0;
+
+        @Override
+        public void serialise(Object payload, ByteBuffer out) {
+            serialised++;
+            delegate.serialise(payload, out);
+        }
+
+        @Override
+        public Object deserialise(ByteBuffer bytes) {
+            deserialised++;
+            return delegate.deserialise(bytes);
+        }
+    }
+}
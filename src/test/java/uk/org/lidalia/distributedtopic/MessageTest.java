@@ -11,10 +11,10 @@ public class MessageTest {
 
     @Test
     public void orderingSameNodeId() {
-        Message message1 = new Message(1, new SingleNodeVectorClock(new NodeId(1)));
-        Message message2 = new Message(2, message1.getVectorClock().next());
+        Message<Integer> message1 = new Message<>(1, new SingleNodeVectorClock(new NodeId(1)));
+        Message<Integer> message2 = new Message<>(2, message1.getVectorClock().next());
 
-        ImmutableSortedSet<Message> ordered = ImmutableSortedSet.of(message1, message2);
+        ImmutableSortedSet<Message<Integer>> ordered = ImmutableSortedSet.of(message1, message2);
 
         assertThat(ordered.first(), is(message1));
         assertThat(ordered.last(), is(message2));
@@ -0,0 +1,121 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class MetricsTest {
+
+    @Test
+    public void counterSumsAcrossThreads() throws Exception {
+        final Counter counter = new Counter();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 8; i++) {
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        counter.increment();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        assertThat(counter.count(), is(8000L));
+    }
+
+    @Test
+    public void histogramReportsPercentilesWithinItsPrecision() {
+        Histogram histogram = new Histogram();
+        for (int value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+
+        assertThat(histogram.count(), is(1000L));
+        assertThat(histogram.max(), is(1000L));
+        assertThat(histogram.mean(), is(500.5));
+        assertWithin(histogram.percentile(50), 500);
+        assertWithin(histogram.percentile(99), 990);
+        assertThat(histogram.percentile(100), is(1000L));
+    }
+
+    @Test
+    public void histogramCountsNegativeValuesAsZero() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+
+        assertThat(histogram.percentile(100), is(0L));
+    }
+
+    @Test
+    public void nodeReportsStoresReceiptsAndConsistency() {
+        InMemoryMetricRegistry metrics1 = new InMemoryMetricRegistry();
+        InMemoryMetricRegistry metrics2 = new InMemoryMetricRegistry();
+        TopicNode<Integer> node1 = new TopicNode<>(1, new Synchroniser(), RetentionPolicy.retainAll(), new VolatileMessageStore<Integer>(), metrics1);
+        TopicNode<Integer> node2 = new TopicNode<>(2, new Synchroniser(), RetentionPolicy.retainAll(), new VolatileMessageStore<Integer>(), metrics2);
+        node1.syncWith(node2);
+        node2.syncWith(node1);
+        node1.start();
+        node2.start();
+
+        for (int i = 0; i < 10; i++) {
+            node1.store(i);
+        }
+        while (metrics1.histograms().get("storeToConsistentMillis").count() < 10) {
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        }
+
+        assertThat(metrics1.counters().get("stored").count(), is(10L));
+        assertThat(metrics2.counters().get("received").count(), is(10L));
+        assertThat(metrics2.histograms().get("deliveryLatencyMillis.1").count(), is(10L));
+        assertThat(metrics1.gauges().get("retainedMessages").value(), is(10L));
+        assertThat(metrics1.gauges().keySet().containsAll(ImmutableSet.of("lowestCommonClockLag.1", "lowestCommonClockLag.2", "queue.2")), is(true));
+    }
+
+    @Test
+    public void nodesGivenAJmxRegistryPublishTheirMetricsUntilClosed() throws Exception {
+        ObjectName name = new ObjectName("uk.org.lidalia.distributedtopic:type=TopicNode,node=1,name=\"stored\"");
+        TopicNode<String> node = new TopicNode<>(1, new Synchroniser(), RetentionPolicy.retainAll(),
+                new VolatileMessageStore<String>(), JmxMetricRegistry.forNode(new NodeId(1)));
+        node.store("a");
+
+        assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Count"), is((Object) 1L));
+
+        node.close();
+
+        assertThat(ManagementFactory.getPlatformMBeanServer().isRegistered(name), is(false));
+    }
+
+    @Test
+    public void aRegistryCannotTakeOverNamesPublishedByAnother() {
+        JmxMetricRegistry first = JmxMetricRegistry.forNode(new NodeId(3));
+        first.counter("stored");
+        try {
+            JmxMetricRegistry.forNode(new NodeId(3)).counter("stored");
+            throw new AssertionError("Second registry should not have published");
+        } catch (IllegalStateException expected) {
+        } finally {
+            first.close();
+        }
+
+        JmxMetricRegistry.forNode(new NodeId(3)).close();
+    }
+
+    private static void assertWithin(long actual, long expected) {
+        assertThat("expected " + expected + " to within 12.5% but was " + actual,
+                Math.abs(actual - expected) <= expected / 8, is(true));
+    }
+}
@@ -0,0 +1,139 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+
+public class NioTransportTest {
+
+    private final MessageCodec<Integer> codec = new MessageCodec<>(new JavaPayloadSerialiser<Integer>());
+
+    @Test
+    public void nodesSynchroniseOverTcp() {
+        TopicNode<Integer> node1 = new TopicNode<>(1);
+        TopicNode<Integer> node2 = new TopicNode<>(2);
+        try (NioTransport transport1 = new NioTransport(codec); NioTransport transport2 = new NioTransport(codec)) {
+            InetSocketAddress address1 = transport1.listen(localhost(0), node1);
+            InetSocketAddress address2 = transport2.listen(localhost(0), node2);
+            node1.syncWith(transport1.connect(node2.getId(), address2));
+            node2.syncWith(transport2.connect(node1.getId(), address1));
+
+            for (int i = 1; i <= 100; i++) {
+                node1.store(i);
+                node2.store(-i);
+            }
+            waitForMessages(node1, 200);
+            waitForMessages(node2, 200);
+
+            assertThat(node2.allMessages(), is(node1.allMessages()));
+        }
+    }
+
+    @Test
+    public void reconnectsUntilThePeerIsListening() throws Exception {
+        TopicNode<Integer> node1 = new TopicNode<>(1);
+        TopicNode<Integer> node2 = new TopicNode<>(2);
+        int port = freePort();
+        try (NioTransport transport1 = new NioTransport(codec, Duration.millis(50)); NioTransport transport2 = new NioTransport(codec)) {
+            Peer peer = transport1.connect(node2.getId(), localhost(port));
+            node1.syncWith(peer);
+            for (int i = 1; i <= 10; i++) {
+                node1.store(i);
+            }
+            Uninterruptibles.sleepUninterruptibly(200, TimeUnit.MILLISECONDS);
+            assertThat(peer.queued(), is(10));
+
+            transport2.listen(localhost(port), node2);
+            waitForMessages(node2, 10);
+
+            assertThat(node2.allMessages(), is(node1.allMessages()));
+        }
+    }
+
+    @Test
+    public void aConnectionSendingAFrameTooLongIsClosedWithoutStoppingTheOthers() throws Exception {
+        TopicNode<Integer> node1 = new TopicNode<>(1);
+        TopicNode<Integer> node2 = new TopicNode<>(2);
+        try (NioTransport transport1 = new NioTransport(codec); NioTransport transport2 = new NioTransport(codec, Duration.millis(500), 1024)) {
+            InetSocketAddress address2 = transport2.listen(localhost(0), node2);
+            try (Socket rogue = new Socket(address2.getAddress(), address2.getPort())) {
+                rogue.setSoTimeout(5000);
+                new DataOutputStream(rogue.getOutputStream()).writeInt(Integer.MAX_VALUE);
+
+                assertThat(rogue.getInputStream().read(), is(-1));
+            }
+
+            node1.syncWith(transport1.connect(node2.getId(), address2));
+            node1.store(1);
+            waitForMessages(node2, 1);
+
+            assertThat(node2.allMessages(), is(node1.allMessages()));
+        }
+    }
+
+    @Test
+    public void aNodeSlowToStoreWhatItReceivesDoesNotHoldUpOtherConnections() throws Exception {
+        final CountDownLatch appending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        TopicNode<Integer> node1 = new TopicNode<>(1);
+        TopicNode<Integer> slow = new TopicNode<>(2, new Synchroniser(), RetentionPolicy.retainAll(), new VolatileMessageStore<Integer>() {
+            @Override
+            public void append(Message<Integer> message) {
+                appending.countDown();
+                Uninterruptibles.awaitUninterruptibly(release);
+            }
+        });
+        TopicNode<Integer> fast = new TopicNode<>(3);
+        try (NioTransport transport1 = new NioTransport(codec); NioTransport transport2 = new NioTransport(codec)) {
+            node1.syncWith(transport1.connect(slow.getId(), transport2.listen(localhost(0), slow)));
+            node1.syncWith(transport1.connect(fast.getId(), transport2.listen(localhost(0), fast)));
+
+            try {
+                node1.store(1);
+                assertThat(appending.await(5, TimeUnit.SECONDS), is(true));
+                node1.store(2);
+
+                waitForMessages(fast, 2);
+                for (int i = 3; i <= 200; i++) {
+                    node1.store(i);
+                }
+            } finally {
+                release.countDown();
+            }
+            waitForMessages(slow, 200);
+            waitForMessages(fast, 200);
+        }
+    }
+
+    private InetSocketAddress localhost(int port) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    private int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private void waitForMessages(TopicNode<Integer> node, int count) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        while (node.allMessages().size() < count) {
+            assertThat(stopwatch.elapsed(TimeUnit.SECONDS), lessThan(10L));
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static uk.org.lidalia.distributedtopic.LatencyDistributions.uniform;
+
+public class PartitionedTopicTest {
+
+    @Test
+    public void eachKeyIsInTheSamePartitionOnEveryHost() {
+        Simulation simulation = new Simulation(1);
+        TopicHost host1 = host(1, simulation);
+        TopicHost host2 = host(2, simulation);
+        host1.syncWith(host2);
+        host2.syncWith(host1);
+        host1.start();
+        host2.start();
+        final PartitionedTopic<String, String> topic1 = host1.partitioned("orders", 4);
+        final PartitionedTopic<String, String> topic2 = host2.partitioned("orders", 4);
+
+        for (int i = 0; i < 40; i++) {
+            topic1.store("key" + (i % 8), "from1-" + i);
+            topic2.store("key" + (i % 8), "from2-" + i);
+        }
+        boolean converged = simulation.runUntil(new Supplier<Boolean>() {
+            @Override
+            public Boolean get() {
+                return consistentCount(topic1) == 80 && consistentCount(topic2) == 80;
+            }
+        }, Duration.standardSeconds(10));
+
+        assertThat(converged, is(true));
+        for (int partition = 0; partition < 4; partition++) {
+            assertThat(topic2.partition(partition).consistentMessages(), is(topic1.partition(partition).consistentMessages()));
+        }
+        for (int key = 0; key < 8; key++) {
+            assertThat(topic1.partitionFor("key" + key).consistentMessages(), is(topic2.partitionFor("key" + key).consistentMessages()));
+        }
+        assertThat(host1.topics(), is(ImmutableSortedSet.of("orders/0", "orders/1", "orders/2", "orders/3")));
+    }
+
+    @Test
+    public void partitionsAreConsumedInParallelInOrderForEachKey() {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try (TopicHost producerHost = new TopicHost(1, 2); TopicHost consumerHost = new TopicHost(2, 2)) {
+            producerHost.syncWith(consumerHost);
+            consumerHost.syncWith(producerHost);
+            producerHost.start();
+            consumerHost.start();
+            PartitionedTopic<Integer, Integer> producer = producerHost.partitioned("values", 8);
+            PartitionedTopic<Integer, Integer> consumer = consumerHost.partitioned("values", 8);
+
+            final ConcurrentMap<Integer, List<Integer>> receivedByKey = new ConcurrentHashMap<>();
+            final AtomicInteger received = new AtomicInteger();
+            final AtomicReference<Throwable> failure = new AtomicReference<>();
+            final AtomicBoolean overlapped = new AtomicBoolean(false);
+            consumer.subscribe(new Supplier<Subscriber<Integer>>() {
+                @Override
+                public Subscriber<Integer> get() {
+                    return new Subscriber<Integer>() {
+
+                        private final AtomicBoolean busy = new AtomicBoolean(false);
+
+                        @Override
+                        public void onSubscribe(Subscription subscription) {
+                            subscription.request(Long.MAX_VALUE);
+                        }
+
+                        @Override
+                        public void onNext(Message<Integer> message) {
+                            if (busy.getAndSet(true)) {
+                                overlapped.set(true);
+                            }
+                            final int value = message.get();
+                            receivedByKey.putIfAbsent(value % 20, new ArrayList<Integer>());
+                            receivedByKey.get(value % 20).add(value);
+                            received.incrementAndGet();
+                            busy.set(false);
+                        }
+
+                        @Override
+                        public void onError(Throwable error) {
+                            failure.compareAndSet(null, error);
+                        }
+                    };
+                }
+            }, pool);
+
+            for (int i = 0; i < 1000; i++) {
+                producer.store(i % 20, i);
+            }
+            Stopwatch waited = Stopwatch.createStarted();
+            while (received.get() < 1000 && failure.get() == null) {
+                assertThat(waited.elapsed(TimeUnit.SECONDS), lessThan(10L));
+                Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+            }
+
+            assertThat(failure.get(), is(nullValue()));
+
+            assertThat(overlapped.get(), is(false));
+            for (int key = 0; key < 20; key++) {
+                List<Integer> values = receivedByKey.get(key);
+                assertThat(values.size(), is(50));
+                for (int i = 0; i < values.size(); i++) {
+                    assertThat(values.get(i), is(key + i * 20));
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private int consistentCount(PartitionedTopic<?, ?> topic) {
+        int count = 0;
+        for (TopicNode<?> partition : topic.partitions()) {
+            count += partition.consistentMessages().size();
+        }
+        return count;
+    }
+
+    private TopicHost host(int id, Simulation simulation) {
+        SimulatedLink link = new SimulatedLink(uniform(Duration.millis(10), Duration.millis(50), simulation.random()));
+        return new TopicHost(id, 1, Duration.ZERO, link, simulation, simulation.executor(), new Function<String, MetricRegistry>() {
+            @Override
+            public MetricRegistry apply(String topic) {
+                return new InMemoryMetricRegistry();
+            }
+        });
+    }
+}
@@ -0,0 +1,22 @@
+package uk.org.lidalia.distributedtopic;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+
+import static com.google.common.collect.FluentIterable.from;
+
+final class Payloads {
+
+    private Payloads() {
+        throw new UnsupportedOperationException("Not instantiable.");
+    }
+
+    static ImmutableList<Integer> payloads(ImmutableList<Message<Integer>> messages) {
+        return from(messages).transform(new Function<Message<Integer>, Integer>() {
+            @Override
+            public Integer apply(Message<Integer> message) {
+                return message.get();
+            }
+        }).toList();
+    }
+}
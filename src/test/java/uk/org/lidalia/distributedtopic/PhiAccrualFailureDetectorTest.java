@@ -0,0 +1,61 @@
+package uk.org.lidalia.distributedtopic;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+public class PhiAccrualFailureDetectorTest {
+
+    private final NodeId node = new NodeId(1);
+
+    @Test
+    public void suspicionRisesWithSilenceAndFallsOnHearingFromTheNode() {
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(8, 10, Duration.millis(1));
+        for (long now = 0; now <= 1000; now += 100) {
+            detector.heartbeat(node, now);
+        }
+
+        assertThat(detector.phi(node, 1000), is(0.0));
+        assertThat(detector.phi(node, 1100), is(Math.log10(Math.E)));
+        assertThat(detector.isSuspected(node, 2800), is(false));
+        assertThat(detector.isSuspected(node, 3000), is(true));
+
+        detector.heartbeat(node, 3000);
+
+        assertThat(detector.isSuspected(node, 3000), is(false));
+    }
+
+    @Test
+    public void aBurstOfMessagesDoesNotLowerTheMeanIntervalBelowTheMinimum() {
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(8, 10, Duration.millis(500));
+        for (long now = 0; now < 10; now++) {
+            detector.heartbeat(node, now);
+        }
+
+        assertThat(detector.isSuspected(node, 1000), is(false));
+        assertThat(detector.phi(node, 20000), greaterThan(8.0));
+    }
+
+    @Test
+    public void aNodeHeardFromOnceOrNotAtAllIsNotSuspected() {
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(8);
+        detector.heartbeat(node, -500);
+
+        assertThat(detector.phi(node, 100000), is(0.0));
+        assertThat(detector.phi(new NodeId(2), 100000), is(0.0));
+    }
+
+    @Test
+    public void aForgottenNodeIsNoLongerSuspected() {
+        PhiAccrualFailureDetector detector = new PhiAccrualFailureDetector(8);
+        detector.heartbeat(node, 0);
+        detector.heartbeat(node, 1000);
+
+        detector.forget(node);
+
+        assertThat(detector.isSuspected(node, 100000), is(false));
+    }
+}
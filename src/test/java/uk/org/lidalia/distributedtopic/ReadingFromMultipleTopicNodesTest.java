@@ -36,7 +36,7 @@ public class ReadingFromMultipleTopicNodesTest {
         final AtomicInteger dataToStore = new AtomicInteger(0);
 
         final int numberOfNodes = 9;
-        final List<TopicNode> nodes = nodes(numberOfNodes);
+        final List<TopicNode<Integer>> nodes = nodes(numberOfNodes);
 
         final CountDownLatch allProducersReady = new CountDownLatch(1);
 
@@ -92,19 +92,19 @@ public class ReadingFromMultipleTopicNodesTest {
         }
     }
 
-    private List<TopicNode> nodes(int numberOfNodes) {
-        List<TopicNode> nodes = new ArrayList<>();
+    private List<TopicNode<Integer>> nodes(int numberOfNodes) {
+        List<TopicNode<Integer>> nodes = new ArrayList<>();
         for (int i = 1; i <= numberOfNodes; i++) {
-            nodes.add(new TopicNode(i));
+            nodes.add(new TopicNode<Integer>(i));
         }
-        for (TopicNode node : nodes) {
-            for (TopicNode otherNode : nodes) {
+        for (TopicNode<Integer> node : nodes) {
+            for (TopicNode<Integer> otherNode : nodes) {
                 if (otherNode != node) {
                     node.syncWith(otherNode);
                 }
             }
         }
-        for (TopicNode node : nodes) {
+        for (TopicNode<Integer> node : nodes) {
             node.start();
         }
         return ImmutableList.copyOf(nodes);
@@ -120,13 +120,13 @@ public class ReadingFromMultipleTopicNodesTest {
 
     private static class FeedConsumer {
         private final Random random = new Random();
-        private final List<TopicNode> nodes;
+        private final List<TopicNode<Integer>> nodes;
         private volatile Optional<SingleNodeVectorClock> latestRead = Optional.absent();
         private final List<Integer> consumed = new CopyOnWriteArrayList<>();
 
         private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
 
-        private FeedConsumer(List<TopicNode> nodes) {
+        private FeedConsumer(List<TopicNode<Integer>> nodes) {
             this.nodes = nodes;
         }
 
@@ -134,8 +134,8 @@ public class ReadingFromMultipleTopicNodesTest {
             executor.scheduleAtFixedRate(new Runnable() {
                 @Override
                 public void run() {
-                    final TopicNode node = nodes.get(random.nextInt(nodes.size()));
-                    final FluentIterable<Message> messages;
+                    final TopicNode<Integer> node = nodes.get(random.nextInt(nodes.size()));
+                    final FluentIterable<Message<Integer>> messages;
                     if (latestRead.isPresent()) {
                         System.out.println("Getting with latestRead="+latestRead);
                         messages = from(node.consistentMessagesSince(latestRead.get()));
@@ -143,15 +143,15 @@ public class ReadingFromMultipleTopicNodesTest {
                         System.out.println("Getting no latestRead");
                         messages = from(node.consistentMessages());
                     }
-                    consumed.addAll(messages.transform(new Function<Message, Integer>() {
+                    consumed.addAll(messages.transform(new Function<Message<Integer>, Integer>() {
                         @Override
-                        public Integer apply(Message input) {
+                        public Integer apply(Message<Integer> input) {
                             return (Integer) input.get();
                         }
                     }).toList());
-                    latestRead = messages.last().transform(new Function<Message, SingleNodeVectorClock>() {
+                    latestRead = messages.last().transform(new Function<Message<Integer>, SingleNodeVectorClock>() {
                         @Override
-                        public SingleNodeVectorClock apply(Message input) {
+                        public SingleNodeVectorClock apply(Message<Integer> input) {
                             return input.getVectorClock();
                         }
                     }).or(latestRead);
@@ -0,0 +1,85 @@
+package uk.org.lidalia.distributedtopic;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static uk.org.lidalia.distributedtopic.Payloads.payloads;
+
+public class RetentionPolicyTest {
+
+    @Test
+    public void retainAllNeverCompacts() {
+        TopicNode<Integer> node = nodeStoring(5, RetentionPolicy.retainAll());
+        node.cursor().poll();
+
+        assertThat(node.compact(), is(0));
+        assertThat(node.retainedMessages(), is(5L));
+    }
+
+    @Test
+    public void untilConsumedDiscardsEverythingRead() {
+        TopicNode<Integer> node = nodeStoring(5, RetentionPolicy.untilConsumed());
+        node.cursor().poll();
+
+        assertThat(node.compact(), is(4));
+        assertThat(node.retainedMessages(), is(1L));
+        assertThat(node.allMessages().size(), is(1));
+    }
+
+    @Test
+    public void retainingAtMostKeepsTheNewest() {
+        TopicNode<Integer> node = nodeStoring(5, RetentionPolicy.untilConsumed().retainingAtMost(2));
+        node.cursor().poll();
+
+        assertThat(node.compact(), is(3));
+        assertThat(node.retainedMessages(), is(2L));
+    }
+
+    @Test
+    public void unreadCursorHoldsBackCompaction() {
+        TopicNode<Integer> node = nodeStoring(5, RetentionPolicy.untilConsumed());
+        Cursor<Integer> reader = node.cursor();
+        Cursor<Integer> idle = node.cursor();
+        reader.poll();
+
+        assertThat(node.compact(), is(0));
+
+        idle.close();
+        assertThat(node.compact(), is(4));
+    }
+
+    @Test
+    public void untilConsumedWithNoCursorsDiscardsEverythingConsistentBeforeALateReaderArrives() {
+        TopicNode<Integer> node = nodeStoring(5, RetentionPolicy.untilConsumed());
+
+        assertThat(node.compact(), is(4));
+
+        node.store(6);
+        assertThat(payloads(node.cursor().poll()), is(ImmutableList.of(5)));
+    }
+
+    @Test
+    public void aLateCopyOfACompactedMessageIsNotTakenInAgain() {
+        TopicNode<Integer> origin = nodeStoring(3, RetentionPolicy.retainAll());
+        TopicNode<Integer> node = new TopicNode<>(2, new Synchroniser(), RetentionPolicy.untilConsumed());
+        node.sync(origin.allMessages());
+        node.cursor().poll();
+        assertThat(node.compact(), is(3));
+
+        node.sync(origin.allMessages());
+
+        assertThat(node.retainedMessages(), is(0L));
+        assertThat(node.allMessages().isEmpty(), is(true));
+    }
+
+    private TopicNode<Integer> nodeStoring(int count, RetentionPolicy retentionPolicy) {
+        TopicNode<Integer> node = new TopicNode<>(1, new Synchroniser(), retentionPolicy);
+        for (int i = 1; i <= count; i++) {
+            node.store(i);
+        }
+        return node;
+    }
+}
@@ -0,0 +1,157 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+
+import static java.nio.file.StandardOpenOption.APPEND;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static uk.org.lidalia.distributedtopic.Payloads.payloads;
+
+public class SegmentedFileMessageStoreTest {
+
+    @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final MessageCodec<Integer> codec = new MessageCodec<>(new JavaPayloadSerialiser<Integer>());
+
+    @Test
+    public void appendedMessagesAreRecoveredAfterReopening() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        ImmutableList<Message<Integer>> messages = messagesFrom(new NodeId(1), 3);
+
+        try (SegmentedFileMessageStore<Integer> store = new SegmentedFileMessageStore<>(directory, codec)) {
+            for (Message<Integer> message : messages) {
+                store.append(message);
+            }
+        }
+
+        try (SegmentedFileMessageStore<Integer> store = new SegmentedFileMessageStore<>(directory, codec)) {
+            assertThat(store.recover(), is(messages));
+            assertThat(payloads(store.recover()), is(ImmutableList.of(1, 2, 3)));
+        }
+    }
+
+    @Test
+    public void latestClocksAreReadFromTheTail() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        SingleNodeVectorClock node1 = new SingleNodeVectorClock(new NodeId(1)).add(new NodeId(2));
+        SingleNodeVectorClock node2 = new SingleNodeVectorClock(new NodeId(2)).add(new NodeId(1));
+
+        try (SegmentedFileMessageStore<Integer> store = new SegmentedFileMessageStore<>(directory, codec)) {
+            for (int i = 0; i < 5; i++) {
+                node1 = node1.next();
+                store.append(new Message<>(i, node1));
+                node2 = node2.update(node1).next();
+                store.append(new Message<>(i, node2));
+            }
+
+            assertThat(store.latestClocks().get(new NodeId(1)), is(node1));
+            assertThat(store.latestClocks().get(new NodeId(2)), is(node2));
+        }
+    }
+
+    @Test
+    public void tornRecordAtTheTailIsTruncated() throws Exception {
+        File directory = temporaryFolder.newFolder();
+        ImmutableList<Message<Integer>> messages = messagesFrom(new NodeId(1), 2);
+        try (SegmentedFileMessageStore<Integer> store = new SegmentedFileMessageStore<>(directory.toPath(), codec)) {
+            for (Message<Integer> message : messages) {
+                store.append(message);
+            }
+        }
+        File segment = directory.listFiles()[0];
+        try (FileChannel channel = FileChannel.open(segment.toPath(), APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 0, 0, 0, 100, 1, 2, 3 }));
+        }
+
+        try (SegmentedFileMessageStore<Integer> store = new SegmentedFileMessageStore<>(directory.toPath(), codec)) {
+            assertThat(store.recover(), is(messages));
+        }
+    }
+
+    @Test
+    public void rollsSegmentsAndReadsFromASequence() throws Exception {
+        File directory = temporaryFolder.newFolder();
+        try (SegmentedFileMessageStore<Integer> store = new SegmentedFileMessageStore<>(directory.toPath(), codec, 512, 128)) {
+            for (Message<Integer> message : messagesFrom(new NodeId(1), 20)) {
+                store.append(message);
+            }
+
+            assertThat(directory.listFiles().length, greaterThan(1));
+            assertThat(payloads(store.readFrom(new NodeId(1), 16)), is(ImmutableList.of(16, 17, 18, 19, 20)));
+        }
+    }
+
+    @Test
+    public void discardedMessagesAreNotRecoveredFromASegmentStillInUse() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        ImmutableList<Message<Integer>> messages = messagesFrom(new NodeId(1), 3);
+        try (SegmentedFileMessageStore<Integer> store = new SegmentedFileMessageStore<>(directory, codec)) {
+            for (Message<Integer> message : messages) {
+                store.append(message);
+            }
+            store.discardUpTo(messages.get(1).getVectorClock());
+
+            assertThat(payloads(store.recover()), is(ImmutableList.of(3)));
+        }
+
+        try (SegmentedFileMessageStore<Integer> store = new SegmentedFileMessageStore<>(directory, codec)) {
+            assertThat(payloads(store.recover()), is(ImmutableList.of(3)));
+            assertThat(payloads(store.readFrom(new NodeId(1), 1)), is(ImmutableList.of(3)));
+        }
+    }
+
+    @Test
+    public void topicNodeRecoversMessagesAndClock() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        SegmentedFileMessageStore<Integer> store = new SegmentedFileMessageStore<>(directory, codec);
+        TopicNode<Integer> node = new TopicNode<>(1, new Synchroniser(), RetentionPolicy.retainAll(), store);
+        node.store(1);
+        node.store(2);
+        SingleNodeVectorClock lastClock = node.vectorClock().getLocalClock();
+        store.close();
+
+        TopicNode<Integer> restarted = new TopicNode<>(1, new Synchroniser(), RetentionPolicy.retainAll(), new SegmentedFileMessageStore<Integer>(directory, codec));
+        assertThat(restarted.vectorClock().getLocalClock(), is(lastClock));
+        restarted.store(3);
+        assertThat(payloads(restarted.allMessages()), is(ImmutableList.of(1, 2, 3)));
+    }
+
+    @Test
+    public void heartbeatsAreNotStoredButTheirSequencesAreNotReused() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        SegmentedFileMessageStore<Integer> store = new SegmentedFileMessageStore<>(directory, codec);
+        TopicNode<Integer> node = new TopicNode<>(1, new Synchroniser(), RetentionPolicy.retainAll(), store, new InMemoryMetricRegistry());
+        node.store(1);
+        node.sync(new Message<>(2, new SingleNodeVectorClock(new NodeId(2)).add(new NodeId(1)).next()));
+        node.heartbeatIfDue();
+        int heartbeatSequence = node.vectorClock().getLocalClock().sequenceForDefiningNode();
+        store.close();
+
+        SegmentedFileMessageStore<Integer> reopened = new SegmentedFileMessageStore<>(directory, codec);
+        assertThat(reopened.latestClocks().get(new NodeId(1)).sequenceForDefiningNode(), lessThan(heartbeatSequence));
+        TopicNode<Integer> restarted = new TopicNode<>(1, new Synchroniser(), RetentionPolicy.retainAll(), reopened, new InMemoryMetricRegistry());
+        assertThat(restarted.vectorClock().getLocalClock().sequenceForDefiningNode(), greaterThan(heartbeatSequence));
+        reopened.close();
+    }
+
+    private ImmutableList<Message<Integer>> messagesFrom(NodeId nodeId, int count) {
+        ImmutableList.Builder<Message<Integer>> messages = ImmutableList.builder();
+        SingleNodeVectorClock clock = new SingleNodeVectorClock(nodeId);
+        for (int i = 1; i <= count; i++) {
+            clock = clock.next();
+            messages.add(new Message<>(i, clock));
+        }
+        return messages.build();
+    }
+}
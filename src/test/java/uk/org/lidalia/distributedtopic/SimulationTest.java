@@ -0,0 +1,123 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.joda.time.Instant;
+import org.junit.Test;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static uk.org.lidalia.distributedtopic.LatencyDistributions.uniform;
+
+public class SimulationTest {
+
+    @Test
+    public void runsAreRepeatable() {
+        Run first = run(42, 5, 100, Disseminations.fullMesh());
+        Run second = run(42, 5, 100, Disseminations.fullMesh());
+        Run otherSeed = run(43, 5, 100, Disseminations.fullMesh());
+
+        assertThat(first.converged, is(true));
+        assertThat(second.messages, is(first.messages));
+        assertThat(second.convergedAt, is(first.convergedAt));
+        assertThat(otherSeed.convergedAt, not(first.convergedAt));
+    }
+
+    @Test
+    public void largeClusterConverges() {
+        Run run = run(7, 20, 100, Disseminations.tree(4));
+
+        assertThat(run.converged, is(true));
+        assertThat(run.messages.size(), is(100));
+    }
+
+    @Test
+    public void tasksRunInTimeOrder() {
+        Simulation simulation = new Simulation(1);
+        final List<Integer> order = new ArrayList<>();
+        simulation.executor().schedule(record(order, 2), 20, TimeUnit.MILLISECONDS);
+        simulation.executor().schedule(record(order, 1), 10, TimeUnit.MILLISECONDS);
+        simulation.executor().schedule(record(order, 3), 20, TimeUnit.MILLISECONDS);
+
+        simulation.runFor(Duration.millis(15));
+        assertThat(order, is((List<Integer>) ImmutableList.of(1)));
+        assertThat(simulation.now(), is(new Instant(15)));
+
+        simulation.runFor(Duration.millis(15));
+        assertThat(order, is((List<Integer>) ImmutableList.of(1, 2, 3)));
+    }
+
+    private static Runnable record(final List<Integer> order, final int value) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(value);
+            }
+        };
+    }
+
+    private static Run run(long seed, int nodeCount, final int messageCount, Dissemination dissemination) {
+        final Simulation simulation = new Simulation(seed);
+        final SimulatedLink link = new SimulatedLink(uniform(Duration.millis(10), Duration.millis(100), simulation.random()));
+        final List<TopicNode<Integer>> nodes = new ArrayList<>();
+        for (int i = 1; i <= nodeCount; i++) {
+            nodes.add(simulation.node(i, simulation.synchroniser(link, dissemination)));
+        }
+        for (TopicNode<Integer> node : nodes) {
+            for (TopicNode<Integer> other : nodes) {
+                if (node != other) {
+                    node.syncWith(other);
+                }
+            }
+            node.start();
+        }
+        for (int i = 0; i < messageCount; i++) {
+            final TopicNode<Integer> producer = nodes.get(simulation.random().nextInt(nodeCount));
+            final int value = i;
+            simulation.executor().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    producer.store(value);
+                }
+            }, simulation.random().nextInt(1000), TimeUnit.MILLISECONDS);
+        }
+
+        final List<Cursor<Integer>> cursors = new ArrayList<>();
+        final int[] read = new int[nodeCount];
+        for (TopicNode<Integer> node : nodes) {
+            cursors.add(node.cursor());
+        }
+        final boolean converged = simulation.runUntil(new Supplier<Boolean>() {
+            @Override
+            public Boolean get() {
+                boolean all = true;
+                for (int i = 0; i < cursors.size(); i++) {
+                    read[i] += cursors.get(i).poll().size();
+                    all &= read[i] == messageCount;
+                }
+                return all;
+            }
+        }, Duration.standardMinutes(1));
+        return new Run(converged, simulation.now(), nodes.get(0).consistentMessages());
+    }
+
+    private static final class Run {
+
+        private final boolean converged;
+        private final Instant convergedAt;
+        private final List<Message<Integer>> messages;
+
+        private Run(boolean converged, Instant convergedAt, List<Message<Integer>> messages) {
+            this.converged = converged;
+            this.convergedAt = convergedAt;
+            this.messages = messages;
+        }
+    }
+}
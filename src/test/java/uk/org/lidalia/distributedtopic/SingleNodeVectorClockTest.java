@@ -1,5 +1,9 @@
 package uk.org.lidalia.distributedtopic;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.ImmutableSortedSet;
 
@@ -27,6 +31,19 @@ public class SingleNodeVectorClockTest {
         assertThat(ordered.last(), is(clock2));
     }
 
+    @Test
+    public void sameSequencesFromDifferentNodesAreOrderedByNodeIdEitherWayRound() {
+        ImmutableSortedMap<NodeId, Integer> sequences = ImmutableSortedMap.<NodeId, Integer>naturalOrder()
+                .put(new NodeId(1), 1)
+                .put(new NodeId(2), 1)
+                .build();
+        SingleNodeVectorClock clock1 = new SingleNodeVectorClock(new NodeId(1), sequences);
+        SingleNodeVectorClock clock2 = new SingleNodeVectorClock(new NodeId(2), sequences);
+
+        assertThat(clock1.compareTo(clock2) < 0, is(true));
+        assertThat(clock2.compareTo(clock1) > 0, is(true));
+    }
+
     @Test
     public void orderingOneBeforeOther() {
         SingleNodeVectorClock clock1 = new SingleNodeVectorClock(new NodeId(1), ImmutableSortedMap.<NodeId, Integer>naturalOrder()
@@ -99,4 +116,78 @@ public class SingleNodeVectorClockTest {
         assertThat(ordered.first(), is(clock1));
         assertThat(ordered.last(), is(clock2));
     }
+
+    @Test
+    public void updateWithUnknownNodeAddsItInOrder() {
+        SingleNodeVectorClock clock = new SingleNodeVectorClock(new NodeId(2)).update(new NodeId(3), 4).update(new NodeId(1), 5);
+
+        assertThat(clock.getState(), is(ImmutableSortedMap.<NodeId, Integer>naturalOrder()
+                .put(new NodeId(1), 5)
+                .put(new NodeId(2), 2)
+                .put(new NodeId(3), 4)
+                .build()));
+        assertThat(clock.sequenceForDefiningNode(), is(2));
+    }
+
+    @Test
+    public void equalWhenBuiltDifferently() {
+        SingleNodeVectorClock clock1 = new SingleNodeVectorClock(new NodeId(1)).add(new NodeId(2)).next();
+        SingleNodeVectorClock clock2 = new SingleNodeVectorClock(new NodeId(1), ImmutableSortedMap.<NodeId, Integer>naturalOrder()
+                .put(new NodeId(1), 2)
+                .put(new NodeId(2), 0)
+                .build());
+
+        assertThat(clock1, is(clock2));
+        assertThat(clock1.hashCode(), is(clock2.hashCode()));
+        assertThat(clock1.compareTo(clock2), is(0));
+    }
+
+    @Test
+    public void clocksMadeFromAnotherHoldOnlyWhatChangedUntilAQuarterHas() {
+        SingleNodeVectorClock full = new SingleNodeVectorClock(new NodeId(1));
+        for (int i = 2; i <= 20; i++) {
+            full = full.add(new NodeId(i));
+        }
+        Map<NodeId, Integer> expected = new HashMap<>(full.getState());
+        expected.put(new NodeId(1), 22);
+        expected.put(new NodeId(5), 3);
+
+        SingleNodeVectorClock changed = full.next().update(new NodeId(5), 3).next();
+        SingleNodeVectorClock built = new SingleNodeVectorClock(new NodeId(1), ImmutableSortedMap.copyOf(expected));
+
+        assertThat(changed.estimatedSize() < full.estimatedSize(), is(true));
+        assertThat(changed, is(built));
+        assertThat(changed.hashCode(), is(built.hashCode()));
+        assertThat(changed.compareTo(built), is(0));
+        assertThat(changed.getState(), is(built.getState()));
+        assertThat(changed.isAfter(full), is(true));
+
+        for (int i = 6; i <= 9; i++) {
+            changed = changed.update(new NodeId(i), 1);
+        }
+
+        assertThat(changed.estimatedSize(), is(full.estimatedSize()));
+        assertThat(changed.sequenceFor(new NodeId(9)).get(), is(1));
+        assertThat(changed.sequenceForDefiningNode(), is(full.sequenceForDefiningNode() + 7));
+    }
+
+    @Test
+    public void concurrentClocksOrderBySumThenNodeByNode() {
+        SingleNodeVectorClock lowerSum = clock(1, 3, 0);
+        SingleNodeVectorClock equalSumFirst = clock(2, 1, 3);
+        SingleNodeVectorClock equalSumSecond = clock(1, 2, 2);
+
+        ImmutableSortedSet<SingleNodeVectorClock> ordered = ImmutableSortedSet.of(equalSumSecond, lowerSum, equalSumFirst);
+
+        assertThat(ordered.asList(), is(ImmutableList.of(lowerSum, equalSumFirst, equalSumSecond)));
+        assertThat(equalSumFirst.compareTo(equalSumSecond) < 0, is(true));
+        assertThat(equalSumSecond.compareTo(equalSumFirst) > 0, is(true));
+    }
+
+    private static SingleNodeVectorClock clock(int nodeId, int sequence1, int sequence2) {
+        return new SingleNodeVectorClock(new NodeId(nodeId), ImmutableSortedMap.<NodeId, Integer>naturalOrder()
+                .put(new NodeId(1), sequence1)
+                .put(new NodeId(2), sequence2)
+                .build());
+    }
 }
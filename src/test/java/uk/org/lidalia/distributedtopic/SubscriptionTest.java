@@ -0,0 +1,191 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static uk.org.lidalia.distributedtopic.LatencyDistributions.uniform;
+
+public class SubscriptionTest {
+
+    private final Executor sameThread = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void sendsOnlyAsManyMessagesAsRequested() {
+        TopicNode<Integer> node = new TopicNode<>(1);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        node.subscribe(subscriber, sameThread);
+
+        subscriber.subscription.request(2);
+        for (int i = 1; i <= 5; i++) {
+            node.store(i);
+        }
+        assertThat(subscriber.received, is((List<Integer>) ImmutableList.of(1, 2)));
+
+        subscriber.subscription.request(10);
+        assertThat(subscriber.received, is((List<Integer>) ImmutableList.of(1, 2, 3, 4)));
+
+        node.store(6);
+        assertThat(subscriber.received, is((List<Integer>) ImmutableList.of(1, 2, 3, 4, 5)));
+    }
+
+    @Test
+    public void subscribersAreIndependent() {
+        TopicNode<Integer> node = new TopicNode<>(1);
+        node.store(1);
+        node.store(2);
+        RecordingSubscriber eager = new RecordingSubscriber();
+        RecordingSubscriber idle = new RecordingSubscriber();
+        node.subscribe(eager, sameThread);
+        node.subscribe(idle, sameThread);
+
+        eager.subscription.request(Long.MAX_VALUE);
+        node.store(3);
+
+        assertThat(eager.received, is((List<Integer>) ImmutableList.of(1, 2)));
+        assertThat(idle.received, is((List<Integer>) ImmutableList.<Integer>of()));
+    }
+
+    @Test
+    public void cancelledSubscriptionsReceiveNothingMore() {
+        TopicNode<Integer> node = new TopicNode<>(1);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        node.subscribe(subscriber, sameThread);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        node.store(1);
+        node.store(2);
+
+        subscriber.subscription.cancel();
+        node.store(3);
+
+        assertThat(subscriber.received, is((List<Integer>) ImmutableList.of(1)));
+    }
+
+    @Test
+    public void aFailingSubscriberIsToldAndCancelled() {
+        TopicNode<Integer> node = new TopicNode<>(1);
+        final IllegalStateException failure = new IllegalStateException("failed");
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(Message<Integer> message) {
+                super.onNext(message);
+                throw failure;
+            }
+        };
+        node.subscribe(subscriber, sameThread);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        node.store(1);
+        node.store(2);
+        node.store(3);
+
+        assertThat(subscriber.received, is((List<Integer>) ImmutableList.of(1)));
+        assertThat(subscriber.error, is((Throwable) failure));
+    }
+
+    @Test
+    public void nothingIsSentUntilOnSubscribeHasReturned() throws Exception {
+        TopicNode<Integer> node = new TopicNode<>(1);
+        node.store(1);
+        node.store(2);
+        final CountDownLatch sent = new CountDownLatch(1);
+        final List<Boolean> subscribedWhenSent = new ArrayList<>();
+        ExecutorService deliveryExecutor = Executors.newSingleThreadExecutor();
+        try {
+            node.subscribe(new RecordingSubscriber() {
+                private volatile boolean subscribed = false;
+
+                @Override
+                public void onSubscribe(Subscription subscription) {
+                    subscription.request(1);
+                    Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+                    subscribed = true;
+                }
+
+                @Override
+                public void onNext(Message<Integer> message) {
+                    subscribedWhenSent.add(subscribed);
+                    sent.countDown();
+                }
+            }, deliveryExecutor);
+
+            assertThat(sent.await(5, TimeUnit.SECONDS), is(true));
+            assertThat(subscribedWhenSent, is((List<Boolean>) ImmutableList.of(true)));
+        } finally {
+            deliveryExecutor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void subscribersAcrossAClusterReceiveEveryMessageInTheSameOrder() {
+        Simulation simulation = new Simulation(1);
+        SimulatedLink link = new SimulatedLink(uniform(Duration.millis(10), Duration.millis(50), simulation.random()));
+        List<TopicNode<Integer>> nodes = new ArrayList<>();
+        List<RecordingSubscriber> subscribers = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            TopicNode<Integer> node = simulation.node(i, simulation.synchroniser(link, Disseminations.fullMesh()));
+            RecordingSubscriber subscriber = new RecordingSubscriber();
+            node.subscribe(subscriber);
+            subscriber.subscription.request(Long.MAX_VALUE);
+            nodes.add(node);
+            subscribers.add(subscriber);
+        }
+        for (TopicNode<Integer> node : nodes) {
+            for (TopicNode<Integer> other : nodes) {
+                if (node != other) {
+                    node.syncWith(other);
+                }
+            }
+            node.start();
+        }
+        for (int i = 0; i < 30; i++) {
+            nodes.get(i % 3).store(i);
+            simulation.runFor(Duration.millis(5));
+        }
+
+        simulation.runFor(Duration.standardSeconds(5));
+
+        assertThat(subscribers.get(0).received.size(), is(30));
+        assertThat(subscribers.get(1).received, is(subscribers.get(0).received));
+        assertThat(subscribers.get(2).received, is(subscribers.get(0).received));
+    }
+
+    private static class RecordingSubscriber implements Subscriber<Integer> {
+
+        private Subscription subscription;
+        private final List<Integer> received = new ArrayList<>();
+        private Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Message<Integer> message) {
+            received.add(message.get());
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+    }
+}
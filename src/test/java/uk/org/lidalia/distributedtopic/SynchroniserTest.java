@@ -0,0 +1,201 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static uk.org.lidalia.distributedtopic.LatencyDistributions.fixed;
+
+public class SynchroniserTest {
+
+    @Test
+    public void queueDepthIsTrackedPerPeer() {
+        Synchroniser synchroniser = new Synchroniser();
+        synchroniser.syncWith(new TopicNode<Integer>(2));
+        synchroniser.syncWith(new TopicNode<Integer>(3));
+
+        assertThat(synchroniser.queues().keySet(), is(ImmutableSet.of(new NodeId(2), new NodeId(3))));
+        assertThat(synchroniser.queue(new NodeId(4)), is(0));
+    }
+
+    @Test
+    public void closingStopsTheThreadsItMadeAndOnlyBatchingLingers() {
+        int lingering = threadsNamed("synchroniser-linger-");
+        Synchroniser unbatched = new Synchroniser();
+        unbatched.syncWith(new TopicNode<Integer>(902));
+        Synchroniser batched = new Synchroniser(5, Duration.millis(50));
+        batched.syncWith(new TopicNode<Integer>(903));
+
+        unbatched.synchronise(new Message<>(1, new SingleNodeVectorClock(new NodeId(901)).add(new NodeId(902))));
+        batched.synchronise(new Message<>(1, new SingleNodeVectorClock(new NodeId(901)).add(new NodeId(903))));
+        assertThat(threadsNamed("synchroniser-linger-"), is(lingering + 1));
+        assertThat(threadsNamed("synchroniser-902-"), is(1));
+
+        unbatched.close();
+        batched.close();
+        Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+
+        assertThat(unbatched.queues().isEmpty(), is(true));
+        assertThat(threadsNamed("synchroniser-linger-"), is(lingering));
+        assertThat(threadsNamed("synchroniser-902-") + threadsNamed("synchroniser-903-"), is(0));
+    }
+
+    @Test
+    public void removingAPeerStopsTheThreadItWasDeliveredOn() {
+        Synchroniser synchroniser = new Synchroniser();
+        synchroniser.syncWith(new TopicNode<Integer>(912));
+        synchroniser.synchronise(new Message<>(1, new SingleNodeVectorClock(new NodeId(911)).add(new NodeId(912))));
+        assertThat(threadsNamed("synchroniser-912-"), is(1));
+
+        synchroniser.remove(new NodeId(912));
+        Uninterruptibles.sleepUninterruptibly(100, TimeUnit.MILLISECONDS);
+
+        assertThat(synchroniser.queues().isEmpty(), is(true));
+        assertThat(threadsNamed("synchroniser-912-"), is(0));
+    }
+
+    private int threadsNamed(String prefix) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(prefix) && thread.isAlive()) {
+                assertThat(thread.isDaemon(), is(true));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void deliveriesAreInFlightConcurrently() {
+        TopicNode<Integer> node1 = new TopicNode<>(1, new Synchroniser(1, Duration.ZERO, new SimulatedLink(fixed(Duration.millis(200)))));
+        TopicNode<Integer> node2 = new TopicNode<>(2);
+        node1.syncWith(node2);
+        node2.syncWith(node1);
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (int i = 1; i <= 100; i++) {
+            node1.store(i);
+        }
+        waitForMessages(node2, 100);
+
+        assertThat(stopwatch.elapsed(TimeUnit.MILLISECONDS), lessThan(5000L));
+        assertThat(node2.allMessages(), is(node1.allMessages()));
+    }
+
+    @Test
+    public void bandwidthLimitsDeliveryRate() {
+        TopicNode<Integer> node1 = new TopicNode<>(1, new Synchroniser(1, Duration.ZERO, new SimulatedLink(fixed(Duration.millis(10)), 100)));
+        TopicNode<Integer> node2 = new TopicNode<>(2);
+        node1.syncWith(node2);
+        node2.syncWith(node1);
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        for (int i = 1; i <= 30; i++) {
+            node1.store(i);
+        }
+        waitForMessages(node2, 30);
+
+        assertThat(stopwatch.elapsed(TimeUnit.MILLISECONDS), greaterThan(250L));
+    }
+
+    @Test
+    public void aStalledPeerIsNotSentAHeartbeatEveryTick() {
+        Simulation simulation = new Simulation(1);
+        SimulatedLink link = new SimulatedLink(fixed(Duration.millis(5)));
+        TopicNode<Integer> node1 = simulation.node(1, simulation.synchroniser(link, Disseminations.fullMesh()));
+        TopicNode<Integer> node2 = simulation.node(2, simulation.synchroniser(link, Disseminations.fullMesh()));
+        StalledPeer stalled = new StalledPeer(new NodeId(3));
+        node1.syncWith(node2);
+        node1.syncWith(stalled);
+        node2.syncWith(node1);
+        node1.start();
+        node2.start();
+
+        for (int i = 0; i < 200; i++) {
+            node2.store(i);
+            simulation.runFor(Duration.millis(10));
+        }
+
+        assertThat(node1.allMessages().size(), greaterThan(100));
+        assertThat(stalled.queued(), lessThan(3));
+    }
+
+    @Test
+    public void targetsAreWorkedOutOncePerOriginUntilThePeersChange() {
+        final AtomicInteger asked = new AtomicInteger();
+        Synchroniser synchroniser = new Synchroniser(1, Duration.ZERO, SimulatedLink.defaultLink(), new Dissemination() {
+            @Override
+            public ImmutableList<NodeId> targets(NodeId self, NodeId origin, ImmutableSortedSet<NodeId> members) {
+                asked.incrementAndGet();
+                return Disseminations.fullMesh().targets(self, origin, members);
+            }
+        });
+        StalledPeer peer2 = new StalledPeer(new NodeId(2));
+        synchroniser.syncWith(peer2);
+        SingleNodeVectorClock clock = new SingleNodeVectorClock(new NodeId(1)).add(new NodeId(2)).add(new NodeId(3));
+
+        for (int i = 0; i < 10; i++) {
+            clock = clock.next();
+            synchroniser.synchronise(new Message<>(i, clock));
+        }
+        assertThat(asked.get(), is(1));
+
+        StalledPeer peer3 = new StalledPeer(new NodeId(3));
+        synchroniser.syncWith(peer3);
+        synchroniser.synchronise(new Message<>(10, clock.next()));
+
+        assertThat(asked.get(), is(2));
+        assertThat(peer2.queued(), is(11));
+        assertThat(peer3.queued(), is(1));
+    }
+
+    private void waitForMessages(TopicNode<Integer> node, int count) {
+        while (node.allMessages().size() < count) {
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * A peer that takes deliveries but never sends any of them.
+     */
+    private static class StalledPeer implements Peer {
+
+        private final NodeId id;
+        private int queued = 0;
+
+        private StalledPeer(NodeId id) {
+            this.id = id;
+        }
+
+        @Override
+        public NodeId getId() {
+            return id;
+        }
+
+        @Override
+        public synchronized void deliver(ImmutableList<Message<?>> messages) {
+            queued++;
+        }
+
+        @Override
+        public void requestMissing(SingleNodeVectorClock received) {
+        }
+
+        @Override
+        public synchronized int queued() {
+            return queued;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static uk.org.lidalia.distributedtopic.LatencyDistributions.uniform;
+
+public class TopicHostTest {
+
+    private final MessageCodec<Object> codec = new MessageCodec<>(new JavaPayloadSerialiser<Object>());
+
+    @Test
+    public void topicsAreSynchronisedSeparatelyBetweenHosts() {
+        Simulation simulation = new Simulation(1);
+        TopicHost host1 = host(1, simulation);
+        TopicHost host2 = host(2, simulation);
+        host1.syncWith(host2);
+        host2.syncWith(host1);
+        host1.start();
+        host2.start();
+
+        final TopicNode<Integer> a1 = host1.topic("a");
+        final TopicNode<Integer> b2 = host2.topic("b");
+        for (int i = 1; i <= 20; i++) {
+            a1.store(i);
+            b2.store(-i);
+        }
+        final TopicNode<Integer> a2 = host2.topic("a");
+        final TopicNode<Integer> b1 = host1.topic("b");
+
+        boolean converged = simulation.runUntil(new Supplier<Boolean>() {
+            @Override
+            public Boolean get() {
+                return a1.consistentMessages().size() == 20 && a2.consistentMessages().size() == 20
+                        && b1.consistentMessages().size() == 20 && b2.consistentMessages().size() == 20;
+            }
+        }, Duration.standardSeconds(10));
+
+        assertThat(converged, is(true));
+        assertThat(a2.consistentMessages(), is(a1.consistentMessages()));
+        assertThat(b1.consistentMessages(), is(b2.consistentMessages()));
+        assertThat(host1.topics(), is(ImmutableSortedSet.of("a", "b")));
+        assertThat(host2.topics(), is(ImmutableSortedSet.of("a", "b")));
+    }
+
+    @Test
+    public void aTopicAlreadyOnTheHostIsReturned() {
+        TopicHost host = host(1, new Simulation(1));
+
+        TopicNode<Integer> topic = host.topic("a");
+
+        assertThat(host.<Integer>topic("a") == topic, is(true));
+        assertThat(host.existingTopic("a").get() == (Object) topic, is(true));
+        assertThat(host.existingTopic("b").isPresent(), is(false));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void aTopicCannotBeCreatedTwice() {
+        TopicHost host = host(1, new Simulation(1));
+        host.topic("a");
+
+        host.topic("a", RetentionPolicy.retainAll(), new VolatileMessageStore<Integer>());
+    }
+
+    @Test
+    public void everyTopicSharesOneConnectionBetweenHosts() {
+        try (TopicHost host1 = new TopicHost(1, 2); TopicHost host2 = new TopicHost(2, 2);
+             NioTransport transport1 = new NioTransport(codec); NioTransport transport2 = new NioTransport(codec)) {
+            InetSocketAddress address1 = transport1.listen(localhost(), host1);
+            InetSocketAddress address2 = transport2.listen(localhost(), host2);
+            TopicNode<Object> a1 = host1.topic("a");
+            TopicNode<Object> a2 = host2.topic("a");
+            host1.syncWith(transport1.connectHost(host2.getId(), address2));
+            host2.syncWith(transport2.connectHost(host1.getId(), address1));
+            TopicNode<Object> b1 = host1.topic("b");
+            TopicNode<Object> b2 = host2.topic("b");
+            host1.start();
+            host2.start();
+
+            for (int i = 1; i <= 50; i++) {
+                a1.store(i);
+                b2.store("b" + i);
+            }
+            waitForConsistentMessages(a1, 50);
+            waitForConsistentMessages(a2, 50);
+            waitForConsistentMessages(b1, 50);
+            waitForConsistentMessages(b2, 50);
+
+            assertThat(a2.consistentMessages(), is(a1.consistentMessages()));
+            assertThat(b1.consistentMessages(), is(b2.consistentMessages()));
+            assertThat(b1.consistentMessages().get(0).get(), is((Object) "b1"));
+        }
+    }
+
+    private TopicHost host(int id, Simulation simulation) {
+        SimulatedLink link = new SimulatedLink(uniform(Duration.millis(10), Duration.millis(50), simulation.random()));
+        return new TopicHost(id, 1, Duration.ZERO, link, simulation, simulation.executor(), new Function<String, MetricRegistry>() {
+            @Override
+            public MetricRegistry apply(String topic) {
+                return new InMemoryMetricRegistry();
+            }
+        });
+    }
+
+    private InetSocketAddress localhost() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    private void waitForConsistentMessages(TopicNode<?> node, int count) {
+        while (node.consistentMessages().size() < count) {
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        }
+    }
+}
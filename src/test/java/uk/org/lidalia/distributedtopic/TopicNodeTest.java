@@ -0,0 +1,194 @@
+package uk.org.lidalia.distributedtopic;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static uk.org.lidalia.distributedtopic.LatencyDistributions.fixed;
+import static uk.org.lidalia.distributedtopic.Payloads.payloads;
+
+public class TopicNodeTest {
+
+    @Test
+    public void syncBatchAppliesAllMessages() {
+        TopicNode<Integer> node1 = new TopicNode<>(1);
+        TopicNode<Integer> node2 = new TopicNode<>(2);
+        node2.syncWith(node1);
+
+        SingleNodeVectorClock clock1 = new SingleNodeVectorClock(new NodeId(1)).add(new NodeId(2)).next();
+        SingleNodeVectorClock clock2 = clock1.next();
+        SingleNodeVectorClock clock3 = clock2.next();
+        node2.sync(ImmutableList.of(new Message<>(1, clock1), new Message<>(2, clock2), new Message<>(3, clock3)));
+
+        assertThat(payloads(node2.allMessages()), is(ImmutableList.of(1, 2, 3)));
+    }
+
+    @Test
+    public void batchedSynchroniserDeliversEverything() {
+        TopicNode<Integer> node1 = new TopicNode<>(1, new Synchroniser(5, Duration.millis(50)));
+        TopicNode<Integer> node2 = new TopicNode<>(2, new Synchroniser(5, Duration.millis(50)));
+        node1.syncWith(node2);
+        node2.syncWith(node1);
+
+        for (int i = 1; i <= 12; i++) {
+            node1.store(i);
+        }
+        while (node2.allMessages().size() < 12) {
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        }
+
+        assertThat(payloads(node2.allMessages()), is(payloads(node1.allMessages())));
+    }
+
+    @Test
+    public void concurrentStoresAreSynchronisedInSequenceOrder() throws Exception {
+        final TopicNode<Integer> node1 = new TopicNode<>(1, new Synchroniser(1, Duration.ZERO, new SimulatedLink(fixed(Duration.millis(1)))));
+        TopicNode<Integer> node2 = new TopicNode<>(2);
+        node1.syncWith(node2);
+        node2.syncWith(node1);
+
+        final int producers = 8;
+        final int storesPerProducer = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        for (int i = 0; i < producers; i++) {
+            final int producer = i;
+            executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < storesPerProducer; j++) {
+                        node1.store(producer * storesPerProducer + j);
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        while (node2.allMessages().size() < producers * storesPerProducer) {
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        }
+
+        assertThat(node2.allMessages(), is(node1.allMessages()));
+        assertThat(node2.vectorClock().getState().get(new NodeId(1)), is(node1.vectorClock().getLocalClock()));
+    }
+
+    @Test
+    public void antiEntropyRecoversLostDeliveries() {
+        final TopicNode<Integer> node1 = new TopicNode<>(1, new Synchroniser(1, Duration.ZERO, new SimulatedLink(fixed(Duration.millis(1)))));
+        final TopicNode<Integer> node2 = new TopicNode<>(2, new Synchroniser(1, Duration.ZERO, new SimulatedLink(fixed(Duration.millis(1)))));
+        final AtomicBoolean losingDeliveries = new AtomicBoolean(true);
+        node1.syncWith(new Peer() {
+            @Override
+            public NodeId getId() {
+                return node2.getId();
+            }
+
+            @Override
+            public void deliver(ImmutableList<Message<?>> messages) {
+                if (!losingDeliveries.get()) {
+                    node2.sync(messages);
+                }
+            }
+
+            @Override
+            public void requestMissing(SingleNodeVectorClock received) {
+                node2.sendMissing(received);
+            }
+
+            @Override
+            public int queued() {
+                return 0;
+            }
+        });
+        node2.syncWith(node1);
+
+        node1.store(1);
+        node2.antiEntropy();
+        node1.store(2);
+        node1.store(3);
+        losingDeliveries.set(false);
+        node2.antiEntropy();
+        while (node2.allMessages().size() < 3) {
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        }
+
+        assertThat(payloads(node2.allMessages()), is(ImmutableList.of(1, 2, 3)));
+        assertThat(node2.vectorClock().getState().get(new NodeId(1)), is(node1.vectorClock().getLocalClock()));
+    }
+
+    @Test
+    public void antiEntropyRepairsALostDeliveryBetweenOthers() {
+        final TopicNode<Integer> node1 = new TopicNode<>(1, new Synchroniser(1, Duration.ZERO, new SimulatedLink(fixed(Duration.millis(1)))));
+        final TopicNode<Integer> node2 = new TopicNode<>(2, new Synchroniser(1, Duration.ZERO, new SimulatedLink(fixed(Duration.millis(1)))));
+        final AtomicBoolean lost = new AtomicBoolean(false);
+        node1.syncWith(new Peer() {
+            @Override
+            public NodeId getId() {
+                return node2.getId();
+            }
+
+            @Override
+            public void deliver(ImmutableList<Message<?>> messages) {
+                if (messages.get(0).isHeartbeat() || !messages.get(0).get().equals(2) || !lost.compareAndSet(false, true)) {
+                    node2.sync(messages);
+                }
+            }
+
+            @Override
+            public void requestMissing(SingleNodeVectorClock received) {
+                node2.sendMissing(received);
+            }
+
+            @Override
+            public int queued() {
+                return 0;
+            }
+        });
+        node2.syncWith(node1);
+
+        node1.store(1);
+        node1.store(2);
+        node1.store(3);
+        while (node2.allMessages().size() < 2) {
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        }
+        assertThat(payloads(node2.allMessages()), is(ImmutableList.of(1, 3)));
+        assertThat(node2.vectorClock().getState().get(new NodeId(1)), is(node1.allMessages().get(0).getVectorClock()));
+
+        node2.antiEntropy();
+        while (node2.allMessages().size() < 3) {
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        }
+
+        assertThat(payloads(node2.allMessages()), is(ImmutableList.of(1, 2, 3)));
+        assertThat(node2.vectorClock().getState().get(new NodeId(1)), is(node1.vectorClock().getLocalClock()));
+    }
+
+    @Test
+    public void heartbeatsMakeMessagesConsistentWithoutBeingKept() {
+        TopicNode<Integer> node1 = new TopicNode<>(1, new Synchroniser(1, Duration.ZERO, new SimulatedLink(fixed(Duration.millis(5)))));
+        TopicNode<Integer> node2 = new TopicNode<>(2, new Synchroniser(1, Duration.ZERO, new SimulatedLink(fixed(Duration.millis(5)))));
+        node1.syncWith(node2);
+        node2.syncWith(node1);
+        node1.start();
+        node2.start();
+
+        node1.store(1);
+        node2.store(2);
+        while (node1.consistentMessages().size() < 2 || node2.consistentMessages().size() < 2) {
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        }
+
+        assertThat(node1.consistentMessages(), is(node2.consistentMessages()));
+        assertThat(node1.retainedMessages(), is(2L));
+        assertThat(node2.retainedMessages(), is(2L));
+    }
+}
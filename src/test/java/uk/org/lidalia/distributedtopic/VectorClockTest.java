@@ -33,4 +33,22 @@ public class VectorClockTest {
                         .build();
         assertThat(vectorClock2.getState(), is(expected));
     }
+
+    @Test
+    public void lowestCommonClockTracksRemoteClocksAdvancing() {
+        SingleNodeVectorClock node2 = new SingleNodeVectorClock(new NodeId(2)).add(new NodeId(1)).add(new NodeId(3));
+        SingleNodeVectorClock node3 = new SingleNodeVectorClock(new NodeId(3)).add(new NodeId(1)).add(new NodeId(2));
+        VectorClock vectorClock = new VectorClock(new NodeId(1)).add(new NodeId(2)).add(new NodeId(3));
+
+        for (int i = 0; i < 10; i++) {
+            node2 = node2.next();
+            vectorClock = vectorClock.update(node2).next();
+            if (i % 3 == 0) {
+                node3 = node3.update(node2);
+                vectorClock = vectorClock.update(node3);
+            }
+            VectorClock recalculated = new VectorClock(vectorClock.getNodeId(), vectorClock.getState());
+            assertThat(vectorClock.getLowestCommonClock(), is(recalculated.getLowestCommonClock()));
+        }
+    }
 }